@@ -0,0 +1,215 @@
+package rbtree.ext;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyProc;
+import org.jruby.RubyString;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH harness for the MultiRBTree hot paths.
+ *
+ * The tree is driven through the same Java entry points the Ruby method
+ * table binds to, inside an embedded JRuby runtime, so the numbers exclude
+ * interpreter overhead on the caller side but include the cost of the
+ * <code>&lt;=&gt;</code> dispatch and of yielding to Ruby blocks.
+ *
+ * Run with <code>rake jmh</code>; allocation rates come from <code>-prof gc</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiRBTreeBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class TreeState {
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"fixnum", "string", "custom"})
+    public String keyType;
+
+    Ruby runtime;
+    ThreadContext context;
+    MultiRBTree tree;
+    // keys[i] is in the tree, misses[i] sorts between keys[i] and keys[i + 1]
+    IRubyObject[] keys;
+    IRubyObject[] misses;
+    int[] probes;
+    int cursor;
+    Block noopBlock;
+    Block rejectNoneBlock;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      runtime = Ruby.newInstance();
+      context = runtime.getCurrentContext();
+      try {
+        new MultiRBTreeService().basicLoad(runtime);
+      } catch (java.io.IOException e) {
+        throw new RuntimeException(e);
+      }
+      runtime.evalScriptlet("class RBTree < MultiRBTree; end");
+      runtime.evalScriptlet(
+          "class BenchKey\n" +
+          "  include Comparable\n" +
+          "  attr_reader :v\n" +
+          "  def initialize(v); @v = v; end\n" +
+          "  def <=>(other); @v <=> other.v; end\n" +
+          "end");
+      noopBlock = ((RubyProc) runtime.evalScriptlet("proc { |k, v| nil }")).getBlock();
+      rejectNoneBlock = ((RubyProc) runtime.evalScriptlet("proc { |k, v| false }")).getBlock();
+
+      keys = new IRubyObject[size];
+      misses = new IRubyObject[size];
+      for (int i = 0; i < size; i++) {
+        keys[i] = newKey(2L * i);
+        misses[i] = newKey(2L * i + 1);
+      }
+      tree = newTree();
+      // insert in shuffled order so the shape matches a real workload
+      int[] order = shuffled(size, 42);
+      for (int i = 0; i < size; i++) {
+        tree.op_aset19(context, keys[order[i]], keys[order[i]]);
+      }
+      probes = shuffled(size, 4242);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      runtime.tearDown();
+    }
+
+    MultiRBTree newTree() {
+      RubyClass rbtreeClass = runtime.getClass("RBTree");
+      return (MultiRBTree) rbtreeClass.allocate();
+    }
+
+    IRubyObject newKey(long n) {
+      if (keyType.equals("fixnum")) {
+        return runtime.newFixnum(n);
+      } else if (keyType.equals("string")) {
+        RubyString str = runtime.newString(String.format("%012d", n));
+        str.setFrozen(true);
+        return str;
+      } else {
+        return runtime.getClass("BenchKey").callMethod(context, "new", runtime.newFixnum(n));
+      }
+    }
+
+    int nextProbe() {
+      int i = probes[cursor];
+      if (++cursor == probes.length) cursor = 0;
+      return i;
+    }
+
+    private static int[] shuffled(int n, long seed) {
+      int[] ret = new int[n];
+      for (int i = 0; i < n; i++) ret[i] = i;
+      Random random = new Random(seed);
+      for (int i = n - 1; i > 0; i--) {
+        int j = random.nextInt(i + 1);
+        int tmp = ret[i];
+        ret[i] = ret[j];
+        ret[j] = tmp;
+      }
+      return ret;
+    }
+  }
+
+  /**
+   * delete_if mutates the tree, so each call needs a private copy of the
+   * shared one. deleteIfHalf runs once per iteration, so the copy is made
+   * once per measured call and outside of it, not per invocation.
+   */
+  @State(Scope.Thread)
+  public static class DeleteIfState {
+    MultiRBTree tree;
+    Block everyOtherBlock;
+
+    @Setup(Level.Iteration)
+    public void setUp(TreeState state) {
+      if (everyOtherBlock == null) {
+        everyOtherBlock = ((RubyProc) state.runtime.evalScriptlet(
+            "n = 0; proc { |k, v| (n += 1).even? }")).getBlock();
+      }
+      tree = (MultiRBTree) state.tree.dup();
+    }
+  }
+
+  @Benchmark
+  public IRubyObject lookupHit(TreeState state) {
+    return state.tree.op_aref(state.context, state.keys[state.nextProbe()]);
+  }
+
+  @Benchmark
+  public IRubyObject lookupMiss(TreeState state) {
+    return state.tree.op_aref(state.context, state.misses[state.nextProbe()]);
+  }
+
+  /**
+   * Inserts a missing key and removes it again so the tree keeps its size
+   * across invocations; measures one internalPut plus one internalDelete.
+   */
+  @Benchmark
+  public IRubyObject insertDelete(TreeState state) {
+    IRubyObject key = state.misses[state.nextProbe()];
+    state.tree.op_aset19(state.context, key, key);
+    return state.tree.delete(state.context, key, Block.NULL_BLOCK);
+  }
+
+  @Benchmark
+  public IRubyObject lowerBound(TreeState state) {
+    return state.tree.lower_bound(state.context, state.misses[state.nextProbe()]);
+  }
+
+  @Benchmark
+  public IRubyObject upperBound(TreeState state) {
+    return state.tree.upper_bound(state.context, state.misses[state.nextProbe()]);
+  }
+
+  @Benchmark
+  public IRubyObject each(TreeState state) {
+    return state.tree.rbtree_each(state.context, state.noopBlock);
+  }
+
+  @Benchmark
+  public IRubyObject reverseEach(TreeState state) {
+    return state.tree.reverse_each(state.context, state.noopBlock);
+  }
+
+  @Benchmark
+  public IRubyObject deleteIfNone(TreeState state) {
+    return state.tree.delete_if(state.context, state.rejectNoneBlock);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  @Warmup(iterations = 5)
+  @Measurement(iterations = 10)
+  public IRubyObject deleteIfHalf(DeleteIfState state, TreeState tree) {
+    return state.tree.delete_if(tree.context, state.everyOtherBlock);
+  }
+}
@@ -0,0 +1,444 @@
+package rbtree.ext;
+
+import org.jruby.Ruby;
+import org.jruby.RubyObject;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyHash;
+import org.jruby.RubyArray;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.util.Arrays;
+
+/**
+ * A tree whose entries live in parallel arrays instead of one Node object
+ * each: keys and values in two IRubyObject arrays, and the links, subtree
+ * counts and colors in the arrays of a SlotTree indexed by the same slots.
+ * A tree of millions of entries is then a handful of large arrays for the
+ * collector to trace rather than millions of small objects.
+ *
+ * It is created by <code>RBTree.new(storage: :compact)</code> and has the
+ * same Ruby class as any other tree. Only the primitives MultiRBTree is
+ * written against are overridden here; where those hand a Node back it is
+ * a short lived view of a slot.
+ */
+public class CompactRBTree extends MultiRBTree {
+  private static final int NIL = SlotTree.NIL;
+  private static final int INITIAL_CAPACITY = 16;
+
+  private IRubyObject[] keys;
+  private IRubyObject[] values;
+  // only allocated once readjust_by is in effect
+  private IRubyObject[] sortKeys;
+  // the links, counts and colors of the slots
+  private final Slots slots = new Slots();
+
+  public CompactRBTree(final Ruby ruby, RubyClass rubyClass) {
+    super(ruby, rubyClass);
+    slots.allocate(INITIAL_CAPACITY);
+  }
+
+  private final class Slots extends SlotTree {
+    Slots() {
+      super(true);
+    }
+
+    @Override
+    void allocateEntries(int capacity) {
+      keys = new IRubyObject[capacity];
+      values = new IRubyObject[capacity];
+      sortKeys = null;
+    }
+
+    @Override
+    void growEntries(int capacity) {
+      keys = Arrays.copyOf(keys, capacity);
+      values = Arrays.copyOf(values, capacity);
+      if (sortKeys != null) sortKeys = Arrays.copyOf(sortKeys, capacity);
+    }
+
+    @Override
+    void moveEntry(int from, int to) {
+      keys[to] = keys[from];
+      values[to] = values[from];
+      if (sortKeys != null) sortKeys[to] = sortKeys[from];
+    }
+
+    @Override
+    void clearEntry(int i) {
+      keys[i] = values[i] = null;
+      if (sortKeys != null) sortKeys[i] = null;
+    }
+  }
+
+  private int newSlot(IRubyObject key, IRubyObject value, RubyObject sortKey) {
+    int i = slots.newSlot();
+    setSlot(i, key, value, sortKey);
+    return i;
+  }
+
+  private void setSlot(int i, IRubyObject key, IRubyObject value, RubyObject sortKey) {
+    keys[i] = key;
+    values[i] = value;
+    if (sortKeyProc != null) {
+      if (sortKeys == null) sortKeys = new IRubyObject[keys.length];
+      sortKeys[i] = sortKey;
+    }
+  }
+
+  private RubyObject sortKeyAt(int i) {
+    return (RubyObject) (sortKeys == null ? keys[i] : sortKeys[i]);
+  }
+
+  private Node view(int i) {
+    return i == NIL ? null : new Entry(i);
+  }
+
+  private static int indexOf(Node node) {
+    return ((Entry) node).index;
+  }
+
+  /**
+   * What the rest of MultiRBTree sees of a slot. Its key and value are
+   * copied when it is made, setValue writes through to the slot.
+   */
+  private final class Entry extends Node {
+    final int index;
+
+    Entry(int index) {
+      super(keys[index], values[index]);
+      this.index = index;
+    }
+
+    @Override
+    public RubyObject getSortKey() {
+      return sortKeyAt(index);
+    }
+
+    @Override
+    public void setValue(IRubyObject val) {
+      super.setValue(val);
+      values[index] = val;
+    }
+  }
+
+  @Override
+  public IRubyObject init() {
+    super.init();
+    slots.allocate(INITIAL_CAPACITY);
+    return this;
+  }
+
+  @Override
+  public IRubyObject dup() {
+    CompactRBTree copy = new CompactRBTree(getRuntime(), getMetaClass().getRealClass());
+    copy.replace(getRuntime().getCurrentContext(), this);
+    return copy;
+  }
+
+  @Override
+  MultiRBTree emptyCopy(ThreadContext context) {
+    CompactRBTree copy = new CompactRBTree(getRuntime(), getMetaClass().getRealClass());
+    copy.copySettings(context, this);
+    return copy;
+  }
+
+  @Override
+  public MultiRBTree internalPut(ThreadContext context, IRubyObject key, IRubyObject value, boolean checkExisting) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    int y = NIL;
+    int x = slots.root;
+    int ret = 0;
+    while (x != NIL) {
+      y = x;
+      ret = compare(context, type, sortKey, sortKeyAt(x));
+      if (ret == 0 && !dupes && checkExisting) {
+        values[x] = value;
+        return this;
+      }
+      x = ret < 0 ? slots.left[x] : slots.right[x];
+    }
+    slots.insert(newSlot(key, value, sortKey), y, ret < 0);
+    addKeyType(sortKey);
+    this.size += 1;
+    this.modCount++;
+    return this;
+  }
+
+  @Override
+  public IRubyObject internalDelete(ThreadContext context, Node node) {
+    int z = indexOf(node);
+    RubyArray ret = getRuntime().newArray(keys[z], values[z]);
+    slots.delete(z);
+    this.size -= 1;
+    this.modCount++;
+    return ret;
+  }
+
+  @Override
+  Node minimum() {
+    return view(slots.minimum(slots.root));
+  }
+
+  @Override
+  Node maximum() {
+    return view(slots.maximum(slots.root));
+  }
+
+  @Override
+  Node successor(Node x) {
+    return view(slots.successor(indexOf(x)));
+  }
+
+  @Override
+  Node predecessor(Node x) {
+    return view(slots.predecessor(indexOf(x)));
+  }
+
+  @Override
+  Node findNode(ThreadContext context, RubyObject sortKey) {
+    int type = keyTypeFor(sortKey);
+    int x = slots.root;
+    int found = NIL;
+    while (x != NIL) {
+      int ret = compare(context, type, sortKey, sortKeyAt(x));
+      if (ret > 0) {
+        x = slots.right[x];
+      } else if (ret < 0) {
+        x = slots.left[x];
+      } else if (dupes) {
+        // the first of equal keys, like node storage
+        found = x;
+        x = slots.left[x];
+      } else {
+        return view(x);
+      }
+    }
+    return found == NIL ? null : view(found);
+  }
+
+  @Override
+  public Node lower_boundInternal(ThreadContext context, IRubyObject key) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    int x = slots.root;
+    int tentative = NIL;
+    while (x != NIL) {
+      int result = compare(context, type, sortKey, sortKeyAt(x));
+      if (result > 0) {
+        x = slots.right[x];
+      } else {
+        tentative = x;
+        if (result == 0 && !dupes) break;
+        x = slots.left[x];
+      }
+    }
+    return view(tentative);
+  }
+
+  @Override
+  public Node upper_boundInternal(ThreadContext context, IRubyObject key) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    int x = slots.root;
+    int tentative = NIL;
+    while (x != NIL) {
+      int result = compare(context, type, sortKey, sortKeyAt(x));
+      if (result < 0) {
+        x = slots.left[x];
+      } else {
+        tentative = x;
+        if (result == 0 && !dupes) break;
+        x = slots.right[x];
+      }
+    }
+    return view(tentative);
+  }
+
+  @Override
+  Node lastBeforeInternal(ThreadContext context, IRubyObject key) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    int x = slots.root;
+    int tentative = NIL;
+    while (x != NIL) {
+      if (compare(context, type, sortKeyAt(x), sortKey) < 0) {
+        tentative = x;
+        x = slots.right[x];
+      } else {
+        x = slots.left[x];
+      }
+    }
+    return view(tentative);
+  }
+
+  @Override
+  int countBefore(ThreadContext context, IRubyObject key, boolean inclusive) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    int ret = 0;
+    int x = slots.root;
+    while (x != NIL) {
+      int result = compare(context, type, sortKeyAt(x), sortKey);
+      if (result < 0 || inclusive && result == 0) {
+        ret += slots.countOf(slots.left[x]) + 1;
+        x = slots.right[x];
+      } else {
+        x = slots.left[x];
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  int rankOf(Node node) {
+    int x = indexOf(node);
+    int ret = slots.countOf(slots.left[x]);
+    for (; slots.parent[x] != NIL; x = slots.parent[x]) {
+      if (x == slots.right[slots.parent[x]]) ret += slots.countOf(slots.left[slots.parent[x]]) + 1;
+    }
+    return ret;
+  }
+
+  @Override
+  Node nodeAt(int index) {
+    int x = slots.root;
+    while (x != NIL) {
+      int leftCount = slots.countOf(slots.left[x]);
+      if (index < leftCount) {
+        x = slots.left[x];
+      } else if (index > leftCount) {
+        index -= leftCount + 1;
+        x = slots.right[x];
+      } else {
+        break;
+      }
+    }
+    return view(x);
+  }
+
+  /**
+   * Same as MultiRBTree#putAllSorted, except that an empty tree is built
+   * into fresh arrays sized to fit, with the slots handed out in key order
+   * so an in-order walk reads the arrays front to back.
+   */
+  @Override
+  void putAllSorted(ThreadContext context, final IRubyObject[] newKeys, final IRubyObject[] newValues, int length) {
+    IRubyObject[] newSortKeys = newKeys;
+    if (sortKeyProc != null) {
+      newSortKeys = new IRubyObject[length];
+      for (int i = 0; i < length; i++) {
+        newSortKeys[i] = sortKeyOf(context, newKeys[i]);
+      }
+    }
+    if (this.size == 0 && isSorted(context, newSortKeys, length)) {
+      final IRubyObject[] sorted = sortKeyProc == null ? null : newSortKeys;
+      slots.allocate(Math.max(length, INITIAL_CAPACITY));
+      slots.root = slots.buildFromSorted(0, 0, length - 1, computeRedLevel(length), new SlotTree.Fill() {
+        void fill(int slot, int index) {
+          setSlot(slot, newKeys[index], newValues[index], sorted == null ? null : (RubyObject) sorted[index]);
+        }
+      });
+      this.size = length;
+      this.modCount++;
+      for (int i = 0; i < length && keyType != KEY_GENERIC; i++) {
+        addKeyType(newSortKeys[i]);
+      }
+      return;
+    }
+    for (int i = 0; i < length; i++) {
+      internalPut(context, newKeys[i], newValues[i]);
+    }
+  }
+
+  @Override
+  void visitAll(Visitor visitor) {
+    for (int x = slots.minimum(slots.root); x != NIL; x = slots.successor(x)) {
+      visitor.visit(keys[x], values[x]);
+    }
+  }
+
+  @Override
+  public void iteratorVisitAll(Visitor visitor) {
+    try {
+      iteratorEntry();
+      for (int x = slots.minimum(slots.root); x != NIL; x = slots.successor(x)) {
+        visitor.visit(keys[x], values[x]);
+      }
+    } finally {
+      iteratorExit();
+    }
+  }
+
+  @Override
+  public void iteratorReverseVisitAll(Visitor visitor) {
+    try {
+      iteratorEntry();
+      for (int x = slots.maximum(slots.root); x != NIL; x = slots.predecessor(x)) {
+        visitor.visit(keys[x], values[x]);
+      }
+    } finally {
+      iteratorExit();
+    }
+  }
+
+  @Override
+  public IRubyObject storage(ThreadContext context) {
+    return context.runtime.newSymbol("compact");
+  }
+
+  /**
+   * The slots are not shared, so this is a copy of the entries: O(n).
+   */
+  @Override
+  public IRubyObject snapshot(ThreadContext context) {
+    return copySnapshot(context);
+  }
+
+  @Override
+  boolean canIndexValues() {
+    return false;
+  }
+
+  @Override
+  boolean searchesFromFinger() {
+    return false;
+  }
+
+  @Override
+  boolean canSplit() {
+    return false;
+  }
+
+  @Override
+  IRubyObject updateInternal(ThreadContext context, IRubyObject key, Update update) {
+    return updateByLookup(context, key, update);
+  }
+
+  /**
+   * Heap used by the arrays, unused capacity included: per slot a key and
+   * a value reference (and a sort key after readjust_by), three links and
+   * a count, and one bit of color.
+   */
+  @Override
+  public IRubyObject memory_footprint(ThreadContext context) {
+    Ruby runtime = context.runtime;
+    int ref = referenceSize();
+    int capacity = keys.length;
+    int slotBytes = (sortKeys == null ? 2 : 3) * ref + 4 * 4;
+    long bytes = (long) slotBytes * capacity + (capacity + 7) / 8 + 8 * (objectHeaderSize() + 4);
+    RubyHash ret = RubyHash.newHash(runtime);
+    ret.fastASet(runtime.newSymbol("entries"), runtime.newFixnum(size));
+    ret.fastASet(runtime.newSymbol("capacity"), runtime.newFixnum(capacity));
+    ret.fastASet(runtime.newSymbol("bytes_per_entry"), runtime.newFixnum(slotBytes));
+    ret.fastASet(runtime.newSymbol("bytes"), runtime.newFixnum(bytes));
+    return ret;
+  }
+
+  @Override
+  public IRubyObject blackHeight() {
+    return RubyFixnum.newFixnum(getRuntime(), slots.blackHeight());
+  }
+}
@@ -0,0 +1,892 @@
+package rbtree.ext;
+
+import org.jruby.Ruby;
+import org.jruby.RubyObject;
+import org.jruby.RubyClass;
+import org.jruby.RubyHash;
+import org.jruby.RubyArray;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * MultiRBTree that can be shared between threads. Writers take a write
+ * lock and serialize; point reads (<code>[]</code>, fetch, key?,
+ * lower_bound, upper_bound, size) first run without any lock under an
+ * optimistic read stamp of a StampedLock, and only take the read lock
+ * when a writer got in the way.
+ * Everything else that reads more than one entry holds the read lock, and
+ * the iterating methods copy the entries under it and yield outside it, so
+ * a block sees the tree as it was when the call started and may write to
+ * it.
+ *
+ * In Ruby it is ConcurrentMultiRBTree, a subclass of MultiRBTree, and
+ * ConcurrentRBTree, which does not keep duplicate keys.
+ */
+@JRubyClass(name = "ConcurrentMultiRBTree", parent = "MultiRBTree")
+public class ConcurrentMultiRBTree extends MultiRBTree {
+  private final StampedLock lock = new StampedLock();
+  // StampedLock is not reentrant, so the holds are counted here: the
+  // writer's only by the thread holding the write lock, which is also
+  // the only one that can find itself in writer
+  private Thread writer;
+  private int writeHolds;
+  private final ThreadLocal<int[]> readHolds = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+
+  // lock-free reads that succeed are not counted, a shared counter
+  // bumped on every one of them would be the contention this avoids
+  private final AtomicLong optimisticRetries = new AtomicLong();
+  private final AtomicLong readLocks = new AtomicLong();
+  private final AtomicLong readWaits = new AtomicLong();
+  private final AtomicLong writeLocks = new AtomicLong();
+  private final AtomicLong writeWaits = new AtomicLong();
+
+  // a red-black tree of 2^31 entries is at most 62 levels deep, a longer
+  // walk means a writer was rotating under an optimistic read
+  private static final int MAX_HEIGHT = 64;
+  private static final int FIND = 0;
+  private static final int LOWER = 1;
+  private static final int UPPER = 2;
+
+  // orders taking the locks of two trees whose identity hashes collide
+  private static final Object TIE_LOCK = new Object();
+
+  public static RubyClass createConcurrentMultiRBTreeClass(Ruby runtime) {
+    RubyClass concurrentClass = runtime.defineClass("ConcurrentMultiRBTree", runtime.getClass("MultiRBTree"), CONCURRENT_ALLOCATOR);
+    concurrentClass.setReifiedClass(ConcurrentMultiRBTree.class);
+    concurrentClass.setMarshal(RBTREE_MARSHAL);
+    concurrentClass.defineAnnotatedMethods(ConcurrentMultiRBTree.class);
+    return concurrentClass;
+  }
+
+  private static final ObjectAllocator CONCURRENT_ALLOCATOR = new ObjectAllocator() {
+    public IRubyObject allocate(Ruby runtime, RubyClass klazz) {
+      return new ConcurrentMultiRBTree(runtime, klazz);
+    }
+  };
+
+  public ConcurrentMultiRBTree(final Ruby ruby, RubyClass rubyClass) {
+    super(ruby, rubyClass);
+    this.dupes = getMetaClass().getRealClass().getName().equals("ConcurrentMultiRBTree");
+  }
+
+  private void readLock() {
+    // the writer reads under its write lock
+    if (writer == Thread.currentThread()) return;
+    if (readHolds.get()[0]++ > 0) return;
+    if (lock.tryReadLock() == 0L) {
+      readWaits.incrementAndGet();
+      lock.readLock();
+    }
+    readLocks.incrementAndGet();
+  }
+
+  private void readUnlock() {
+    if (writer == Thread.currentThread()) return;
+    if (--readHolds.get()[0] == 0) lock.tryUnlockRead();
+  }
+
+  private void writeLock() {
+    if (writer == Thread.currentThread()) {
+      writeHolds++;
+      return;
+    }
+    if (lock.tryWriteLock() == 0L) {
+      writeWaits.incrementAndGet();
+      lock.writeLock();
+    }
+    writeLocks.incrementAndGet();
+    writer = Thread.currentThread();
+    writeHolds = 1;
+  }
+
+  private void writeUnlock() {
+    if (--writeHolds > 0) return;
+    writer = null;
+    lock.tryUnlockWrite();
+  }
+
+  @Override
+  void lockRead() {
+    readLock();
+  }
+
+  @Override
+  void unlockRead() {
+    readUnlock();
+  }
+
+  @Override
+  void lockWrite() {
+    writeLock();
+  }
+
+  @Override
+  void unlockWrite() {
+    writeUnlock();
+  }
+
+  /**
+   * Takes the lock of this tree, for writing or reading, and the read lock
+   * of other, always in the same order for the same two trees so that
+   * a.replace(b) and b.replace(a) in two threads cannot deadlock.
+   */
+  private void lockWith(MultiRBTree other, boolean write) {
+    lockWith(other, write, false);
+  }
+
+  private void lockWith(MultiRBTree other, boolean write, boolean writeOther) {
+    if (other == this || !(other instanceof ConcurrentMultiRBTree)) {
+      if (write) writeLock(); else readLock();
+      return;
+    }
+    int mine = System.identityHashCode(this);
+    int theirs = System.identityHashCode(other);
+    if (mine < theirs) {
+      if (write) writeLock(); else readLock();
+      if (writeOther) other.lockWrite(); else other.lockRead();
+    } else if (mine > theirs) {
+      if (writeOther) other.lockWrite(); else other.lockRead();
+      if (write) writeLock(); else readLock();
+    } else {
+      synchronized (TIE_LOCK) {
+        if (write) writeLock(); else readLock();
+        if (writeOther) other.lockWrite(); else other.lockRead();
+      }
+    }
+  }
+
+  private void unlockWith(MultiRBTree other, boolean write) {
+    unlockWith(other, write, false);
+  }
+
+  private void unlockWith(MultiRBTree other, boolean write, boolean writeOther) {
+    if (other != this && other instanceof ConcurrentMultiRBTree) {
+      if (writeOther) other.unlockWrite(); else other.unlockRead();
+    }
+    if (write) writeUnlock(); else readUnlock();
+  }
+
+  private static final class Retry extends RuntimeException {
+    @Override
+    public Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private static final Retry RETRY = new Retry();
+
+  /**
+   * The key and value of the entry lookup finds for key, or null. Runs
+   * without the lock first and keeps the answer if no writer started or
+   * finished meanwhile. The walk may see a half-done rotation, so it is
+   * bounded, and what such a torn read can throw sends it to the locked
+   * path. A Ruby exception from <=> or the cmp_proc is raised as is when
+   * the read was consistent, so the comparison does not run twice.
+   */
+  private IRubyObject[] lookup(ThreadContext context, IRubyObject key, int mode) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0L) {
+      try {
+        IRubyObject[] ret = search(context, key, mode, true);
+        if (lock.validate(stamp)) return ret;
+      } catch (RaiseException e) {
+        if (lock.validate(stamp)) throw e;
+      } catch (RuntimeException e) {
+        if (!isTornRead(e)) throw e;
+      }
+      optimisticRetries.incrementAndGet();
+    }
+    readLock();
+    try {
+      return search(context, key, mode, false);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  /**
+   * Whether e is what a walk over nodes a writer is changing can throw:
+   * a link or key seen half set, or a walk that went around in circles.
+   */
+  private static boolean isTornRead(RuntimeException e) {
+    return e == RETRY || e instanceof NullPointerException || e instanceof ArrayIndexOutOfBoundsException || e instanceof ClassCastException;
+  }
+
+  private IRubyObject[] search(ThreadContext context, IRubyObject key, int mode, boolean bounded) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    Node x = getRoot();
+    Node tentative = null;
+    for (int steps = 0; x != null; steps++) {
+      if (bounded && steps > MAX_HEIGHT) throw RETRY;
+      int ret = compare(context, type, sortKey, x.getSortKey());
+      // equal keys share a node
+      if (ret == 0) {
+        tentative = x;
+        break;
+      }
+      if (ret < 0) {
+        if (mode == LOWER) tentative = x;
+        x = x.left;
+      } else {
+        if (mode == UPPER) tentative = x;
+        x = x.right;
+      }
+    }
+    if (tentative == null) return null;
+    return new IRubyObject[] { tentative.key, mode == UPPER ? tentative.lastValue() : tentative.value };
+  }
+
+  private int currentSize() {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0L) {
+      int ret = size;
+      if (lock.validate(stamp)) return ret;
+      optimisticRetries.incrementAndGet();
+    }
+    readLock();
+    try {
+      return size;
+    } finally {
+      readUnlock();
+    }
+  }
+
+  /**
+   * The keys and values of the tree, interleaved, copied under the read
+   * lock of tree.
+   */
+  private static IRubyObject[] entriesOf(MultiRBTree tree, boolean reverse) {
+    tree.lockRead();
+    try {
+      final IRubyObject[] ret = new IRubyObject[tree.size * 2];
+      final int[] length = new int[1];
+      Visitor visitor = new Visitor() {
+        public void visit(IRubyObject key, IRubyObject value) {
+          ret[length[0]++] = key;
+          ret[length[0]++] = value;
+        }
+      };
+      if (reverse) {
+        for (Node x = tree.maximum(); x != null; x = tree.predecessor(x)) visitor.visit(x.key, x.value);
+      } else {
+        tree.visitAll(visitor);
+      }
+      return ret;
+    } finally {
+      tree.unlockRead();
+    }
+  }
+
+  @Override
+  void visitAll(Visitor visitor) {
+    readLock();
+    try {
+      super.visitAll(visitor);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public void iteratorVisitAll(Visitor visitor) {
+    IRubyObject[] entries = entriesOf(this, false);
+    for (int i = 0; i < entries.length; i += 2) {
+      visitor.visit(entries[i], entries[i + 1]);
+    }
+  }
+
+  @Override
+  public void iteratorReverseVisitAll(Visitor visitor) {
+    IRubyObject[] entries = entriesOf(this, true);
+    for (int i = 0; i < entries.length; i += 2) {
+      visitor.visit(entries[i], entries[i + 1]);
+    }
+  }
+
+  /**
+   * How many lock-free reads had to be redone under the read lock, and how
+   * many read and write lock acquisitions there were and how many of them
+   * had to wait for another thread.
+   */
+  @JRubyMethod(name = "contention_stats")
+  public IRubyObject contention_stats(ThreadContext context) {
+    Ruby runtime = context.runtime;
+    RubyHash ret = RubyHash.newHash(runtime);
+    ret.fastASet(runtime.newSymbol("optimistic_retries"), runtime.newFixnum(optimisticRetries.get()));
+    ret.fastASet(runtime.newSymbol("read_locks"), runtime.newFixnum(readLocks.get()));
+    ret.fastASet(runtime.newSymbol("read_waits"), runtime.newFixnum(readWaits.get()));
+    ret.fastASet(runtime.newSymbol("write_locks"), runtime.newFixnum(writeLocks.get()));
+    ret.fastASet(runtime.newSymbol("write_waits"), runtime.newFixnum(writeWaits.get()));
+    return ret;
+  }
+
+  // point reads
+
+  @Override
+  public IRubyObject op_aref(ThreadContext context, IRubyObject key) {
+    IRubyObject[] entry = lookup(context, key, FIND);
+    return entry == null ? callMethod(context, "default", key) : entry[1];
+  }
+
+  @Override
+  public IRubyObject rbtree_fetch(ThreadContext context, IRubyObject[] args, Block block) {
+    if (block.isGiven() && args.length == 2) {
+      getRuntime().getWarnings().warn("block supersedes default value argument");
+    }
+    IRubyObject[] entry = lookup(context, args[0], FIND);
+    if (entry != null)
+      return entry[1];
+    if (block.isGiven())
+      return block.yield(context, args[0]);
+    if (args.length == 1)
+      throw getRuntime().newIndexError("key not found");
+    return args[1];
+  }
+
+  @Override
+  public IRubyObject has_key_p(ThreadContext context, IRubyObject key) {
+    return getRuntime().newBoolean(lookup(context, key, FIND) != null);
+  }
+
+  @Override
+  public IRubyObject lower_bound(ThreadContext context, IRubyObject key) {
+    IRubyObject[] entry = lookup(context, key, LOWER);
+    return entry == null ? context.runtime.getNil() : context.runtime.newArray(entry[0], entry[1]);
+  }
+
+  @Override
+  public IRubyObject upper_bound(ThreadContext context, IRubyObject key) {
+    IRubyObject[] entry = lookup(context, key, UPPER);
+    return entry == null ? context.runtime.getNil() : context.runtime.newArray(entry[0], entry[1]);
+  }
+
+  @Override
+  public IRubyObject getSize() {
+    return getRuntime().newFixnum(currentSize());
+  }
+
+  @Override
+  public IRubyObject empty_p(ThreadContext context) {
+    return getRuntime().newBoolean(currentSize() == 0);
+  }
+
+  // reads under the read lock
+
+  @Override
+  public IRubyObject first(ThreadContext context) {
+    readLock();
+    try {
+      return super.first(context);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject last(ThreadContext context) {
+    readLock();
+    try {
+      return super.last(context);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject rank(ThreadContext context, IRubyObject key) {
+    readLock();
+    try {
+      return super.rank(context, key);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject at(ThreadContext context, IRubyObject index) {
+    readLock();
+    try {
+      return super.at(context, index);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject count_between(ThreadContext context, IRubyObject[] bounds) {
+    readLock();
+    try {
+      return super.count_between(context, bounds);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject count(ThreadContext context, IRubyObject[] args, Block block) {
+    // the block form iterates a copy and must not hold the lock
+    if (args.length != 1) return super.count(context, args, block);
+    readLock();
+    try {
+      return super.count(context, args, block);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject values_for(ThreadContext context, IRubyObject key) {
+    readLock();
+    try {
+      return super.values_for(context, key);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject slice(ThreadContext context, IRubyObject offset, IRubyObject limit) {
+    readLock();
+    try {
+      return super.slice(context, offset, limit);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject has_value_p(ThreadContext context, IRubyObject value) {
+    readLock();
+    try {
+      return super.has_value_p(context, value);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject rbtree_index(ThreadContext context, IRubyObject value) {
+    readLock();
+    try {
+      return super.rbtree_index(context, value);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject keys_for_value(ThreadContext context, IRubyObject value) {
+    readLock();
+    try {
+      return super.keys_for_value(context, value);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  IRubyObject[] lookupMany(ThreadContext context, IRubyObject[] keys) {
+    readLock();
+    try {
+      return super.lookupMany(context, keys);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject invert(ThreadContext context) {
+    readLock();
+    try {
+      return super.invert(context);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject memory_footprint(ThreadContext context) {
+    readLock();
+    try {
+      return super.memory_footprint(context);
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject blackHeight() {
+    readLock();
+    try {
+      return super.blackHeight();
+    } finally {
+      readUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject bound(ThreadContext context, IRubyObject[] bounds, Block block) {
+    return boundCommon(context, bounds, block, false);
+  }
+
+  @Override
+  public IRubyObject reverse_bound(ThreadContext context, IRubyObject[] bounds, Block block) {
+    return boundCommon(context, bounds, block, true);
+  }
+
+  private IRubyObject boundCommon(ThreadContext context, IRubyObject[] bounds, Block block, boolean reverse) {
+    RubyArray pairs;
+    readLock();
+    try {
+      pairs = (RubyArray) (reverse ? super.reverse_bound(context, bounds, Block.NULL_BLOCK) : super.bound(context, bounds, Block.NULL_BLOCK));
+    } finally {
+      readUnlock();
+    }
+    if (!block.isGiven()) return pairs;
+    for (int i = 0; i < pairs.size(); i++) {
+      RubyArray pair = (RubyArray) pairs.eltInternal(i);
+      block.yieldSpecific(context, pair.eltInternal(0), pair.eltInternal(1));
+    }
+    return context.runtime.newArray();
+  }
+
+  @Override
+  public IRubyObject op_equal(IRubyObject other) {
+    if (!(other instanceof MultiRBTree)) return super.op_equal(other);
+    MultiRBTree otherTree = (MultiRBTree) other;
+    lockWith(otherTree, false);
+    try {
+      return super.op_equal(other);
+    } finally {
+      unlockWith(otherTree, false);
+    }
+  }
+
+  // writes
+
+  /**
+   * Takes the write lock, as from here on the tree copies shared nodes.
+   * The snapshot is a plain RBTree or MultiRBTree: being frozen, it has
+   * nothing to lock.
+   */
+  @Override
+  public IRubyObject snapshot(ThreadContext context) {
+    writeLock();
+    try {
+      return super.snapshot(context);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  RubyClass snapshotClass() {
+    return getRuntime().getClass(dupes ? "MultiRBTree" : "RBTree");
+  }
+
+  @Override
+  public IRubyObject init() {
+    writeLock();
+    try {
+      return super.init();
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject op_aset(ThreadContext context, IRubyObject key, IRubyObject val) {
+    writeLock();
+    try {
+      return super.op_aset(context, key, val);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject op_aset19(ThreadContext context, IRubyObject key, IRubyObject val) {
+    writeLock();
+    try {
+      return super.op_aset19(context, key, val);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject shift(ThreadContext context) {
+    writeLock();
+    try {
+      return super.shift(context);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject pop(ThreadContext context) {
+    writeLock();
+    try {
+      return super.pop(context);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject shift(ThreadContext context, IRubyObject n) {
+    writeLock();
+    try {
+      return super.shift(context, n);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject pop(ThreadContext context, IRubyObject n) {
+    writeLock();
+    try {
+      return super.pop(context, n);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject upsert(ThreadContext context, IRubyObject key, Block block) {
+    writeLock();
+    try {
+      return super.upsert(context, key, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject fetch_or_store(ThreadContext context, IRubyObject[] args, Block block) {
+    writeLock();
+    try {
+      return super.fetch_or_store(context, args, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject compute_if_absent(ThreadContext context, IRubyObject key, Block block) {
+    writeLock();
+    try {
+      return super.compute_if_absent(context, key, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject increment(ThreadContext context, IRubyObject[] args) {
+    writeLock();
+    try {
+      return super.increment(context, args);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject put_many(ThreadContext context, IRubyObject pairs) {
+    writeLock();
+    try {
+      return super.put_many(context, pairs);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject delete_many(ThreadContext context, IRubyObject keys) {
+    writeLock();
+    try {
+      return super.delete_many(context, keys);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject take_before(ThreadContext context, IRubyObject key) {
+    writeLock();
+    try {
+      return super.take_before(context, key);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject take_from(ThreadContext context, IRubyObject key) {
+    writeLock();
+    try {
+      return super.take_from(context, key);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject split(ThreadContext context, IRubyObject key) {
+    writeLock();
+    try {
+      return super.split(context, key);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject delete_range(ThreadContext context, IRubyObject lower, IRubyObject upper) {
+    writeLock();
+    try {
+      return super.delete_range(context, lower, upper);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  /**
+   * Takes the write locks of both trees, as other is emptied.
+   */
+  @Override
+  public IRubyObject join(ThreadContext context, IRubyObject other) {
+    if (!(other instanceof MultiRBTree)) return super.join(context, other);
+    MultiRBTree otherTree = (MultiRBTree) other;
+    lockWith(otherTree, true, true);
+    try {
+      return super.join(context, other);
+    } finally {
+      unlockWith(otherTree, true, true);
+    }
+  }
+
+  @Override
+  public IRubyObject drain_while(ThreadContext context, Block block) {
+    writeLock();
+    try {
+      return super.drain_while(context, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject delete(ThreadContext context, IRubyObject key, Block block) {
+    writeLock();
+    try {
+      return super.delete(context, key, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject delete_if(ThreadContext context, Block block) {
+    writeLock();
+    try {
+      return super.delete_if(context, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject reject_bang(ThreadContext context, Block block) {
+    writeLock();
+    try {
+      return super.reject_bang(context, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject keep_if(ThreadContext context, Block block) {
+    writeLock();
+    try {
+      return super.keep_if(context, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject select_bang(ThreadContext context, Block block) {
+    writeLock();
+    try {
+      return super.select_bang(context, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject readjust(ThreadContext context, IRubyObject[] args, Block block) {
+    writeLock();
+    try {
+      return super.readjust(context, args, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject readjust_by(ThreadContext context, Block block) {
+    writeLock();
+    try {
+      return super.readjust_by(context, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+
+  @Override
+  public IRubyObject replace(ThreadContext context, IRubyObject other) {
+    checkCompatible(context.runtime, other);
+    MultiRBTree otherTree = (MultiRBTree) other;
+    lockWith(otherTree, true);
+    try {
+      return super.replace(context, other);
+    } finally {
+      unlockWith(otherTree, true);
+    }
+  }
+
+  /**
+   * Copies other first, so that other's lock is not held while waiting
+   * for this tree's, then merges under the write lock.
+   */
+  @Override
+  public IRubyObject update(ThreadContext context, IRubyObject other, Block block) {
+    SortedEntries theirs = sortedEntriesOf(context, other, true);
+    writeLock();
+    try {
+      return updateFrom(context, theirs, block);
+    } finally {
+      writeUnlock();
+    }
+  }
+}
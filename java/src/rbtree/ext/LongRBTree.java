@@ -0,0 +1,548 @@
+package rbtree.ext;
+
+import static org.jruby.RubyEnumerator.enumeratorize;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyHash;
+import org.jruby.RubyObject;
+import org.jruby.RubyRange;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Arity;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ObjectMarshal;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.marshal.MarshalStream;
+import org.jruby.runtime.marshal.UnmarshalStream;
+import org.jruby.util.TypeConverter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A tree keyed by Fixnums that keeps its keys unboxed. As in
+ * CompactRBTree the entries live in parallel arrays indexed by the slots
+ * of a SlotTree, but the keys are a long[] and are compared as longs, so
+ * a lookup makes no calls and a key costs 8 bytes instead of a RubyFixnum
+ * and the node pointing to it. Fixnums are only made for keys handed back
+ * to Ruby.
+ *
+ * In Ruby it is LongRBTree, which takes any values, and LongLongRBTree,
+ * which takes only Fixnum values and keeps them unboxed in a long[] too.
+ * Keys are unique, in numeric order, and have to be Fixnums. It has the
+ * RBTree methods for lookup and navigation ([], []=, delete, has_key?,
+ * lower_bound, upper_bound, bound, first, last, shift, pop, each and
+ * reverse_each) and can be dumped with Marshal.
+ */
+@JRubyClass(name = "LongRBTree")
+public class LongRBTree extends RubyObject {
+  private static final int NIL = SlotTree.NIL;
+  private static final int INITIAL_CAPACITY = 16;
+
+  // set for LongLongRBTree, which keeps its values in numbers
+  private final boolean longValues;
+  private long[] keys;
+  private IRubyObject[] values;
+  private long[] numbers;
+  // the links and colors of the slots
+  private final Slots slots = new Slots();
+  private int size;
+  // bumped whenever slots are added or removed, see each
+  private int modCount;
+  private IRubyObject ifNone;
+  private boolean procDefault;
+
+  public static RubyClass createLongRBTreeClass(Ruby runtime) {
+    RubyClass longClass = runtime.defineClass("LongRBTree", runtime.getObject(), LONG_ALLOCATOR);
+    longClass.setReifiedClass(LongRBTree.class);
+    longClass.includeModule(runtime.getEnumerable());
+    longClass.defineAnnotatedMethods(LongRBTree.class);
+    longClass.setMarshal(LONG_MARSHAL);
+    runtime.defineClass("LongLongRBTree", longClass, LONG_LONG_ALLOCATOR);
+    return longClass;
+  }
+
+  private static final ObjectAllocator LONG_ALLOCATOR = new ObjectAllocator() {
+    public IRubyObject allocate(Ruby runtime, RubyClass klazz) {
+      return new LongRBTree(runtime, klazz, false);
+    }
+  };
+
+  private static final ObjectAllocator LONG_LONG_ALLOCATOR = new ObjectAllocator() {
+    public IRubyObject allocate(Ruby runtime, RubyClass klazz) {
+      return new LongRBTree(runtime, klazz, true);
+    }
+  };
+
+  public LongRBTree(final Ruby ruby, RubyClass rubyClass, boolean longValues) {
+    super(ruby, rubyClass);
+    this.ifNone = ruby.getNil();
+    this.longValues = longValues;
+    slots.allocate(INITIAL_CAPACITY);
+  }
+
+  private final class Slots extends SlotTree {
+    Slots() {
+      super(false);
+    }
+
+    @Override
+    void allocateEntries(int capacity) {
+      keys = new long[capacity];
+      if (longValues) {
+        numbers = new long[capacity];
+      } else {
+        values = new IRubyObject[capacity];
+      }
+    }
+
+    @Override
+    void growEntries(int capacity) {
+      keys = Arrays.copyOf(keys, capacity);
+      if (longValues) {
+        numbers = Arrays.copyOf(numbers, capacity);
+      } else {
+        values = Arrays.copyOf(values, capacity);
+      }
+    }
+
+    @Override
+    void moveEntry(int from, int to) {
+      keys[to] = keys[from];
+      if (longValues) {
+        numbers[to] = numbers[from];
+      } else {
+        values[to] = values[from];
+      }
+    }
+
+    @Override
+    void clearEntry(int i) {
+      if (!longValues) values[i] = null;
+    }
+  }
+
+  private int newSlot(long key, IRubyObject value) {
+    int i = slots.newSlot();
+    keys[i] = key;
+    setValue(i, value);
+    return i;
+  }
+
+  private IRubyObject valueAt(int i) {
+    return longValues ? getRuntime().newFixnum(numbers[i]) : values[i];
+  }
+
+  // value has been through checkValue
+  private void setValue(int i, IRubyObject value) {
+    if (longValues) {
+      numbers[i] = ((RubyFixnum) value).getLongValue();
+    } else {
+      values[i] = value;
+    }
+  }
+
+  private long keyOf(IRubyObject key) {
+    if (key instanceof RubyFixnum) return ((RubyFixnum) key).getLongValue();
+    throw getRuntime().newTypeError(String.format("wrong argument type %s (expected Fixnum)", key.getMetaClass().getRealClass().getName()));
+  }
+
+  private IRubyObject checkValue(IRubyObject value) {
+    if (!longValues || value instanceof RubyFixnum) return value;
+    throw getRuntime().newTypeError(String.format("wrong argument type %s (expected Fixnum)", value.getMetaClass().getRealClass().getName()));
+  }
+
+  private void modify() {
+    checkFrozen();
+  }
+
+  @JRubyMethod(name = "[]", rest = true, meta = true)
+  public static IRubyObject create(final ThreadContext context, IRubyObject recv, IRubyObject[] args, Block block) {
+    RubyClass klass = (RubyClass) recv;
+    Ruby runtime = context.runtime;
+    final LongRBTree tree = (LongRBTree) klass.allocate();
+    if (args.length == 1) {
+      IRubyObject tmp = TypeConverter.convertToTypeWithCheck(args[0], runtime.getHash(), "to_hash");
+      if (!tmp.isNil()) {
+        ((RubyHash) tmp).visitAll(new RubyHash.Visitor() {
+          @Override
+          public void visit(IRubyObject key, IRubyObject val) {
+            tree.put(tree.keyOf(key), tree.checkValue(val));
+          }
+        });
+        return tree;
+      }
+    }
+    if (args.length % 2 != 0) throw runtime.newArgumentError("odd number of arguments");
+    for (int i = 0; i < args.length; i += 2) {
+      tree.put(tree.keyOf(args[i]), tree.checkValue(args[i + 1]));
+    }
+    return tree;
+  }
+
+  @JRubyMethod(name = "initialize", optional = 1)
+  public IRubyObject initialize(ThreadContext context, IRubyObject[] args, Block block) {
+    if (block.isGiven()) {
+      if (args.length > 0) throw getRuntime().newArgumentError("wrong number arguments");
+      this.ifNone = getRuntime().newProc(Block.Type.PROC, block);
+      this.procDefault = true;
+    } else {
+      Arity.checkArgumentCount(getRuntime(), args, 0, 1);
+      if (args.length == 1) this.ifNone = args[0];
+    }
+    return this;
+  }
+
+  @JRubyMethod(name = "initialize_copy", required = 1)
+  public IRubyObject initialize_copy(ThreadContext context, IRubyObject other) {
+    if (this == other) return this;
+    if (!(other instanceof LongRBTree) || ((LongRBTree) other).longValues != longValues) {
+      throw getRuntime().newTypeError("wrong argument class");
+    }
+    modify();
+    LongRBTree from = (LongRBTree) other;
+    keys = from.keys.clone();
+    if (longValues) {
+      numbers = from.numbers.clone();
+    } else {
+      values = from.values.clone();
+    }
+    slots.copyFrom(from.slots);
+    size = from.size;
+    modCount++;
+    ifNone = from.ifNone;
+    procDefault = from.procDefault;
+    return this;
+  }
+
+  private void put(long key, IRubyObject value) {
+    int y = NIL;
+    int x = slots.root;
+    boolean less = false;
+    while (x != NIL) {
+      y = x;
+      if (key == keys[x]) {
+        setValue(x, value);
+        return;
+      }
+      less = key < keys[x];
+      x = less ? slots.left[x] : slots.right[x];
+    }
+    slots.insert(newSlot(key, value), y, less);
+    size++;
+    modCount++;
+  }
+
+  /**
+   * Removes the entry in slot z; callers take its key and value first,
+   * as z may be given its successor's entry.
+   */
+  private void deleteSlot(int z) {
+    slots.delete(z);
+    size--;
+    modCount++;
+  }
+
+  private int find(long key) {
+    int x = slots.root;
+    while (x != NIL && keys[x] != key) {
+      x = key < keys[x] ? slots.left[x] : slots.right[x];
+    }
+    return x;
+  }
+
+  /**
+   * The slot of the least key not less than key, or greater than it with
+   * strict set; NIL if there is none.
+   */
+  private int ceiling(long key, boolean strict) {
+    int found = NIL;
+    for (int x = slots.root; x != NIL; ) {
+      if (keys[x] > key || (!strict && keys[x] == key)) {
+        found = x;
+        x = slots.left[x];
+      } else {
+        x = slots.right[x];
+      }
+    }
+    return found;
+  }
+
+  /**
+   * The slot of the greatest key not greater than key, or less than it
+   * with strict set; NIL if there is none.
+   */
+  private int floor(long key, boolean strict) {
+    int found = NIL;
+    for (int x = slots.root; x != NIL; ) {
+      if (keys[x] < key || (!strict && keys[x] == key)) {
+        found = x;
+        x = slots.right[x];
+      } else {
+        x = slots.left[x];
+      }
+    }
+    return found;
+  }
+
+  private IRubyObject pairOf(int x) {
+    Ruby runtime = getRuntime();
+    return x == NIL ? runtime.getNil() : runtime.newArray(runtime.newFixnum(keys[x]), valueAt(x));
+  }
+
+  private IRubyObject pairOrDefault(ThreadContext context, int x) {
+    if (x != NIL) return pairOf(x);
+    if (procDefault) return ifNone.callMethod(context, "call", new IRubyObject[] {this, getRuntime().getNil()});
+    return ifNone;
+  }
+
+  @JRubyMethod(name = {"[]=", "store"}, required = 2)
+  public IRubyObject op_aset(ThreadContext context, IRubyObject key, IRubyObject value) {
+    modify();
+    put(keyOf(key), checkValue(value));
+    return value;
+  }
+
+  @JRubyMethod(name = "[]", required = 1)
+  public IRubyObject op_aref(ThreadContext context, IRubyObject key) {
+    int x = find(keyOf(key));
+    return x == NIL ? callMethod(context, "default", key) : valueAt(x);
+  }
+
+  @JRubyMethod(name = {"has_key?", "key?", "include?", "member?"}, required = 1)
+  public IRubyObject has_key_p(ThreadContext context, IRubyObject key) {
+    return getRuntime().newBoolean(find(keyOf(key)) != NIL);
+  }
+
+  /**
+   * Removes the entry with the given key and returns its value, or yields
+   * the key (or returns nil) if there is none.
+   */
+  @JRubyMethod(required = 1)
+  public IRubyObject delete(ThreadContext context, IRubyObject key, Block block) {
+    modify();
+    int x = find(keyOf(key));
+    if (x == NIL) return block.isGiven() ? block.yield(context, key) : context.runtime.getNil();
+    IRubyObject value = valueAt(x);
+    deleteSlot(x);
+    return value;
+  }
+
+  @JRubyMethod(required = 1)
+  public IRubyObject lower_bound(ThreadContext context, IRubyObject key) {
+    return pairOf(ceiling(keyOf(key), false));
+  }
+
+  @JRubyMethod(required = 1)
+  public IRubyObject upper_bound(ThreadContext context, IRubyObject key) {
+    return pairOf(floor(keyOf(key), false));
+  }
+
+  /**
+   * The entries from lower_bound(lower) to upper_bound(upper), or within a
+   * Range; yields each of them if a block is given.
+   */
+  @JRubyMethod(name = "bound", required = 1, optional = 1)
+  public IRubyObject bound(ThreadContext context, IRubyObject[] bounds, Block block) {
+    IRubyObject lower = bounds[0];
+    IRubyObject upper = bounds.length == 2 ? bounds[1] : bounds[0];
+    boolean excludeEnd = false;
+    if (bounds.length == 1 && bounds[0] instanceof RubyRange) {
+      RubyRange range = (RubyRange) bounds[0];
+      lower = range.first(context);
+      upper = range.last(context);
+      excludeEnd = range.exclude_end_p().isTrue();
+    }
+    long to = keyOf(upper);
+    RubyArray ret = context.runtime.newArray();
+    for (int x = ceiling(keyOf(lower), false); x != NIL; ) {
+      long key = keys[x];
+      if (key > to || (excludeEnd && key == to)) break;
+      if (block.isGiven()) {
+        int mod = modCount;
+        block.yieldSpecific(context, context.runtime.newFixnum(key), valueAt(x));
+        x = mod == modCount ? slots.successor(x) : ceiling(key, true);
+      } else {
+        ret.append(pairOf(x));
+        x = slots.successor(x);
+      }
+    }
+    return ret;
+  }
+
+  @JRubyMethod
+  public IRubyObject first(ThreadContext context) {
+    return pairOrDefault(context, slots.minimum(slots.root));
+  }
+
+  @JRubyMethod
+  public IRubyObject last(ThreadContext context) {
+    return pairOrDefault(context, slots.maximum(slots.root));
+  }
+
+  @JRubyMethod
+  public IRubyObject shift(ThreadContext context) {
+    modify();
+    int x = slots.minimum(slots.root);
+    IRubyObject ret = pairOrDefault(context, x);
+    if (x != NIL) deleteSlot(x);
+    return ret;
+  }
+
+  @JRubyMethod
+  public IRubyObject pop(ThreadContext context) {
+    modify();
+    int x = slots.maximum(slots.root);
+    IRubyObject ret = pairOrDefault(context, x);
+    if (x != NIL) deleteSlot(x);
+    return ret;
+  }
+
+  /**
+   * Yields the entries in order. The block may change the tree; if it
+   * adds or removes entries the walk goes on from the next key after the
+   * one it yielded.
+   */
+  @JRubyMethod(name = {"each_pair", "each"})
+  public IRubyObject each(ThreadContext context, Block block) {
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "each");
+    for (int x = slots.minimum(slots.root); x != NIL; ) {
+      long key = keys[x];
+      int mod = modCount;
+      block.yieldSpecific(context, context.runtime.newFixnum(key), valueAt(x));
+      x = mod == modCount ? slots.successor(x) : ceiling(key, true);
+    }
+    return this;
+  }
+
+  @JRubyMethod
+  public IRubyObject reverse_each(ThreadContext context, Block block) {
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "reverse_each");
+    for (int x = slots.maximum(slots.root); x != NIL; ) {
+      long key = keys[x];
+      int mod = modCount;
+      block.yieldSpecific(context, context.runtime.newFixnum(key), valueAt(x));
+      x = mod == modCount ? slots.predecessor(x) : floor(key, true);
+    }
+    return this;
+  }
+
+  @JRubyMethod
+  public IRubyObject keys(ThreadContext context) {
+    RubyArray ret = context.runtime.newArray();
+    for (int x = slots.minimum(slots.root); x != NIL; x = slots.successor(x)) ret.append(context.runtime.newFixnum(keys[x]));
+    return ret;
+  }
+
+  @JRubyMethod
+  public IRubyObject values(ThreadContext context) {
+    RubyArray ret = context.runtime.newArray();
+    for (int x = slots.minimum(slots.root); x != NIL; x = slots.successor(x)) ret.append(valueAt(x));
+    return ret;
+  }
+
+  @JRubyMethod(name = {"size", "length"})
+  public IRubyObject getSize() {
+    return getRuntime().newFixnum(size);
+  }
+
+  @JRubyMethod(name = "empty?")
+  public IRubyObject empty_p(ThreadContext context) {
+    return getRuntime().newBoolean(size == 0);
+  }
+
+  @JRubyMethod
+  public IRubyObject clear(ThreadContext context) {
+    modify();
+    slots.allocate(INITIAL_CAPACITY);
+    size = 0;
+    modCount++;
+    return this;
+  }
+
+  @JRubyMethod(name = "default", optional = 1)
+  public IRubyObject default_value_get(ThreadContext context, IRubyObject[] args) {
+    if (!procDefault) return ifNone;
+    return args.length == 0 ? getRuntime().getNil() : ifNone.callMethod(context, "call", new IRubyObject[] {this, args[0]});
+  }
+
+  @JRubyMethod(name = "inspect")
+  public IRubyObject inspect(ThreadContext context) {
+    Ruby runtime = context.runtime;
+    String name = getMetaClass().getRealClass().getName();
+    if (runtime.isInspecting(this)) return runtime.newString("#<" + name + ": ...>");
+    try {
+      runtime.registerInspecting(this);
+      RubyString str = runtime.newString("#<" + name + ": {");
+      boolean first = true;
+      for (int x = slots.minimum(slots.root); x != NIL; x = slots.successor(x)) {
+        if (!first) str.cat(", ".getBytes());
+        str.cat(Long.toString(keys[x]).getBytes());
+        str.cat("=>".getBytes());
+        str.append(valueAt(x).inspect());
+        first = false;
+      }
+      str.cat("}, default=".getBytes());
+      str.append(ifNone.inspect());
+      str.cat((byte) '>');
+      return str;
+    } finally {
+      runtime.unregisterInspecting(this);
+    }
+  }
+
+  /**
+   * Dumps the entries in key order and the default; a default proc
+   * cannot be dumped. Loading builds the tree straight from the sorted
+   * keys when they are, as a dump always is.
+   */
+  private static final ObjectMarshal LONG_MARSHAL = new ObjectMarshal() {
+    public void marshalTo(Ruby runtime, Object obj, RubyClass recv, MarshalStream output) throws IOException {
+      LongRBTree tree = (LongRBTree) obj;
+      if (tree.procDefault) throw runtime.newArgumentError("cannot dump " + recv.getRealClass().getName() + " with default proc");
+      output.registerLinkTarget(tree);
+      output.writeInt(tree.size);
+      for (int x = tree.slots.minimum(tree.slots.root); x != NIL; x = tree.slots.successor(x)) {
+        output.dumpObject(runtime.newFixnum(tree.keys[x]));
+        output.dumpObject(tree.valueAt(x));
+      }
+      output.dumpObject(tree.ifNone);
+    }
+
+    public Object unmarshalFrom(Ruby runtime, RubyClass type, UnmarshalStream input) throws IOException {
+      final LongRBTree result = (LongRBTree) type.allocate();
+      input.registerLinkTarget(result);
+      int size = input.unmarshalInt();
+      final long[] newKeys = new long[size];
+      final IRubyObject[] newValues = new IRubyObject[size];
+      boolean sorted = true;
+      for (int i = 0; i < size; i++) {
+        newKeys[i] = result.keyOf(input.unmarshalObject());
+        newValues[i] = result.checkValue(input.unmarshalObject());
+        if (i > 0 && newKeys[i - 1] >= newKeys[i]) sorted = false;
+      }
+      if (sorted) {
+        result.slots.allocate(Math.max(size, INITIAL_CAPACITY));
+        result.slots.root = result.slots.buildFromSorted(0, 0, size - 1, MultiRBTree.computeRedLevel(size), new SlotTree.Fill() {
+          void fill(int slot, int index) {
+            result.keys[slot] = newKeys[index];
+            result.setValue(slot, newValues[index]);
+          }
+        });
+        result.size = size;
+      } else {
+        for (int i = 0; i < size; i++) {
+          result.put(newKeys[i], newValues[i]);
+        }
+      }
+      result.ifNone = input.unmarshalObject();
+      return result;
+    }
+  };
+}
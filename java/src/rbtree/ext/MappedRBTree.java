@@ -0,0 +1,760 @@
+package rbtree.ext;
+
+import static org.jruby.RubyEnumerator.enumeratorize;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyFile;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyObject;
+import org.jruby.RubyRange;
+import org.jruby.RubyString;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+import org.jruby.util.JRubyFile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read-only sorted map served from a file MultiRBTree#write_sorted_file
+ * wrote. The file is mapped into memory rather than loaded: opening it
+ * reads only the block index, and a lookup binary searches the index for
+ * a block and scans that block in the mapped file, comparing keys where
+ * they lie and making Ruby objects only of the entries it returns. The
+ * entries stay in the page cache, off the Java heap, shared by every
+ * process that maps the file.
+ *
+ * It has the MultiRBTree methods that read ([], has_key?, lower_bound,
+ * upper_bound, bound, first, last, each, reverse_each, keys, values and
+ * size). A file holds Fixnum keys or String keys, not both, in their
+ * natural order; Strings are ordered by their bytes.
+ *
+ * The file is a header, the entries in blocks of up to BLOCK_SIZE bytes
+ * or BLOCK_ENTRIES entries, and the index: the default value, then for
+ * each block its offset, entry count and first key. A Fixnum key is
+ * written as 8 bytes, a String key as its encoding's tag, its length and
+ * its bytes, values as TreeDump writes them. No block crosses a multiple
+ * of SEGMENT, so each lies within one of the buffers the file is mapped
+ * in. The header goes in last, and the file is written under another
+ * name and renamed, so a reader never sees half a file.
+ */
+@JRubyClass(name = "MappedRBTree")
+public class MappedRBTree extends RubyObject {
+  private static final byte[] MAGIC = { 'R', 'B', 'S', 1 };
+  private static final int HEADER_SIZE = 24;
+  private static final int BLOCK_SIZE = 4096;
+  private static final int BLOCK_ENTRIES = 64;
+  private static final int SEGMENT = 1 << 30;
+
+  private static final int MULTI = 1;
+
+  // the keys of an empty file have no type
+  private static final int NO_KEYS = 0;
+  private static final int FIXNUM_KEYS = 1;
+  private static final int STRING_KEYS = 2;
+
+  private String path;
+  private boolean dupes;
+  private int keyType;
+  private int size;
+  private IRubyObject ifNone;
+  // null once closed
+  private volatile ByteBuffer[] segments;
+
+  // the block index: where each block starts in the file, the rank of
+  // its first entry (with the size after the last block) and its first key
+  private long[] offsets = new long[0];
+  private int[] starts = { 0 };
+  private long[] firstNumbers;
+  private byte[][] firstBytes;
+
+  public static RubyClass createMappedRBTreeClass(Ruby runtime) {
+    RubyClass mappedClass = runtime.defineClass("MappedRBTree", runtime.getObject(), MAPPED_ALLOCATOR);
+    mappedClass.setReifiedClass(MappedRBTree.class);
+    mappedClass.includeModule(runtime.getEnumerable());
+    mappedClass.defineAnnotatedMethods(MappedRBTree.class);
+    return mappedClass;
+  }
+
+  private static final ObjectAllocator MAPPED_ALLOCATOR = new ObjectAllocator() {
+    public IRubyObject allocate(Ruby runtime, RubyClass klazz) {
+      return new MappedRBTree(runtime, klazz);
+    }
+  };
+
+  public MappedRBTree(final Ruby ruby, RubyClass rubyClass) {
+    super(ruby, rubyClass);
+    this.ifNone = ruby.getNil();
+  }
+
+  static File fileOf(ThreadContext context, IRubyObject path) {
+    return JRubyFile.create(context.runtime.getCurrentDirectory(), RubyFile.get_path(context, path).asJavaString());
+  }
+
+  @JRubyMethod(meta = true)
+  public static IRubyObject open(ThreadContext context, IRubyObject recv, IRubyObject path) {
+    MappedRBTree tree = (MappedRBTree) ((RubyClass) recv).allocate();
+    tree.initialize(context, path);
+    return tree;
+  }
+
+  @JRubyMethod(name = "initialize", required = 1)
+  public IRubyObject initialize(ThreadContext context, IRubyObject path) {
+    Ruby runtime = context.runtime;
+    File file = fileOf(context, path);
+    this.path = file.getPath();
+    RandomAccessFile in;
+    try {
+      in = new RandomAccessFile(file, "r");
+    } catch (FileNotFoundException e) {
+      throw runtime.newErrnoENOENTError(this.path);
+    }
+    try {
+      FileChannel channel = in.getChannel();
+      long length = channel.size();
+      if (length < HEADER_SIZE) throw notSorted(runtime);
+      ByteBuffer header = read(channel, 0, HEADER_SIZE);
+      byte[] magic = new byte[MAGIC.length];
+      header.get(magic);
+      if (!Arrays.equals(magic, MAGIC)) throw notSorted(runtime);
+      dupes = (header.get() & MULTI) != 0;
+      keyType = header.get();
+      header.getShort();
+      long count = header.getLong();
+      long indexOffset = header.getLong();
+      if (keyType < NO_KEYS || keyType > STRING_KEYS || count < 0 || count > Integer.MAX_VALUE
+          || indexOffset < HEADER_SIZE || indexOffset >= length || length - indexOffset > Integer.MAX_VALUE) {
+        throw corrupt(runtime);
+      }
+      readIndex(context, read(channel, indexOffset, (int) (length - indexOffset)), indexOffset);
+      if (starts[offsets.length] != count) throw corrupt(runtime);
+      size = (int) count;
+      ByteBuffer[] mapped = new ByteBuffer[(int) ((indexOffset + SEGMENT - 1) / SEGMENT)];
+      for (int i = 0; i < mapped.length; i++) {
+        long from = (long) i * SEGMENT;
+        mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(SEGMENT, indexOffset - from));
+      }
+      segments = mapped;
+    } catch (IOException e) {
+      throw runtime.newIOErrorFromException(e);
+    } finally {
+      try {
+        // the mappings outlive the channel
+        in.close();
+      } catch (IOException e) {
+      }
+    }
+    return this;
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("unexpected end of file");
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private RaiseException notSorted(Ruby runtime) {
+    return runtime.newArgumentError(path + " is not a sorted file, or one of another version");
+  }
+
+  private RaiseException corrupt(Ruby runtime) {
+    return runtime.newArgumentError(path + " is corrupt");
+  }
+
+  private void readIndex(ThreadContext context, final ByteBuffer index, long indexOffset) {
+    final Ruby runtime = context.runtime;
+    TreeDump.Source in = new TreeDump.Source(context) {
+      ByteBuffer need(int length) {
+        if (index.remaining() < length) throw corrupt();
+        return index;
+      }
+
+      RaiseException corrupt() {
+        return MappedRBTree.this.corrupt(runtime);
+      }
+    };
+    ifNone = in.getValue();
+    int blocks = in.getInt();
+    // a block record takes at least 13 bytes
+    if (blocks < 0 || blocks > index.remaining() / 13 || (blocks == 0) != (keyType == NO_KEYS)) throw corrupt(runtime);
+    offsets = new long[blocks];
+    starts = new int[blocks + 1];
+    if (keyType == FIXNUM_KEYS) firstNumbers = new long[blocks];
+    if (keyType == STRING_KEYS) firstBytes = new byte[blocks][];
+    for (int i = 0; i < blocks; i++) {
+      offsets[i] = in.getLong();
+      int entries = in.getInt();
+      if (entries <= 0 || offsets[i] < (i == 0 ? HEADER_SIZE : offsets[i - 1] + 1) || offsets[i] >= indexOffset) throw corrupt(runtime);
+      starts[i + 1] = starts[i] + entries;
+      if (starts[i + 1] < 0) throw corrupt(runtime);
+      if (keyType == FIXNUM_KEYS) {
+        firstNumbers[i] = in.getLong();
+      } else {
+        in.getByte();
+        firstBytes[i] = in.getBytes(in.getInt());
+      }
+    }
+    for (int i = 0; i < blocks; i++) {
+      long end = i + 1 < blocks ? offsets[i + 1] : indexOffset;
+      if (offsets[i] / SEGMENT != (end - 1) / SEGMENT) throw corrupt(runtime);
+    }
+    if (index.hasRemaining()) throw corrupt(runtime);
+  }
+
+  private ByteBuffer[] segments() {
+    ByteBuffer[] mapped = segments;
+    if (mapped == null) throw getRuntime().newIOError("closed sorted file");
+    return mapped;
+  }
+
+  /**
+   * A key looked up, as the file's keys are compared: a long or the
+   * bytes of a String.
+   */
+  private static final class Probe {
+    final long number;
+    final byte[] bytes;
+
+    Probe(long number, byte[] bytes) {
+      this.number = number;
+      this.bytes = bytes;
+    }
+  }
+
+  private Probe probe(IRubyObject key) {
+    if (keyType == FIXNUM_KEYS && key instanceof RubyFixnum) return new Probe(((RubyFixnum) key).getLongValue(), null);
+    if (keyType == STRING_KEYS && key instanceof RubyString) {
+      ByteList bytes = ((RubyString) key).getByteList();
+      return new Probe(0, Arrays.copyOfRange(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getBegin() + bytes.getRealSize()));
+    }
+    throw getRuntime().newArgumentError("comparison of " + key.getMetaClass().getRealClass().getName()
+        + " with " + (keyType == FIXNUM_KEYS ? "Fixnum" : "String") + " failed");
+  }
+
+  private static int compareBytes(ByteBuffer buffer, int at, int length, byte[] bytes) {
+    int n = Math.min(length, bytes.length);
+    for (int i = 0; i < n; i++) {
+      int d = (buffer.get(at + i) & 0xff) - (bytes[i] & 0xff);
+      if (d != 0) return d < 0 ? -1 : 1;
+    }
+    return length < bytes.length ? -1 : length > bytes.length ? 1 : 0;
+  }
+
+  private int compareFirst(int block, Probe probe) {
+    if (keyType == FIXNUM_KEYS) {
+      long number = firstNumbers[block];
+      return number < probe.number ? -1 : number > probe.number ? 1 : 0;
+    }
+    return compareBytes(ByteBuffer.wrap(firstBytes[block]), 0, firstBytes[block].length, probe.bytes);
+  }
+
+  /**
+   * The last block whose first key is less than probe, or not greater
+   * with inclusive set; -1 if there is none.
+   */
+  private int blockBefore(Probe probe, boolean inclusive) {
+    int low = 0, high = offsets.length - 1, found = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareFirst(mid, probe);
+      if (cmp < 0 || (inclusive && cmp == 0)) {
+        found = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Reads the entries in order from the start of a block on. It has a
+   * buffer of its own over the mapped segment, so lookups on many threads
+   * do not get in each other's way.
+   */
+  private final class Cursor extends TreeDump.Source {
+    private ByteBuffer buffer;
+    private int block;
+    int keyAt;
+    int valueAt;
+
+    Cursor(ThreadContext context, int block) {
+      super(context);
+      seek(block);
+    }
+
+    ByteBuffer need(int length) {
+      if (buffer.remaining() < length) throw corrupt();
+      return buffer;
+    }
+
+    RaiseException corrupt() {
+      return MappedRBTree.this.corrupt(context.runtime);
+    }
+
+    void skip(int length) {
+      if (length < 0) throw corrupt();
+      need(length).position(buffer.position() + length);
+    }
+
+    void seek(int to) {
+      block = to;
+      buffer = segments()[(int) (offsets[to] / SEGMENT)].duplicate();
+      buffer.position((int) (offsets[to] % SEGMENT));
+      read();
+    }
+
+    // takes in the entry at the buffer's position and moves past it
+    private void read() {
+      keyAt = buffer.position();
+      if (keyType == FIXNUM_KEYS) {
+        skip(8);
+      } else {
+        getByte();
+        skip(getInt());
+      }
+      valueAt = buffer.position();
+      skipValue();
+    }
+
+    /**
+     * Moves to the next entry of this block, or the first of the next
+     * with crossBlocks set; false at the end.
+     */
+    boolean next(int rank, boolean crossBlocks) {
+      if (rank + 1 < starts[block + 1]) {
+        read();
+        return true;
+      }
+      if (!crossBlocks || block + 1 == offsets.length) return false;
+      seek(block + 1);
+      return true;
+    }
+
+    int compare(int at, Probe probe) {
+      if (keyType == FIXNUM_KEYS) {
+        long number = buffer.getLong(at);
+        return number < probe.number ? -1 : number > probe.number ? 1 : 0;
+      }
+      return compareBytes(buffer, at + 5, buffer.getInt(at + 1), probe.bytes);
+    }
+
+    IRubyObject key(int at) {
+      if (keyType == FIXNUM_KEYS) return context.runtime.newFixnum(buffer.getLong(at));
+      int position = buffer.position();
+      buffer.position(at);
+      IRubyObject key = string(getByte());
+      // as []= stores them
+      key.setFrozen(true);
+      buffer.position(position);
+      return key;
+    }
+
+    IRubyObject value(int at) {
+      int position = buffer.position();
+      buffer.position(at);
+      IRubyObject value = getValue();
+      buffer.position(position);
+      return value;
+    }
+
+    RubyArray pair() {
+      return context.runtime.newArray(key(keyAt), value(valueAt));
+    }
+
+    /**
+     * Moves to block and returns where each of its entries' key and value
+     * start, for walking it backward.
+     */
+    int[] positions(int to) {
+      seek(to);
+      int first = starts[to], n = starts[to + 1] - first;
+      int[] at = new int[2 * n];
+      for (int i = 0; i < n; i++) {
+        if (i > 0) next(first + i - 1, false);
+        at[2 * i] = keyAt;
+        at[2 * i + 1] = valueAt;
+      }
+      return at;
+    }
+  }
+
+  /**
+   * A cursor on the first entry whose key is not less than probe, and
+   * its rank; null if there is none.
+   */
+  private Cursor lowerBound(ThreadContext context, Probe probe, int[] rank) {
+    int block = Math.max(blockBefore(probe, false), 0);
+    Cursor cursor = new Cursor(context, block);
+    rank[0] = starts[block];
+    while (cursor.compare(cursor.keyAt, probe) < 0) {
+      if (!cursor.next(rank[0], true)) return null;
+      rank[0]++;
+    }
+    return cursor;
+  }
+
+  @JRubyMethod(name = "[]", required = 1)
+  public IRubyObject op_aref(ThreadContext context, IRubyObject key) {
+    if (size > 0) {
+      Probe probe = probe(key);
+      Cursor cursor = lowerBound(context, probe, new int[1]);
+      if (cursor != null && cursor.compare(cursor.keyAt, probe) == 0) return cursor.value(cursor.valueAt);
+    }
+    return callMethod(context, "default", key);
+  }
+
+  @JRubyMethod(name = {"has_key?", "key?", "include?", "member?"}, required = 1)
+  public IRubyObject has_key_p(ThreadContext context, IRubyObject key) {
+    if (size == 0) return context.runtime.getFalse();
+    Probe probe = probe(key);
+    Cursor cursor = lowerBound(context, probe, new int[1]);
+    return context.runtime.newBoolean(cursor != null && cursor.compare(cursor.keyAt, probe) == 0);
+  }
+
+  @JRubyMethod(required = 1)
+  public IRubyObject lower_bound(ThreadContext context, IRubyObject key) {
+    if (size == 0) return context.runtime.getNil();
+    Cursor cursor = lowerBound(context, probe(key), new int[1]);
+    return cursor == null ? context.runtime.getNil() : cursor.pair();
+  }
+
+  @JRubyMethod(required = 1)
+  public IRubyObject upper_bound(ThreadContext context, IRubyObject key) {
+    if (size == 0) return context.runtime.getNil();
+    Probe probe = probe(key);
+    // the entries of the next block are all greater
+    int block = blockBefore(probe, true);
+    if (block < 0) return context.runtime.getNil();
+    Cursor cursor = new Cursor(context, block);
+    int[] at = cursor.positions(block);
+    int last = 0;
+    while (last + 2 < at.length && cursor.compare(at[last + 2], probe) <= 0) last += 2;
+    return context.runtime.newArray(cursor.key(at[last]), cursor.value(at[last + 1]));
+  }
+
+  @JRubyMethod(name = "bound", required = 1, optional = 1)
+  public IRubyObject bound(ThreadContext context, IRubyObject[] bounds, Block block) {
+    IRubyObject lower = bounds[0];
+    IRubyObject upper = bounds.length == 2 ? bounds[1] : bounds[0];
+    boolean excludeEnd = false;
+    if (bounds.length == 1 && bounds[0] instanceof RubyRange) {
+      RubyRange range = (RubyRange) bounds[0];
+      lower = range.first(context);
+      upper = range.last(context);
+      excludeEnd = range.exclude_end_p().isTrue();
+    }
+    RubyArray ret = context.runtime.newArray();
+    if (size == 0) return ret;
+    Probe to = probe(upper);
+    int[] rank = new int[1];
+    Cursor cursor = lowerBound(context, probe(lower), rank);
+    if (cursor == null) return ret;
+    do {
+      int cmp = cursor.compare(cursor.keyAt, to);
+      if (cmp > 0 || (excludeEnd && cmp == 0)) break;
+      if (block.isGiven()) {
+        block.yieldSpecific(context, cursor.key(cursor.keyAt), cursor.value(cursor.valueAt));
+      } else {
+        ret.append(cursor.pair());
+      }
+    } while (cursor.next(rank[0]++, true));
+    return ret;
+  }
+
+  @JRubyMethod
+  public IRubyObject first(ThreadContext context) {
+    if (size == 0) return ifNone;
+    return new Cursor(context, 0).pair();
+  }
+
+  @JRubyMethod
+  public IRubyObject last(ThreadContext context) {
+    if (size == 0) return ifNone;
+    Cursor cursor = new Cursor(context, offsets.length - 1);
+    int[] at = cursor.positions(offsets.length - 1);
+    return context.runtime.newArray(cursor.key(at[at.length - 2]), cursor.value(at[at.length - 1]));
+  }
+
+  @JRubyMethod(name = {"each_pair", "each"})
+  public IRubyObject each(ThreadContext context, Block block) {
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "each");
+    if (size == 0) return this;
+    Cursor cursor = new Cursor(context, 0);
+    int rank = 0;
+    do {
+      block.yieldSpecific(context, cursor.key(cursor.keyAt), cursor.value(cursor.valueAt));
+    } while (cursor.next(rank++, true));
+    return this;
+  }
+
+  @JRubyMethod
+  public IRubyObject reverse_each(ThreadContext context, Block block) {
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "reverse_each");
+    if (size == 0) return this;
+    Cursor cursor = new Cursor(context, offsets.length - 1);
+    for (int b = offsets.length - 1; b >= 0; b--) {
+      int[] at = cursor.positions(b);
+      for (int i = at.length - 2; i >= 0; i -= 2) {
+        block.yieldSpecific(context, cursor.key(at[i]), cursor.value(at[i + 1]));
+      }
+    }
+    return this;
+  }
+
+  @JRubyMethod
+  public IRubyObject keys(ThreadContext context) {
+    RubyArray ret = context.runtime.newArray();
+    if (size == 0) return ret;
+    Cursor cursor = new Cursor(context, 0);
+    int rank = 0;
+    do {
+      ret.append(cursor.key(cursor.keyAt));
+    } while (cursor.next(rank++, true));
+    return ret;
+  }
+
+  @JRubyMethod
+  public IRubyObject values(ThreadContext context) {
+    RubyArray ret = context.runtime.newArray();
+    if (size == 0) return ret;
+    Cursor cursor = new Cursor(context, 0);
+    int rank = 0;
+    do {
+      ret.append(cursor.value(cursor.valueAt));
+    } while (cursor.next(rank++, true));
+    return ret;
+  }
+
+  @JRubyMethod(name = {"size", "length"})
+  public IRubyObject size(ThreadContext context) {
+    return context.runtime.newFixnum(size);
+  }
+
+  @JRubyMethod(name = "empty?")
+  public IRubyObject empty_p(ThreadContext context) {
+    return context.runtime.newBoolean(size == 0);
+  }
+
+  @JRubyMethod(name = "default", optional = 1)
+  public IRubyObject default_value_get(ThreadContext context, IRubyObject[] args) {
+    return ifNone;
+  }
+
+  @JRubyMethod
+  public IRubyObject path(ThreadContext context) {
+    return context.runtime.newString(path);
+  }
+
+  /**
+   * Lets go of the mapped file; reading afterwards raises IOError. The
+   * memory is unmapped when the buffers are collected.
+   */
+  @JRubyMethod
+  public IRubyObject close(ThreadContext context) {
+    segments = null;
+    return context.runtime.getNil();
+  }
+
+  @JRubyMethod(name = "closed?")
+  public IRubyObject closed_p(ThreadContext context) {
+    return context.runtime.newBoolean(segments == null);
+  }
+
+  /**
+   * Shows the path and the size rather than the entries, there may be
+   * more than fit on a screen.
+   */
+  @JRubyMethod(name = "inspect")
+  public IRubyObject inspect(ThreadContext context) {
+    return context.runtime.newString("#<" + getMetaClass().getRealClass().getName() + ": " + path + ", size=" + size + ">");
+  }
+
+  /**
+   * Writes tree to path as a sorted file, see MultiRBTree#write_sorted_file.
+   */
+  static void write(ThreadContext context, MultiRBTree tree, IRubyObject path) {
+    Ruby runtime = context.runtime;
+    File file = fileOf(context, path);
+    File temp = new File(file.getPath() + ".tmp");
+    tree.lockRead();
+    try {
+      if (tree.cmpProc != null || tree.sortKeyProc != null)
+        throw runtime.newArgumentError("can't write a tree with compare proc to a sorted file");
+      if (tree.hasDefaultProc())
+        throw runtime.newTypeError("can't write " + tree.getMetaClass().getRealClass().getName() + " with default proc to a sorted file");
+      writeEntries(context, tree, temp);
+    } finally {
+      tree.unlockRead();
+    }
+    // on some systems renaming does not replace
+    if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+      temp.delete();
+      throw runtime.newIOError("can't rename " + temp.getPath() + " to " + file.getPath());
+    }
+  }
+
+  private static void writeEntries(ThreadContext context, MultiRBTree tree, File temp) {
+    Ruby runtime = context.runtime;
+    boolean done = false;
+    RandomAccessFile out = null;
+    try {
+      out = new RandomAccessFile(temp, "rw");
+      out.setLength(0);
+      final Writer writer = new Writer(context, out.getChannel());
+      tree.visitAll(new MultiRBTree.Visitor() {
+        public void visit(IRubyObject key, IRubyObject value) {
+          writer.add(key, value);
+        }
+      });
+      writer.finish(tree.ifNone, tree.dupes);
+      out.close();
+      done = true;
+    } catch (IOException e) {
+      throw runtime.newIOErrorFromException(e);
+    } finally {
+      if (!done) {
+        try {
+          if (out != null) out.close();
+        } catch (IOException e) {
+        }
+        temp.delete();
+      }
+    }
+  }
+
+  /**
+   * A buffer that grows to take whatever is put in it.
+   */
+  private static final class Growing extends TreeDump.Sink {
+    Growing(ThreadContext context, int capacity) {
+      super(context, ByteBuffer.allocate(capacity));
+    }
+
+    void room(int length) {
+      if (buffer.remaining() >= length) return;
+      long capacity = Math.max(2L * buffer.capacity(), (long) buffer.position() + length);
+      ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(capacity, Integer.MAX_VALUE - 8));
+      buffer.flip();
+      buffer = bigger.put(buffer);
+    }
+  }
+
+  /**
+   * Puts the entries into blocks and writes each when it is full, while
+   * building the index, which goes in at the end with the header.
+   */
+  private static final class Writer {
+    private final ThreadContext context;
+    private final FileChannel channel;
+    private final Growing block;
+    private final Growing index;
+    private int keyType = NO_KEYS;
+    private long offset = HEADER_SIZE;
+    private long count;
+    private int blocks;
+    private int entries;
+    private IRubyObject firstKey;
+
+    Writer(ThreadContext context, FileChannel channel) {
+      this.context = context;
+      this.channel = channel;
+      this.block = new Growing(context, 2 * BLOCK_SIZE);
+      this.index = new Growing(context, BLOCK_SIZE);
+    }
+
+    void add(IRubyObject key, IRubyObject value) {
+      int type = key instanceof RubyFixnum ? FIXNUM_KEYS : TreeDump.isPlainString(context, key) ? STRING_KEYS : NO_KEYS;
+      if (type == NO_KEYS)
+        throw context.runtime.newTypeError("can't write " + key.getMetaClass().getRealClass().getName() + " keys to a sorted file");
+      if (keyType != NO_KEYS && type != keyType)
+        throw context.runtime.newTypeError("can't write Fixnum and String keys to one sorted file");
+      keyType = type;
+      if (entries == 0) firstKey = key;
+      putKey(block, key);
+      block.putValue(value);
+      entries++;
+      count++;
+      if (block.buffer.position() >= BLOCK_SIZE || entries == BLOCK_ENTRIES) flushBlock();
+    }
+
+    private void putKey(TreeDump.Sink sink, IRubyObject key) {
+      if (keyType == FIXNUM_KEYS) {
+        sink.putLong(((RubyFixnum) key).getLongValue());
+      } else {
+        sink.putBytes(TreeDump.stringTag((RubyString) key), ((RubyString) key).getByteList());
+      }
+    }
+
+    private void flushBlock() {
+      int length = block.buffer.position();
+      if (length > SEGMENT) throw context.runtime.newArgumentError("entries too large for a sorted file");
+      // start over at the next segment rather than straddle it
+      if (offset / SEGMENT != (offset + length - 1) / SEGMENT) offset = (offset / SEGMENT + 1) * SEGMENT;
+      index.putLong(offset);
+      index.putInt(entries);
+      putKey(index, firstKey);
+      block.buffer.flip();
+      write(block.buffer, offset);
+      block.buffer.clear();
+      offset += length;
+      blocks++;
+      entries = 0;
+    }
+
+    void finish(IRubyObject ifNone, boolean dupes) {
+      if (entries > 0) flushBlock();
+      long indexOffset = offset;
+      Growing head = new Growing(context, 64);
+      head.putValue(ifNone);
+      head.putInt(blocks);
+      head.buffer.flip();
+      offset += head.buffer.remaining();
+      write(head.buffer, indexOffset);
+      index.buffer.flip();
+      write(index.buffer, offset);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.put(MAGIC);
+      header.put((byte) (dupes ? MULTI : 0));
+      header.put((byte) keyType);
+      header.putShort((short) 0);
+      header.putLong(count);
+      header.putLong(indexOffset);
+      header.flip();
+      try {
+        // the entries are on disk before the header that vouches for them
+        channel.force(false);
+        write(header, 0);
+        channel.force(false);
+      } catch (IOException e) {
+        throw context.runtime.newIOErrorFromException(e);
+      }
+    }
+
+    private void write(ByteBuffer buffer, long position) {
+      try {
+        while (buffer.hasRemaining()) {
+          position += channel.write(buffer, position);
+        }
+      } catch (IOException e) {
+        throw context.runtime.newIOErrorFromException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,738 @@
+package rbtree.ext;
+
+import org.jruby.Ruby;
+import org.jruby.RubyObject;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyHash;
+import org.jruby.RubyArray;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.anno.JRubyClass;
+
+/**
+ * MultiRBTree with a B+tree underneath. Leaves hold up to ORDER entries in
+ * plain arrays and are linked both ways for iteration, inner pages hold up
+ * to ORDER children with the entry count of each, so a lookup is a binary
+ * search per page and a few page hops instead of one hop and one <=> per
+ * level of a binary tree.
+ *
+ * In Ruby it is MultiBTreeMap, a subclass of MultiRBTree, and BTreeMap,
+ * which like RBTree does not keep duplicate keys. Only the primitives
+ * MultiRBTree is written against are overridden; the Node they hand back
+ * is a view of one leaf slot that also knows its rank, and a view passed
+ * to internalDelete is found again by that rank, which stays right for
+ * the earlier entries when deleting backward as delete_if does.
+ */
+@JRubyClass(name = "MultiBTreeMap", parent = "MultiRBTree")
+public class MultiBTreeMap extends MultiRBTree {
+  static final int ORDER = 64;
+  private static final int MIN = ORDER / 2;
+  // a tree of depth 16 with pages at least half full holds far more than 2^31 entries
+  private static final int MAX_DEPTH = 16;
+
+  private Page root = new Leaf();
+  // the inner pages and child indexes from the root down to the leaf of the last descent
+  private final Inner[] path = new Inner[MAX_DEPTH];
+  private final int[] pathIndex = new int[MAX_DEPTH];
+  private int depth;
+  // rank of the first entry of the leaf the last descent ended in
+  private int leafRank;
+
+  public static RubyClass createMultiBTreeMapClass(Ruby runtime) {
+    RubyClass btreeClass = runtime.defineClass("MultiBTreeMap", runtime.getClass("MultiRBTree"), BTREE_ALLOCATOR);
+    btreeClass.setReifiedClass(MultiBTreeMap.class);
+    btreeClass.setMarshal(RBTREE_MARSHAL);
+    return btreeClass;
+  }
+
+  private static final ObjectAllocator BTREE_ALLOCATOR = new ObjectAllocator() {
+    public IRubyObject allocate(Ruby runtime, RubyClass klazz) {
+      return new MultiBTreeMap(runtime, klazz);
+    }
+  };
+
+  public MultiBTreeMap(final Ruby ruby, RubyClass rubyClass) {
+    super(ruby, rubyClass);
+    this.dupes = getMetaClass().getRealClass().getName().equals("MultiBTreeMap");
+  }
+
+  private static abstract class Page {
+    int size;
+  }
+
+  private static final class Leaf extends Page {
+    final IRubyObject[] keys = new IRubyObject[ORDER];
+    final IRubyObject[] values = new IRubyObject[ORDER];
+    // only allocated once readjust_by is in effect
+    IRubyObject[] sortKeys;
+    Leaf prev;
+    Leaf next;
+
+    RubyObject sortKey(int i) {
+      return (RubyObject) (sortKeys == null ? keys[i] : sortKeys[i]);
+    }
+
+    void insert(int i, IRubyObject key, IRubyObject value, IRubyObject sortKey) {
+      System.arraycopy(keys, i, keys, i + 1, size - i);
+      System.arraycopy(values, i, values, i + 1, size - i);
+      keys[i] = key;
+      values[i] = value;
+      if (sortKeys != null) {
+        System.arraycopy(sortKeys, i, sortKeys, i + 1, size - i);
+        sortKeys[i] = sortKey;
+      }
+      size += 1;
+    }
+
+    void remove(int i) {
+      int moved = size - i - 1;
+      System.arraycopy(keys, i + 1, keys, i, moved);
+      System.arraycopy(values, i + 1, values, i, moved);
+      if (sortKeys != null) System.arraycopy(sortKeys, i + 1, sortKeys, i, moved);
+      size -= 1;
+      keys[size] = values[size] = null;
+      if (sortKeys != null) sortKeys[size] = null;
+    }
+
+    /**
+     * Moves the entries from index from on to the front of other, which
+     * must have room for them.
+     */
+    void moveTo(int from, Leaf other) {
+      int moved = size - from;
+      System.arraycopy(other.keys, 0, other.keys, moved, other.size);
+      System.arraycopy(other.values, 0, other.values, moved, other.size);
+      System.arraycopy(keys, from, other.keys, 0, moved);
+      System.arraycopy(values, from, other.values, 0, moved);
+      if (sortKeys != null) {
+        if (other.sortKeys == null) other.sortKeys = new IRubyObject[ORDER];
+        System.arraycopy(other.sortKeys, 0, other.sortKeys, moved, other.size);
+        System.arraycopy(sortKeys, from, other.sortKeys, 0, moved);
+      }
+      for (int i = from; i < size; i++) {
+        keys[i] = values[i] = null;
+        if (sortKeys != null) sortKeys[i] = null;
+      }
+      other.size += moved;
+      size = from;
+    }
+
+    void append(Leaf other) {
+      System.arraycopy(other.keys, 0, keys, size, other.size);
+      System.arraycopy(other.values, 0, values, size, other.size);
+      if (other.sortKeys != null) {
+        if (sortKeys == null) sortKeys = new IRubyObject[ORDER];
+        System.arraycopy(other.sortKeys, 0, sortKeys, size, other.size);
+      }
+      size += other.size;
+    }
+  }
+
+  private static final class Inner extends Page {
+    final Page[] children = new Page[ORDER];
+    // entries under each child
+    final int[] counts = new int[ORDER];
+    // separators[i] sorts before or equal to everything under children[i]
+    // and after or equal to everything under children[i - 1], [0] is unused
+    final IRubyObject[] separators = new IRubyObject[ORDER];
+
+    void insert(int i, Page child, int count, IRubyObject separator) {
+      System.arraycopy(children, i, children, i + 1, size - i);
+      System.arraycopy(counts, i, counts, i + 1, size - i);
+      System.arraycopy(separators, i, separators, i + 1, size - i);
+      children[i] = child;
+      counts[i] = count;
+      separators[i] = separator;
+      size += 1;
+    }
+
+    void remove(int i) {
+      int moved = size - i - 1;
+      System.arraycopy(children, i + 1, children, i, moved);
+      System.arraycopy(counts, i + 1, counts, i, moved);
+      System.arraycopy(separators, i + 1, separators, i, moved);
+      size -= 1;
+      children[size] = null;
+      counts[size] = 0;
+      separators[size] = null;
+    }
+
+    int total() {
+      int ret = 0;
+      for (int i = 0; i < size; i++) ret += counts[i];
+      return ret;
+    }
+  }
+
+  /**
+   * A leaf slot as MultiRBTree sees it, with its rank in the whole tree.
+   */
+  private static final class Entry extends Node {
+    final Leaf leaf;
+    final int index;
+    final int rank;
+
+    Entry(Leaf leaf, int index, int rank) {
+      super(leaf.keys[index], leaf.values[index]);
+      this.leaf = leaf;
+      this.index = index;
+      this.rank = rank;
+    }
+
+    @Override
+    public RubyObject getSortKey() {
+      return leaf.sortKey(index);
+    }
+
+    @Override
+    public void setValue(IRubyObject val) {
+      super.setValue(val);
+      leaf.values[index] = val;
+    }
+  }
+
+  /**
+   * Number of children of an inner page, after the first, whose separator
+   * sorts before the key (or before or equal to it when inclusive is set),
+   * which is the child to descend into.
+   */
+  private int childIndex(ThreadContext context, Inner inner, RubyObject sortKey, int type, boolean inclusive) {
+    int lo = 1;
+    int hi = inner.size - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int ret = compare(context, type, (RubyObject) inner.separators[mid], sortKey);
+      if (ret < 0 || inclusive && ret == 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo - 1;
+  }
+
+  /**
+   * Number of entries of a leaf that sort before the key, or before or
+   * equal to it when inclusive is set.
+   */
+  private int leafIndex(ThreadContext context, Leaf leaf, RubyObject sortKey, int type, boolean inclusive) {
+    int lo = 0;
+    int hi = leaf.size - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int ret = compare(context, type, leaf.sortKey(mid), sortKey);
+      if (ret < 0 || inclusive && ret == 0) {
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  private Leaf descend(ThreadContext context, RubyObject sortKey, int type, boolean inclusive) {
+    Page page = root;
+    depth = 0;
+    leafRank = 0;
+    while (page instanceof Inner) {
+      Inner inner = (Inner) page;
+      int i = childIndex(context, inner, sortKey, type, inclusive);
+      for (int j = 0; j < i; j++) leafRank += inner.counts[j];
+      path[depth] = inner;
+      pathIndex[depth++] = i;
+      page = inner.children[i];
+    }
+    return (Leaf) page;
+  }
+
+  private Leaf descendTo(int rank) {
+    Page page = root;
+    depth = 0;
+    leafRank = 0;
+    while (page instanceof Inner) {
+      Inner inner = (Inner) page;
+      int i = 0;
+      while (i < inner.size - 1 && rank - leafRank >= inner.counts[i]) {
+        leafRank += inner.counts[i++];
+      }
+      path[depth] = inner;
+      pathIndex[depth++] = i;
+      page = inner.children[i];
+    }
+    return (Leaf) page;
+  }
+
+  private Node view(Leaf leaf, int index, int rank) {
+    if (index >= leaf.size) {
+      // past the end of the leaf, the next leaf starts with the same rank
+      return leaf.next == null ? null : new Entry(leaf.next, 0, rank);
+    }
+    if (index < 0) {
+      return leaf.prev == null ? null : new Entry(leaf.prev, leaf.prev.size - 1, rank);
+    }
+    return new Entry(leaf, index, rank);
+  }
+
+  @Override
+  public IRubyObject init() {
+    super.init();
+    this.root = new Leaf();
+    return this;
+  }
+
+  @Override
+  public MultiRBTree internalPut(ThreadContext context, IRubyObject key, IRubyObject value, boolean checkExisting) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    Leaf leaf = descend(context, sortKey, type, true);
+    int i = leafIndex(context, leaf, sortKey, type, true);
+    // keys are unique unless dupes, an equal key is then the one right before i
+    if (!dupes && checkExisting && i > 0 && compare(context, type, sortKey, leaf.sortKey(i - 1)) == 0) {
+      leaf.values[i - 1] = value;
+      return this;
+    }
+    if (sortKeyProc != null && leaf.sortKeys == null) leaf.sortKeys = new IRubyObject[ORDER];
+    for (int d = 0; d < depth; d++) {
+      path[d].counts[pathIndex[d]] += 1;
+    }
+    addKeyType(sortKey);
+    this.size += 1;
+    this.modCount++;
+    if (leaf.size < ORDER) {
+      leaf.insert(i, key, value, sortKey);
+      return this;
+    }
+    Leaf right = new Leaf();
+    leaf.moveTo(MIN, right);
+    right.next = leaf.next;
+    if (right.next != null) right.next.prev = right;
+    right.prev = leaf;
+    leaf.next = right;
+    if (i <= leaf.size) {
+      leaf.insert(i, key, value, sortKey);
+    } else {
+      right.insert(i - leaf.size, key, value, sortKey);
+    }
+    insertChild(depth - 1, leaf, leaf.size, right, right.size, right.sortKey(0));
+    return this;
+  }
+
+  /**
+   * Puts right after left, which was split, in the inner page at the given
+   * level of the path, splitting that page in turn when it is full.
+   */
+  private void insertChild(int level, Page left, int leftCount, Page right, int rightCount, IRubyObject separator) {
+    if (level < 0) {
+      Inner newRoot = new Inner();
+      newRoot.insert(0, left, leftCount, null);
+      newRoot.insert(1, right, rightCount, separator);
+      this.root = newRoot;
+      return;
+    }
+    Inner inner = path[level];
+    int i = pathIndex[level];
+    inner.counts[i] = leftCount;
+    if (inner.size < ORDER) {
+      inner.insert(i + 1, right, rightCount, separator);
+      return;
+    }
+    Inner sibling = new Inner();
+    System.arraycopy(inner.children, MIN, sibling.children, 0, ORDER - MIN);
+    System.arraycopy(inner.counts, MIN, sibling.counts, 0, ORDER - MIN);
+    System.arraycopy(inner.separators, MIN, sibling.separators, 0, ORDER - MIN);
+    for (int j = MIN; j < ORDER; j++) {
+      inner.children[j] = null;
+      inner.counts[j] = 0;
+      inner.separators[j] = null;
+    }
+    inner.size = MIN;
+    sibling.size = ORDER - MIN;
+    IRubyObject up = sibling.separators[0];
+    sibling.separators[0] = null;
+    if (i + 1 <= MIN) {
+      inner.insert(i + 1, right, rightCount, separator);
+    } else {
+      sibling.insert(i + 1 - MIN, right, rightCount, separator);
+    }
+    insertChild(level - 1, inner, inner.total(), sibling, sibling.total(), up);
+  }
+
+  @Override
+  public IRubyObject internalDelete(ThreadContext context, Node node) {
+    Leaf leaf = descendTo(((Entry) node).rank);
+    int i = ((Entry) node).rank - leafRank;
+    RubyArray ret = getRuntime().newArray(leaf.keys[i], leaf.values[i]);
+    leaf.remove(i);
+    for (int d = 0; d < depth; d++) {
+      path[d].counts[pathIndex[d]] -= 1;
+    }
+    this.size -= 1;
+    this.modCount++;
+    if (depth > 0 && leaf.size < MIN) rebalanceLeaf(leaf);
+    return ret;
+  }
+
+  private void rebalanceLeaf(Leaf leaf) {
+    Inner parent = path[depth - 1];
+    int i = pathIndex[depth - 1];
+    Leaf left = i > 0 ? (Leaf) parent.children[i - 1] : null;
+    Leaf right = i + 1 < parent.size ? (Leaf) parent.children[i + 1] : null;
+    if (left != null && left.size > MIN) {
+      left.moveTo(left.size - 1, leaf);
+      parent.counts[i - 1] -= 1;
+      parent.counts[i] += 1;
+      parent.separators[i] = leaf.sortKey(0);
+    } else if (right != null && right.size > MIN) {
+      if (leaf.sortKeys == null && right.sortKeys != null) leaf.sortKeys = new IRubyObject[ORDER];
+      leaf.insert(leaf.size, right.keys[0], right.values[0], right.sortKeys == null ? null : right.sortKeys[0]);
+      right.remove(0);
+      parent.counts[i] += 1;
+      parent.counts[i + 1] -= 1;
+      parent.separators[i + 1] = right.sortKey(0);
+    } else if (left != null) {
+      left.append(leaf);
+      unlink(leaf);
+      parent.counts[i - 1] += parent.counts[i];
+      parent.remove(i);
+      rebalanceInner(depth - 1);
+    } else {
+      leaf.append(right);
+      unlink(right);
+      parent.counts[i] += parent.counts[i + 1];
+      parent.remove(i + 1);
+      rebalanceInner(depth - 1);
+    }
+  }
+
+  private static void unlink(Leaf leaf) {
+    if (leaf.prev != null) leaf.prev.next = leaf.next;
+    if (leaf.next != null) leaf.next.prev = leaf.prev;
+  }
+
+  private void rebalanceInner(int level) {
+    Inner inner = path[level];
+    if (level == 0) {
+      if (inner.size == 1) this.root = inner.children[0];
+      return;
+    }
+    if (inner.size >= MIN) return;
+    Inner parent = path[level - 1];
+    int i = pathIndex[level - 1];
+    Inner left = i > 0 ? (Inner) parent.children[i - 1] : null;
+    Inner right = i + 1 < parent.size ? (Inner) parent.children[i + 1] : null;
+    if (left != null && left.size > MIN) {
+      int last = left.size - 1;
+      int moved = left.counts[last];
+      inner.separators[0] = parent.separators[i];
+      inner.insert(0, left.children[last], moved, null);
+      parent.separators[i] = left.separators[last];
+      left.remove(last);
+      parent.counts[i - 1] -= moved;
+      parent.counts[i] += moved;
+    } else if (right != null && right.size > MIN) {
+      int moved = right.counts[0];
+      inner.insert(inner.size, right.children[0], moved, parent.separators[i + 1]);
+      parent.separators[i + 1] = right.separators[1];
+      right.remove(0);
+      right.separators[0] = null;
+      parent.counts[i] += moved;
+      parent.counts[i + 1] -= moved;
+    } else if (left != null) {
+      mergeInto(left, inner, parent.separators[i]);
+      parent.counts[i - 1] += parent.counts[i];
+      parent.remove(i);
+      rebalanceInner(level - 1);
+    } else {
+      mergeInto(inner, right, parent.separators[i + 1]);
+      parent.counts[i] += parent.counts[i + 1];
+      parent.remove(i + 1);
+      rebalanceInner(level - 1);
+    }
+  }
+
+  private static void mergeInto(Inner left, Inner right, IRubyObject separator) {
+    for (int j = 0; j < right.size; j++) {
+      left.insert(left.size, right.children[j], right.counts[j], j == 0 ? separator : right.separators[j]);
+    }
+  }
+
+  private Leaf firstLeaf() {
+    Page page = root;
+    while (page instanceof Inner) page = ((Inner) page).children[0];
+    return (Leaf) page;
+  }
+
+  private Leaf lastLeaf() {
+    Page page = root;
+    while (page instanceof Inner) page = ((Inner) page).children[((Inner) page).size - 1];
+    return (Leaf) page;
+  }
+
+  @Override
+  Node minimum() {
+    return size == 0 ? null : new Entry(firstLeaf(), 0, 0);
+  }
+
+  @Override
+  Node maximum() {
+    if (size == 0) return null;
+    Leaf leaf = lastLeaf();
+    return new Entry(leaf, leaf.size - 1, size - 1);
+  }
+
+  @Override
+  Node successor(Node x) {
+    Entry entry = (Entry) x;
+    return view(entry.leaf, entry.index + 1, entry.rank + 1);
+  }
+
+  @Override
+  Node predecessor(Node x) {
+    Entry entry = (Entry) x;
+    return view(entry.leaf, entry.index - 1, entry.rank - 1);
+  }
+
+  @Override
+  Node findNode(ThreadContext context, RubyObject sortKey) {
+    int type = keyTypeFor(sortKey);
+    Leaf leaf = descend(context, sortKey, type, false);
+    int i = leafIndex(context, leaf, sortKey, type, false);
+    Node node = view(leaf, i, leafRank + i);
+    return node != null && compare(context, type, sortKey, node.getSortKey()) == 0 ? node : null;
+  }
+
+  @Override
+  public Node lower_boundInternal(ThreadContext context, IRubyObject key) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    Leaf leaf = descend(context, sortKey, type, false);
+    int i = leafIndex(context, leaf, sortKey, type, false);
+    return view(leaf, i, leafRank + i);
+  }
+
+  @Override
+  public Node upper_boundInternal(ThreadContext context, IRubyObject key) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    Leaf leaf = descend(context, sortKey, type, true);
+    int i = leafIndex(context, leaf, sortKey, type, true) - 1;
+    return view(leaf, i, leafRank + i);
+  }
+
+  @Override
+  Node lastBeforeInternal(ThreadContext context, IRubyObject key) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    Leaf leaf = descend(context, sortKey, type, false);
+    int i = leafIndex(context, leaf, sortKey, type, false) - 1;
+    return view(leaf, i, leafRank + i);
+  }
+
+  @Override
+  int countBefore(ThreadContext context, IRubyObject key, boolean inclusive) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    Leaf leaf = descend(context, sortKey, type, inclusive);
+    return leafRank + leafIndex(context, leaf, sortKey, type, inclusive);
+  }
+
+  @Override
+  int rankOf(Node node) {
+    return ((Entry) node).rank;
+  }
+
+  @Override
+  Node nodeAt(int index) {
+    Leaf leaf = descendTo(index);
+    return new Entry(leaf, index - leafRank, index);
+  }
+
+  /**
+   * Same as MultiRBTree#putAllSorted, except that sorted entries are laid
+   * out into full leaves and the inner levels built over them in O(n).
+   */
+  @Override
+  void putAllSorted(ThreadContext context, IRubyObject[] keys, IRubyObject[] values, int length) {
+    IRubyObject[] sortKeys = keys;
+    if (sortKeyProc != null) {
+      sortKeys = new IRubyObject[length];
+      for (int i = 0; i < length; i++) {
+        sortKeys[i] = sortKeyOf(context, keys[i]);
+      }
+    }
+    if (this.size != 0 || !isSorted(context, sortKeys, length)) {
+      for (int i = 0; i < length; i++) {
+        internalPut(context, keys[i], values[i]);
+      }
+      return;
+    }
+    if (length == 0) return;
+    // spread the entries evenly so that every page but a lone root is at least half full
+    int pages = (length + ORDER - 1) / ORDER;
+    Page[] level = new Page[pages];
+    int[] counts = new int[pages];
+    IRubyObject[] firstKeys = new IRubyObject[pages];
+    Leaf prev = null;
+    for (int p = 0; p < pages; p++) {
+      int from = (int) ((long) length * p / pages);
+      int to = (int) ((long) length * (p + 1) / pages);
+      Leaf leaf = new Leaf();
+      System.arraycopy(keys, from, leaf.keys, 0, to - from);
+      System.arraycopy(values, from, leaf.values, 0, to - from);
+      if (sortKeyProc != null) {
+        leaf.sortKeys = new IRubyObject[ORDER];
+        System.arraycopy(sortKeys, from, leaf.sortKeys, 0, to - from);
+      }
+      leaf.size = to - from;
+      leaf.prev = prev;
+      if (prev != null) prev.next = leaf;
+      prev = leaf;
+      level[p] = leaf;
+      counts[p] = leaf.size;
+      firstKeys[p] = sortKeys[from];
+    }
+    while (pages > 1) {
+      int parents = (pages + ORDER - 1) / ORDER;
+      Page[] upper = new Page[parents];
+      int[] upperCounts = new int[parents];
+      IRubyObject[] upperKeys = new IRubyObject[parents];
+      for (int p = 0; p < parents; p++) {
+        int from = (int) ((long) pages * p / parents);
+        int to = (int) ((long) pages * (p + 1) / parents);
+        Inner inner = new Inner();
+        for (int c = from; c < to; c++) {
+          inner.insert(inner.size, level[c], counts[c], c == from ? null : firstKeys[c]);
+          upperCounts[p] += counts[c];
+        }
+        upper[p] = inner;
+        upperKeys[p] = firstKeys[from];
+      }
+      level = upper;
+      counts = upperCounts;
+      firstKeys = upperKeys;
+      pages = parents;
+    }
+    this.root = level[0];
+    this.size = length;
+    this.modCount++;
+    for (int i = 0; i < length && keyType != KEY_GENERIC; i++) {
+      addKeyType(sortKeys[i]);
+    }
+  }
+
+  @Override
+  void visitAll(Visitor visitor) {
+    for (Leaf leaf = firstLeaf(); leaf != null; leaf = leaf.next) {
+      for (int i = 0; i < leaf.size; i++) {
+        visitor.visit(leaf.keys[i], leaf.values[i]);
+      }
+    }
+  }
+
+  @Override
+  public void iteratorVisitAll(Visitor visitor) {
+    try {
+      iteratorEntry();
+      visitAll(visitor);
+    } finally {
+      iteratorExit();
+    }
+  }
+
+  @Override
+  public void iteratorReverseVisitAll(Visitor visitor) {
+    try {
+      iteratorEntry();
+      for (Leaf leaf = lastLeaf(); leaf != null; leaf = leaf.prev) {
+        for (int i = leaf.size - 1; i >= 0; i--) {
+          visitor.visit(leaf.keys[i], leaf.values[i]);
+        }
+      }
+    } finally {
+      iteratorExit();
+    }
+  }
+
+  @Override
+  public IRubyObject storage(ThreadContext context) {
+    return context.runtime.newSymbol("btree");
+  }
+
+  /**
+   * The pages are not shared, so this is a copy of the entries: O(n).
+   */
+  @Override
+  public IRubyObject snapshot(ThreadContext context) {
+    return copySnapshot(context);
+  }
+
+  @Override
+  boolean canIndexValues() {
+    return false;
+  }
+
+  @Override
+  boolean searchesFromFinger() {
+    return false;
+  }
+
+  @Override
+  boolean canSplit() {
+    return false;
+  }
+
+  @Override
+  IRubyObject updateInternal(ThreadContext context, IRubyObject key, Update update) {
+    return updateByLookup(context, key, update);
+  }
+
+  /**
+   * Heap used by the pages: per leaf the object and its key and value
+   * arrays (and sort keys after readjust_by), per inner page the object
+   * and its child, count and separator arrays.
+   */
+  @Override
+  public IRubyObject memory_footprint(ThreadContext context) {
+    Ruby runtime = context.runtime;
+    int ref = referenceSize();
+    int header = objectHeaderSize();
+    long refArray = (header + 4 + (long) ORDER * ref + 7) & ~7;
+    long intArray = (header + 4 + (long) ORDER * 4 + 7) & ~7;
+    long leafBytes = ((header + 5 * ref + 4 + 7) & ~7) + 2 * refArray;
+    long innerBytes = ((header + 3 * ref + 4 + 7) & ~7) + 2 * refArray + intArray;
+    long[] pages = new long[2];
+    countPages(root, pages);
+    long bytes = pages[0] * leafBytes + pages[1] * innerBytes;
+    if (sortKeyProc != null) bytes += pages[0] * refArray;
+    RubyHash ret = RubyHash.newHash(runtime);
+    ret.fastASet(runtime.newSymbol("entries"), runtime.newFixnum(size));
+    ret.fastASet(runtime.newSymbol("pages"), runtime.newFixnum(pages[0] + pages[1]));
+    ret.fastASet(runtime.newSymbol("bytes_per_entry"), runtime.newFixnum(size == 0 ? 0 : bytes / size));
+    ret.fastASet(runtime.newSymbol("bytes"), runtime.newFixnum(bytes));
+    return ret;
+  }
+
+  private static void countPages(Page page, long[] pages) {
+    if (page instanceof Leaf) {
+      pages[0] += 1;
+      return;
+    }
+    Inner inner = (Inner) page;
+    pages[1] += 1;
+    for (int i = 0; i < inner.size; i++) countPages(inner.children[i], pages);
+  }
+
+  /**
+   * A B-tree has no colors, this is the number of levels, leaves included.
+   */
+  @Override
+  public IRubyObject blackHeight() {
+    int height = size == 0 ? 0 : 1;
+    for (Page page = root; page instanceof Inner; page = ((Inner) page).children[0]) {
+      height += 1;
+    }
+    return RubyFixnum.newFixnum(getRuntime(), height);
+  }
+}
@@ -8,14 +8,22 @@ import org.jruby.RubyObject;
 import org.jruby.RubyClass;
 import org.jruby.RubyString;
 import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubySymbol;
+import org.jruby.RubyNumeric;
 import org.jruby.RubyHash;
 import org.jruby.RubyArray;
+import org.jruby.RubyMethod;
 import org.jruby.RubyProc;
+import org.jruby.RubyRange;
 import org.jruby.runtime.Arity;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.Block;
+import org.jruby.runtime.CallSite;
+import org.jruby.runtime.MethodIndex;
 import org.jruby.runtime.ObjectMarshal;
 import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.Visibility;
 import org.jruby.runtime.marshal.MarshalStream;
 import org.jruby.runtime.marshal.UnmarshalStream;
 import org.jruby.runtime.builtin.IRubyObject;
@@ -30,17 +38,45 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 @JRubyClass(name = "MultiRBTree")
 public class MultiRBTree extends RubyObject {
-  private Node root = NilNode.getInstance();
-  private int size = 0;
+  private Node root;
+  // the first and last node, so first, last, shift and pop need no descent
+  private Node leftmost;
+  private Node rightmost;
+  // only with index_values: true
+  ValueIndex valueIndex;
+  int size = 0;
   private static final int PROCDEFAULT_HASH_F = 1 << 10;
   private static final int DEFAULT_INSPECT_STR_SIZE = 20;
-  private IRubyObject ifNone;
-  private RubyProc cmpProc;
-  private boolean dupes;
+  IRubyObject ifNone;
+  // a Proc or Method set by readjust
+  IRubyObject cmpProc;
+  // cmpProc's block when it is a plain Proc, so it can be called without an args array
+  private Block cmpBlock;
+  private CallSite cmpCallSite;
+  // set by readjust_by, keys are then ordered by what it returns for them
+  RubyProc sortKeyProc;
+  boolean dupes;
+  // the class all keys share when it has a direct comparison, see compare()
+  int keyType = KEY_NONE;
+  // nodes of an older epoch may be shared with a snapshot, see own()
+  private short epoch;
+  // bumped whenever nodes are added, removed or replaced by copies
+  int modCount;
+
+  private static final int KEY_NONE = 0;
+  static final int KEY_FIXNUM = 1;
+  static final int KEY_FLOAT = 2;
+  static final int KEY_STRING = 3;
+  static final int KEY_SYMBOL = 4;
+  static final int KEY_GENERIC = 5;
+  // what compareTyped returns when the keys need <=> or the cmp_proc
+  static final int UNTYPED = 2;
 
   public static RubyClass createMultiRBTreeClass(Ruby runtime) {
     RubyClass rbtreeClass = runtime.defineClass("MultiRBTree", runtime.getObject(), RBTREE_ALLOCATOR);
@@ -63,6 +99,51 @@ public class MultiRBTree extends RubyObject {
     this.ifNone = ruby.getNil();
   }
 
+  /**
+   * What new calls, see lib/rbtree.rb, with its <code>storage:</code> and
+   * <code>index_values:</code> keywords, nil when not given, ahead of
+   * the other arguments. <code>storage: :compact</code> picks
+   * CompactRBTree, which keeps the entries in parallel arrays instead of
+   * one object per node; <code>storage: :node</code> is the default.
+   * <code>index_values: true</code> keeps a ValueIndex alongside the
+   * nodes. The other arguments go to initialize as usual.
+   */
+  @JRubyMethod(name = "__new__", required = 2, rest = true, meta = true, visibility = Visibility.PRIVATE)
+  public static IRubyObject newInstance(ThreadContext context, IRubyObject recv, IRubyObject[] args, Block block) {
+    RubyClass klass = (RubyClass) recv;
+    Ruby runtime = context.runtime;
+    IRubyObject storage = args[0];
+    boolean compact = false;
+    if (storage == runtime.newSymbol("compact")) {
+      compact = true;
+    } else if (!storage.isNil() && storage != runtime.newSymbol("node")) {
+      throw runtime.newArgumentError("unknown storage " + storage.inspect() + " (expected :node or :compact)");
+    }
+    boolean indexValues = args[1].isTrue();
+    IRubyObject[] rest = new IRubyObject[args.length - 2];
+    System.arraycopy(args, 2, rest, 0, rest.length);
+    args = rest;
+    MultiRBTree rbtree = (MultiRBTree) klass.allocate();
+    if (compact) {
+      if (rbtree.getClass() != MultiRBTree.class) throw runtime.newArgumentError(klass.getName() + " does not take a storage option");
+      rbtree = new CompactRBTree(runtime, klass);
+    }
+    if (indexValues) {
+      if (!rbtree.canIndexValues()) throw runtime.newArgumentError("index_values needs node storage");
+      rbtree.valueIndex = new ValueIndex(rbtree);
+    }
+    rbtree.callInit(args, block);
+    return rbtree;
+  }
+
+  /**
+   * Whether this kind of tree can keep a ValueIndex up to date, which
+   * takes hooking every place an entry comes or goes.
+   */
+  boolean canIndexValues() {
+    return true;
+  }
+
   @JRubyMethod(name = "initialize", optional = 1)
   public IRubyObject initialize(ThreadContext context, IRubyObject[] args, Block block) {
     if (block.isGiven()) {
@@ -82,8 +163,14 @@ public class MultiRBTree extends RubyObject {
 
   @JRubyMethod(name = "clear")
   public IRubyObject init() {
-    this.root = NilNode.getInstance();
+    this.root = null;
+    this.leftmost = this.rightmost = null;
     this.size = 0;
+    this.keyType = KEY_NONE;
+    // an empty tree shares nothing with its snapshots
+    this.epoch = 0;
+    this.modCount++;
+    if (valueIndex != null) valueIndex.clear();
     return this;
   }
 
@@ -93,10 +180,9 @@ public class MultiRBTree extends RubyObject {
     Ruby runtime = context.getRuntime();
     final MultiRBTree rbtree;
     if (args.length == 1) {
-      if (klass.getName().equals("RBTree") && args[0].getMetaClass().getRealClass().getName().equals("MultiRBTree"))
-        throw runtime.newTypeError("cannot convert MultiRBTree to RBTree");
       if (args[0] instanceof MultiRBTree) {
         rbtree = (MultiRBTree) klass.allocate();
+        rbtree.checkCompatible(runtime, args[0]);
         rbtree.update(context, (MultiRBTree) args[0], Block.NULL_BLOCK);
         return rbtree;
       }
@@ -175,17 +261,169 @@ public class MultiRBTree extends RubyObject {
   }
 
   protected void op_asetForString(ThreadContext context, RubyString key, IRubyObject value) {
-    Node node;
-    if (!dupes && (node = internalGet(context, (RubyObject) key)) != null) {
+    store(context, key, value);
+  }
+
+  /**
+   * Stores value under key the way []= does with a String key: a new key
+   * is copied if need be, and may not be added during iteration.
+   */
+  private void store(ThreadContext context, IRubyObject key, IRubyObject value) {
+    if (!dupes) {
+      updateInternal(context, key, new Store(value));
+    } else {
+      checkIterating();
+      internalPut(context, storedKey(context, key), value, false);
+    }
+  }
+
+  /**
+   * The key to keep for a new entry: a String that is not frozen is
+   * copied and the copy frozen, as Hash does.
+   */
+  private IRubyObject storedKey(ThreadContext context, IRubyObject key) {
+    if (key instanceof RubyString && !key.isFrozen()) {
+      key = ((RubyString) key).strDup(context.runtime);
+      key.setFrozen(true);
+    }
+    return key;
+  }
+
+  /**
+   * What upsert and the methods like it make of the value under a key.
+   * old is null when the key is absent; returning null leaves the tree as
+   * it was.
+   */
+  static abstract class Update {
+    public abstract IRubyObject apply(IRubyObject old);
+  }
+
+  private static final class Store extends Update {
+    private final IRubyObject value;
+
+    Store(IRubyObject value) {
+      this.value = value;
+    }
+
+    public IRubyObject apply(IRubyObject old) {
+      return value;
+    }
+  }
+
+  /**
+   * Applies update to the value under key, the first one in a
+   * MultiRBTree, storing what it returns under the key whether or not
+   * the key was there. Returns the value the key ends up with, nil if it
+   * stays absent.
+   *
+   * A single descent finds either the node or the parent a new node goes
+   * under, and update runs in between. Should update change the tree the
+   * spot found is no longer to be trusted, and the result is stored with
+   * a descent of its own.
+   */
+  IRubyObject updateInternal(ThreadContext context, IRubyObject key, Update update) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    Node y = null;
+    Node x = this.root;
+    int ret = 0;
+    while (x != null) {
+      ret = compare(context, type, sortKey, x.getSortKey());
+      if (ret == 0) break;
+      y = x;
+      x = ret < 0 ? x.left : x.right;
+    }
+    int mod = modCount;
+    IRubyObject old = x == null ? null : firstEntry(x).value;
+    IRubyObject value = update.apply(old);
+    if (value == null) return old == null ? context.runtime.getNil() : old;
+    if (mod != modCount) return updateInternal(context, key, new Store(value));
+    if (x != null) {
+      replaceValue(x, value);
+    } else {
+      checkIterating();
+      insertAt(y, ret, newNode(storedKey(context, key), value, sortKey));
+    }
+    return value;
+  }
+
+  /**
+   * updateInternal for the storages that look the key up and then store
+   * the result with a second descent.
+   */
+  final IRubyObject updateByLookup(ThreadContext context, IRubyObject key, Update update) {
+    Node node = internalGet(context, (RubyObject) key);
+    int mod = modCount;
+    IRubyObject old = node == null ? null : node.value;
+    IRubyObject value = update.apply(old);
+    if (value == null) return old == null ? context.runtime.getNil() : old;
+    if (mod != modCount) node = internalGet(context, (RubyObject) key);
+    if (node != null) {
       node.setValue(value);
     } else {
       checkIterating();
-      if (!key.isFrozen()) {
-        key = key.strDup(context.runtime);
-        key.setFrozen(true);
-      }
-      internalPut(context, key, value, false);
+      internalPut(context, storedKey(context, key), value, false);
     }
+    return value;
+  }
+
+  /**
+   * Stores what the block returns for the current value under key, nil
+   * if there is none, and returns it; the key is looked up once.
+   */
+  @JRubyMethod
+  public IRubyObject upsert(final ThreadContext context, IRubyObject key, final Block block) {
+    if (!block.isGiven()) throw context.runtime.newArgumentError("no block given");
+    return updateInternal(context, key, new Update() {
+      public IRubyObject apply(IRubyObject old) {
+        return block.yield(context, old == null ? context.runtime.getNil() : old);
+      }
+    });
+  }
+
+  /**
+   * Returns the value under key, or stores and returns the default
+   * given, or what the block returns for the key.
+   */
+  @JRubyMethod(required = 1, optional = 1)
+  public IRubyObject fetch_or_store(final ThreadContext context, final IRubyObject[] args, final Block block) {
+    if (args.length == 1 && !block.isGiven()) throw context.runtime.newArgumentError("no block given");
+    return updateInternal(context, args[0], new Update() {
+      public IRubyObject apply(IRubyObject old) {
+        if (old != null) return null;
+        return block.isGiven() ? block.yield(context, args[0]) : args[1];
+      }
+    });
+  }
+
+  /**
+   * Returns the value under key, or stores and returns what the block
+   * returns.
+   */
+  @JRubyMethod
+  public IRubyObject compute_if_absent(final ThreadContext context, IRubyObject key, final Block block) {
+    if (!block.isGiven()) throw context.runtime.newArgumentError("no block given");
+    return updateInternal(context, key, new Update() {
+      public IRubyObject apply(IRubyObject old) {
+        return old != null ? null : block.yield(context, context.runtime.getNil());
+      }
+    });
+  }
+
+  /**
+   * Adds by, 1 by default, to the value under key, which counts as 0
+   * when absent, and returns the sum.
+   */
+  @JRubyMethod(required = 1, optional = 1)
+  public IRubyObject increment(final ThreadContext context, IRubyObject[] args) {
+    final IRubyObject by = args.length > 1 ? args[1] : RubyFixnum.one(context.runtime);
+    return updateInternal(context, args[0], new Update() {
+      public IRubyObject apply(IRubyObject old) {
+        if (old == null) return by;
+        if (old instanceof RubyFixnum) return ((RubyFixnum) old).op_plus(context, by);
+        return old.callMethod(context, "+", by);
+      }
+    });
   }
 
   @JRubyMethod(name = "fetch", required = 1, optional = 1)
@@ -203,8 +441,12 @@ public class MultiRBTree extends RubyObject {
     return args[1];
   }
 
-  @JRubyMethod(name = "index")
+  @JRubyMethod(name = {"index", "key"})
   public IRubyObject rbtree_index(final ThreadContext context, final IRubyObject value) {
+    if (valueIndex != null) {
+      IRubyObject key = valueIndex.firstKeyFor(value);
+      return key == null ? context.runtime.getNil() : key;
+    }
     try {
       iteratorVisitAll(new Visitor() {
         public void visit(IRubyObject key, IRubyObject val) {
@@ -213,48 +455,350 @@ public class MultiRBTree extends RubyObject {
           }
         }
       });
-      return null;
+      return context.runtime.getNil();
     } catch (FoundKey found) {
       return found.key;
     }
   }
 
-  private void checkCompatible(Ruby runtime, IRubyObject other) {
-    if (!(other instanceof MultiRBTree))
-      throw runtime.newTypeError(String.format("wrong argument type %s (expected %s)", other.getMetaClass().getRealClass().getName(), "MultiRBTree"));
-    if (getMetaClass().getRealClass().getName().equals("RBTree") && other.getMetaClass().getRealClass().getName().equals("MultiRBTree"))
-      throw runtime.newTypeError("cannot convert MultiRBTree to RBTree");
+  /**
+   * The keys whose value is eql? to value, in order.
+   */
+  @JRubyMethod
+  public IRubyObject keys_for_value(final ThreadContext context, final IRubyObject value) {
+    if (valueIndex != null) return valueIndex.keysFor(value);
+    final RubyArray keys = context.runtime.newArray();
+    visitAll(new Visitor() {
+      public void visit(IRubyObject key, IRubyObject val) {
+        if (value.eql(val)) keys.append(key);
+      }
+    });
+    return keys;
   }
 
+  private RubyObject[] sortKeysOf(ThreadContext context, IRubyObject[] keys) {
+    RubyObject[] sortKeys = new RubyObject[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      sortKeys[i] = sortKeyOf(context, keys[i]);
+    }
+    return sortKeys;
+  }
+
+  /**
+   * The indexes of sortKeys in the order the tree would keep them. The
+   * sort is stable, so equal keys stay in the order they came.
+   */
+  private Integer[] sortedOrder(final ThreadContext context, final RubyObject[] sortKeys) {
+    Integer[] order = new Integer[sortKeys.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    if (order.length > 1) {
+      try {
+        Arrays.sort(order, new Comparator<Integer>() {
+          public int compare(Integer a, Integer b) {
+            return MultiRBTree.this.compare(context, sortKeys[a], sortKeys[b]);
+          }
+        });
+      } catch (IllegalArgumentException e) {
+        // the sort noticed a comparator that contradicts itself
+        throw context.runtime.newArgumentError("comparison of keys is inconsistent: " + e.getMessage());
+      }
+    }
+    return order;
+  }
+
+  void checkCompatible(Ruby runtime, IRubyObject other) {
+    if (!(other instanceof MultiRBTree))
+      throw runtime.newTypeError(String.format("wrong argument type %s (expected %s)", other.getMetaClass().getRealClass().getName(), "MultiRBTree"));
+    if (!dupes && ((MultiRBTree) other).dupes)
+      throw runtime.newTypeError(String.format("cannot convert %s to %s", other.getMetaClass().getRealClass().getName(), getMetaClass().getRealClass().getName()));
+  }
+
+  /**
+   * Stores the entries of other, a tree or a Hash, as []= would. With a
+   * block, a key already present gets what the block returns for the key,
+   * the old value and the new one.
+   *
+   * The entries of both go through one merge of the two sorted
+   * sequences and the tree is built anew from the result, O(n + m) in
+   * all. A batch much smaller than the tree is inserted entry by entry
+   * instead, as put_many does.
+   */
   @JRubyMethod(name = {"update", "merge!"})
   public IRubyObject update(ThreadContext context, IRubyObject other, Block block) {
-    Ruby runtime = getRuntime();
-    checkCompatible(runtime, other);
-    MultiRBTree otherTree = (MultiRBTree) other;
-    for (Node node = otherTree.minimum(); !node.isNull(); node = otherTree.successor(node)) {
-      if (block.isGiven()) {
-        op_aset(context, node.key, block.yieldSpecific(context, node.key, op_aref(context, node.key), node.value));
-      } else {
-        op_aset(context, node.key, node.value);
+    return updateFrom(context, sortedEntriesOf(context, other, true), block);
+  }
+
+  final IRubyObject updateFrom(ThreadContext context, SortedEntries theirs, Block block) {
+    int m = theirs.length;
+    if (m == 0) return this;
+    if ((long) m * 16 < size || iteratorCount.get() > 0) {
+      insertEach(context, theirs, block);
+      return this;
+    }
+    int mod = modCount;
+    IRubyObject[] resolved = new IRubyObject[m];
+    SortedEntries merged = mergeWalk(context, entriesInOrder(context, this), theirs, MERGE, block, resolved);
+    if (mod != modCount) {
+      // the block changed the tree, which the merge no longer reflects
+      for (int j = 0; j < m; j++) {
+        store(context, theirs.keys[j], resolved[j]);
       }
+      return this;
     }
+    init();
+    putAllSorted(context, merged.keys, merged.values, merged.length);
     return this;
   }
 
+  private void insertEach(ThreadContext context, SortedEntries theirs, Block block) {
+    if (!block.isGiven()) {
+      putMany(context, Arrays.copyOf(theirs.keys, theirs.length), Arrays.copyOf(theirs.values, theirs.length));
+      return;
+    }
+    final ThreadContext ctx = context;
+    final Block conflict = block;
+    for (int j = 0; j < theirs.length; j++) {
+      final IRubyObject key = theirs.keys[j];
+      final IRubyObject value = theirs.values[j];
+      if (dupes) {
+        Node node = findNode(context, theirs.sortKeys[j]);
+        store(context, key, node == null ? value : block.yieldSpecific(context, key, node.value, value));
+      } else {
+        updateInternal(context, key, new Update() {
+          public IRubyObject apply(IRubyObject old) {
+            return old == null ? value : conflict.yieldSpecific(ctx, key, old, value);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * A new tree with the entries of both, those of other winning or the
+   * block deciding for keys in both, built in O(n + m).
+   */
   @JRubyMethod
-  public IRubyObject merge(final ThreadContext context, final IRubyObject other) {
-    Ruby runtime = getRuntime();
-    // TODO should allow RubyHash
-    if (!(other instanceof MultiRBTree)) {
-      runtime.newArgumentError(String.format("wrong argument type %s (expected %s)", other.getMetaClass().getRealClass().getName(), "MultiRBTree"));
+  public IRubyObject merge(ThreadContext context, IRubyObject other, Block block) {
+    return setOperation(context, other, MERGE, block);
+  }
+
+  /**
+   * Like merge, but for keys in both the entry of this tree is kept,
+   * unless the block decides.
+   */
+  @JRubyMethod
+  public IRubyObject union(ThreadContext context, IRubyObject other, Block block) {
+    return setOperation(context, other, UNION, block);
+  }
+
+  /**
+   * A new tree with the entries whose key other has too. The values are
+   * this tree's, or what the block returns for the key, this tree's value
+   * and other's.
+   */
+  @JRubyMethod
+  public IRubyObject intersection(ThreadContext context, IRubyObject other, Block block) {
+    return setOperation(context, other, INTERSECTION, block);
+  }
+
+  /**
+   * A new tree with the entries whose key other does not have.
+   */
+  @JRubyMethod
+  public IRubyObject difference(ThreadContext context, IRubyObject other) {
+    return setOperation(context, other, DIFFERENCE, Block.NULL_BLOCK);
+  }
+
+  private IRubyObject setOperation(ThreadContext context, IRubyObject other, int op, Block block) {
+    SortedEntries theirs = sortedEntriesOf(context, other, op == MERGE || op == UNION);
+    SortedEntries result = mergeWalk(context, entriesInOrder(context, this), theirs, op, block, null);
+    MultiRBTree tree = emptyCopy(context);
+    tree.putAllSorted(context, result.keys, result.values, result.length);
+    return tree;
+  }
+
+  /**
+   * An empty tree of the same class, storage, order, default and
+   * indexing as this one.
+   */
+  MultiRBTree emptyCopy(ThreadContext context) {
+    MultiRBTree copy = (MultiRBTree) getMetaClass().getRealClass().allocate();
+    copy.copySettings(context, this);
+    return copy;
+  }
+
+  final void copySettings(ThreadContext context, MultiRBTree other) {
+    this.ifNone = other.ifNone;
+    this.flags |= other.flags & PROCDEFAULT_HASH_F;
+    if (other.valueIndex != null && canIndexValues()) {
+      this.valueIndex = new ValueIndex(this);
     }
+    setComparator(other.cmpProc, other.sortKeyProc);
+  }
 
-    MultiRBTree result = (MultiRBTree) dup();
-    MultiRBTree otherTree = (MultiRBTree) other;
-    for (Node node = otherTree.minimum(); !node.isNull(); node = otherTree.successor(node)) {
-      result.op_aset(context, node.key, node.value);
+  private static final int MERGE = 0;
+  private static final int UNION = 1;
+  private static final int INTERSECTION = 2;
+  private static final int DIFFERENCE = 3;
+
+  /**
+   * Entries in the order of a tree, with the values keys are ordered by.
+   */
+  static final class SortedEntries {
+    final IRubyObject[] keys;
+    final RubyObject[] sortKeys;
+    final IRubyObject[] values;
+    int length;
+
+    SortedEntries(int capacity) {
+      this.keys = new IRubyObject[capacity];
+      this.sortKeys = new RubyObject[capacity];
+      this.values = new IRubyObject[capacity];
     }
-    return result;
+
+    void add(IRubyObject key, RubyObject sortKey, IRubyObject value) {
+      keys[length] = key;
+      sortKeys[length] = sortKey;
+      values[length++] = value;
+    }
+  }
+
+  /**
+   * The entries of tree, which is in this tree's order, copied while it
+   * stays put.
+   */
+  private SortedEntries entriesInOrder(final ThreadContext context, MultiRBTree tree) {
+    tree.lockRead();
+    try {
+      final SortedEntries entries = new SortedEntries(tree.size);
+      tree.visitAll(new Visitor() {
+        public void visit(IRubyObject key, IRubyObject value) {
+          entries.add(key, sortKeyOf(context, key), value);
+        }
+      });
+      return entries;
+    } finally {
+      tree.unlockRead();
+    }
+  }
+
+  /**
+   * The entries of other, a tree or a Hash, in this tree's order. A tree
+   * ordered the same way is taken as it is, anything else is sorted.
+   * Entries to be stored into an RBTree keep the last of equal keys, as
+   * storing them one by one would.
+   */
+  SortedEntries sortedEntriesOf(final ThreadContext context, IRubyObject other, boolean storing) {
+    final List<IRubyObject> keyList = new ArrayList<IRubyObject>();
+    final List<IRubyObject> valueList = new ArrayList<IRubyObject>();
+    if (other instanceof MultiRBTree) {
+      MultiRBTree otherTree = (MultiRBTree) other;
+      if (storing) checkCompatible(context.runtime, other);
+      if (similar(otherTree)) return entriesInOrder(context, otherTree);
+      otherTree.lockRead();
+      try {
+        otherTree.visitAll(new Visitor() {
+          public void visit(IRubyObject key, IRubyObject value) {
+            keyList.add(key);
+            valueList.add(value);
+          }
+        });
+      } finally {
+        otherTree.unlockRead();
+      }
+    } else if (other instanceof RubyHash) {
+      ((RubyHash) other).visitAll(new RubyHash.Visitor() {
+        public void visit(IRubyObject key, IRubyObject value) {
+          keyList.add(key);
+          valueList.add(value);
+        }
+      });
+    } else {
+      throw context.runtime.newTypeError(String.format("wrong argument type %s (expected %s)", other.getMetaClass().getRealClass().getName(), "MultiRBTree or Hash"));
+    }
+    IRubyObject[] keys = keyList.toArray(new IRubyObject[keyList.size()]);
+    RubyObject[] sortKeys = sortKeysOf(context, keys);
+    Integer[] order = sortedOrder(context, sortKeys);
+    SortedEntries entries = new SortedEntries(keys.length);
+    for (int j = 0; j < order.length; j++) {
+      int i = order[j];
+      if (!dupes && entries.length > 0 && compare(context, entries.sortKeys[entries.length - 1], sortKeys[i]) == 0) {
+        entries.length--;
+      }
+      entries.add(keys[i], sortKeys[i], valueList.get(i));
+    }
+    return entries;
+  }
+
+  /**
+   * Walks ours and theirs, both in this tree's order, side by side and
+   * returns the entries op keeps, in order. For keys in both the block,
+   * if given, decides the value; resolved, if given, gets the value each
+   * entry of theirs came to.
+   */
+  private SortedEntries mergeWalk(ThreadContext context, SortedEntries ours, SortedEntries theirs, int op, Block block, IRubyObject[] resolved) {
+    int n = ours.length;
+    int m = theirs.length;
+    int i = 0;
+    int j = 0;
+    if (op == INTERSECTION || op == DIFFERENCE) {
+      SortedEntries out = new SortedEntries(n);
+      while (i < n) {
+        int ret = j == m ? -1 : compare(context, ours.sortKeys[i], theirs.sortKeys[j]);
+        if (ret > 0) {
+          j++;
+          continue;
+        }
+        if ((ret == 0) == (op == INTERSECTION)) {
+          IRubyObject value = ours.values[i];
+          if (ret == 0 && block.isGiven()) value = block.yieldSpecific(context, ours.keys[i], value, theirs.values[j]);
+          out.add(ours.keys[i], ours.sortKeys[i], value);
+        }
+        i++;
+      }
+      return out;
+    }
+    SortedEntries out = new SortedEntries(n + m);
+    // where the run of keys equal to the last one added starts, kept for
+    // the block of a MultiRBTree
+    int runStart = 0;
+    boolean trackRuns = dupes && block.isGiven();
+    while (i < n || j < m) {
+      int ret = i == n ? 1 : (j == m ? -1 : compare(context, ours.sortKeys[i], theirs.sortKeys[j]));
+      if (ret < 0 || (ret == 0 && dupes)) {
+        if (trackRuns && (out.length == 0 || compare(context, out.sortKeys[out.length - 1], ours.sortKeys[i]) != 0)) {
+          runStart = out.length;
+        }
+        out.add(ours.keys[i], ours.sortKeys[i], ours.values[i]);
+        i++;
+      } else if (ret == 0) {
+        IRubyObject value;
+        if (block.isGiven()) {
+          value = block.yieldSpecific(context, ours.keys[i], ours.values[i], theirs.values[j]);
+        } else {
+          value = op == MERGE ? theirs.values[j] : ours.values[i];
+        }
+        out.add(ours.keys[i], ours.sortKeys[i], value);
+        if (resolved != null) resolved[j] = value;
+        i++;
+        j++;
+      } else {
+        IRubyObject value = theirs.values[j];
+        if (trackRuns) {
+          if (out.length > 0 && compare(context, out.sortKeys[out.length - 1], theirs.sortKeys[j]) == 0) {
+            value = block.yieldSpecific(context, theirs.keys[j], out.values[runStart], value);
+          } else {
+            runStart = out.length;
+          }
+        }
+        out.add(storedKey(context, theirs.keys[j]), theirs.sortKeys[j], value);
+        if (resolved != null) resolved[j] = value;
+        j++;
+      }
+    }
+    return out;
   }
 
   @JRubyMethod(name = {"has_key?", "key?", "include?", "member?"})
@@ -263,6 +807,7 @@ public class MultiRBTree extends RubyObject {
   }
 
   private boolean hasValue(final ThreadContext context, final IRubyObject value) {
+    if (valueIndex != null) return valueIndex.contains(value);
     try {
       visitAll(new Visitor() {
         public void visit(IRubyObject key, IRubyObject val) {
@@ -305,8 +850,8 @@ public class MultiRBTree extends RubyObject {
   @JRubyMethod(name = "to_hash")
   public IRubyObject to_hash() {
     Ruby runtime = getRuntime();
-    if (getMetaClass().getRealClass().getName().equals("MultiRBTree"))
-      throw runtime.newTypeError("cannot convert MultiRBTree to Hash");
+    if (dupes)
+      throw runtime.newTypeError("cannot convert " + getMetaClass().getRealClass().getName() + " to Hash");
     final RubyHash hash = new RubyHash(runtime, runtime.getHash());
     hash.default_value_set(ifNone);
     hash.setFlag(flags, true);
@@ -325,30 +870,220 @@ public class MultiRBTree extends RubyObject {
 
   @JRubyMethod(name = "readjust", optional = 1)
   public IRubyObject readjust(ThreadContext context, IRubyObject[] args, Block block) {
-    RubyProc oldProc = cmpProc;
-    RubyProc cmpfunc = null;
+    IRubyObject cmpfunc = null;
     if (block.isGiven()) {
       if (args.length > 0) raiseArgumeneError();
       cmpfunc = getRuntime().newProc(Block.Type.PROC, block);
     } else if (args.length == 1) {
-      if (args[0] instanceof RubyProc) {
-        cmpfunc = (RubyProc) args[0];
+      if (args[0] instanceof RubyProc || args[0] instanceof RubyMethod) {
+        cmpfunc = args[0];
       } else if (args[0].isNil()) {
         cmpfunc = null;
       } else {
         throw getRuntime().newTypeError(String.format("wrong argument type %s (expected %s)", args[0].getMetaClass().getRealClass().getName(), "Proc"));
       }
     }
-    MultiRBTree self = (MultiRBTree) this.dup();
+    return readjustInternal(context, cmpfunc, null);
+  }
+
+  /**
+   * Orders the keys by the value the block returns for each of them. The
+   * block is called once per key on insert and once per search, and the
+   * results are compared with <=>.
+   */
+  @JRubyMethod(name = "readjust_by")
+  public IRubyObject readjust_by(ThreadContext context, Block block) {
+    if (!block.isGiven()) throw getRuntime().newArgumentError("no block given");
+    return readjustInternal(context, null, getRuntime().newProc(Block.Type.PROC, block));
+  }
+
+  /**
+   * Reorders the tree by sorting its entries under the new comparator and
+   * building it again from them, in O(n log n) with a stable sort so the
+   * values of a MultiRBTree key keep their order. Keys of an RBTree that
+   * become equal collapse into the first of them with the last value, as
+   * storing them one by one would. The tree is only touched once the sort
+   * went through, so a comparator that raises, or that the sort finds
+   * inconsistent (an ArgumentError), leaves it as it was.
+   */
+  private IRubyObject readjustInternal(ThreadContext context, IRubyObject cmpfunc, RubyProc keyfunc) {
+    checkWritable(context, this);
+    IRubyObject oldProc = cmpProc;
+    RubyProc oldKeyProc = sortKeyProc;
+    int oldKeyType = keyType;
+    final IRubyObject[] keys = new IRubyObject[size];
+    final IRubyObject[] values = new IRubyObject[size];
+    final int[] length = new int[1];
+    visitAll(new Visitor() {
+      public void visit(IRubyObject key, IRubyObject value) {
+        keys[length[0]] = key;
+        values[length[0]++] = value;
+      }
+    });
+    SortedEntries entries = new SortedEntries(keys.length);
+    boolean sorted = false;
+    try {
+      setComparator(cmpfunc, keyfunc);
+      // the keys seen so far say nothing about the new sort keys
+      keyType = KEY_NONE;
+      RubyObject[] sortKeys = sortKeysOf(context, keys);
+      Integer[] order = sortedOrder(context, sortKeys);
+      for (int j = 0; j < order.length; j++) {
+        int i = order[j];
+        if (!dupes && entries.length > 0 && compare(context, entries.sortKeys[entries.length - 1], sortKeys[i]) == 0) {
+          entries.values[entries.length - 1] = values[i];
+        } else {
+          entries.add(keys[i], sortKeys[i], values[i]);
+        }
+      }
+      sorted = true;
+    } finally {
+      if (!sorted) {
+        setComparator(oldProc, oldKeyProc);
+        keyType = oldKeyType;
+      }
+    }
+    init();
+    boolean built = false;
     try {
-      replaceInternal(context, self, cmpfunc);
-    } catch (RaiseException e) {
-      replaceInternal(context, self, oldProc);
-      throw e;
+      putAllSorted(context, entries.keys, entries.values, entries.length);
+      built = true;
+    } finally {
+      if (!built) {
+        // a comparator that answered differently the second time round
+        init();
+        setComparator(oldProc, oldKeyProc);
+        putAllSorted(context, keys, values, keys.length);
+      }
     }
     return this;
   }
 
+  void setComparator(IRubyObject cmpfunc, RubyProc keyfunc) {
+    this.cmpProc = cmpfunc;
+    this.sortKeyProc = keyfunc;
+    this.cmpBlock = null;
+    if (cmpfunc instanceof RubyProc && ((RubyProc) cmpfunc).getBlock().type != Block.Type.LAMBDA) {
+      this.cmpBlock = ((RubyProc) cmpfunc).getBlock();
+    } else if (cmpfunc != null && cmpCallSite == null) {
+      // lambdas and Methods keep their own argument and return semantics
+      this.cmpCallSite = MethodIndex.getCallSite("call");
+    }
+  }
+
+  private int callComparator(ThreadContext context, RubyObject a, RubyObject b) {
+    IRubyObject ret = cmpBlock != null ? cmpBlock.call(context, a, b) : cmpCallSite.call(context, this, cmpProc, a, b);
+    long result = ret instanceof RubyFixnum ? ((RubyFixnum) ret).getLongValue() : ret.convertToInteger().getLongValue();
+    return result < 0 ? -1 : (result > 0 ? 1 : 0);
+  }
+
+  /**
+   * The value the tree orders a key by: the key itself, or what the
+   * readjust_by block returns for it.
+   */
+  RubyObject sortKeyOf(ThreadContext context, IRubyObject key) {
+    if (sortKeyProc == null) return (RubyObject) key;
+    return (RubyObject) sortKeyProc.getBlock().call(context, key);
+  }
+
+  private Node newNode(IRubyObject key, IRubyObject value, RubyObject sortKey) {
+    Node node = sortKeyProc == null ? new Node(key, value) : new SortKeyNode(key, value, sortKey);
+    node.epoch = epoch;
+    return node;
+  }
+
+  /**
+   * Returns x, or a copy of x put in its place if x may be shared with a
+   * snapshot, which is the case for nodes from before the last snapshot
+   * was taken. The ancestors are made this tree's own first, so a copy
+   * only ever changes child links of nodes no snapshot can see. Parent
+   * links of shared nodes are rewritten freely, RBTreeSnapshot does not
+   * use them.
+   */
+  private Node own(Node x) {
+    if (x.epoch == epoch) return x;
+    Node p = x.parent == null ? null : own(x.parent);
+    Node copy = x.copy();
+    copy.epoch = epoch;
+    relink(x, copy, p);
+    modCount++;
+    return copy;
+  }
+
+  /**
+   * Puts copy in the place of x, under p, which is x's parent or the copy
+   * made of it. Copy already has x's children.
+   */
+  private void relink(Node x, Node copy, Node p) {
+    if (x == leftmost) leftmost = copy;
+    if (x == rightmost) rightmost = copy;
+    copy.parent = p;
+    if (p == null) {
+      this.root = copy;
+    } else if (p.left == x) {
+      p.left = copy;
+    } else {
+      p.right = copy;
+    }
+    if (copy.left != null) copy.left.parent = copy;
+    if (copy.right != null) copy.right.parent = copy;
+  }
+
+  /**
+   * A frozen copy of the tree in O(1): it shares every node with this
+   * tree, which from now on copies the nodes on the path of each change
+   * instead of changing them in place.
+   */
+  @JRubyMethod
+  public IRubyObject snapshot(ThreadContext context) {
+    RBTreeSnapshot ret = new RBTreeSnapshot(context.runtime, snapshotClass(), this);
+    if (root == null) return ret;
+    if (epoch == Short.MAX_VALUE) {
+      // out of epochs: start over, with every node counted as shared
+      visitNodes(root);
+      epoch = 0;
+    }
+    epoch++;
+    return ret;
+  }
+
+  private static void visitNodes(Node x) {
+    for (; x != null; x = x.right) {
+      x.epoch = 0;
+      visitNodes(x.left);
+    }
+  }
+
+  RubyClass snapshotClass() {
+    return getMetaClass().getRealClass();
+  }
+
+  /**
+   * A snapshot for the storages that do not share nodes: a node tree
+   * copy of the entries, frozen the same way.
+   */
+  IRubyObject copySnapshot(ThreadContext context) {
+    MultiRBTree copy = new MultiRBTree(context.runtime, snapshotClass());
+    copy.dupes = dupes;
+    copy.replace(context, this);
+    return new RBTreeSnapshot(context.runtime, snapshotClass(), copy);
+  }
+
+  /**
+   * Makes this tree, a new snapshot, use the nodes and settings of other.
+   */
+  void shareFrom(MultiRBTree other) {
+    this.root = other.root;
+    this.leftmost = other.leftmost;
+    this.rightmost = other.rightmost;
+    this.size = other.size;
+    this.dupes = other.dupes;
+    this.keyType = other.keyType;
+    this.ifNone = other.ifNone;
+    this.flags = (this.flags & ~PROCDEFAULT_HASH_F) | (other.flags & PROCDEFAULT_HASH_F);
+    setComparator(other.cmpProc, other.sortKeyProc);
+  }
+
   @JRubyMethod(name = "default=")
   public IRubyObject setDefaultVal(ThreadContext context, IRubyObject defaultValue) {
     ifNone = defaultValue;
@@ -380,28 +1115,64 @@ public class MultiRBTree extends RubyObject {
 
   @JRubyMethod(name = "cmp_proc")
   public IRubyObject getCmpProc() {
-    return this.cmpProc;
+    return this.cmpProc == null ? getRuntime().getNil() : this.cmpProc;
+  }
+
+  @JRubyMethod(name = "sort_key_proc")
+  public IRubyObject getSortKeyProc() {
+    return this.sortKeyProc == null ? getRuntime().getNil() : this.sortKeyProc;
   }
 
   public MultiRBTree internalPut(ThreadContext context, IRubyObject key, IRubyObject value) {
     return internalPut(context, key, value, true);
   }
 
+  /**
+   * Inserts an entry with a single descent: an equal key met on the way
+   * down, when it is to be kept, ends the walk where it is found, and the
+   * walk otherwise ends at the parent of the new node.
+   */
   public MultiRBTree internalPut(ThreadContext context, IRubyObject key, IRubyObject value, boolean checkExisting) {
-    if (!dupes && checkExisting) {
-      Node node = internalGet(context, (RubyObject) key);
-      if (node != null) {
-        node.setValue(value);
-        return this;
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    boolean stopAtEqual = dupes || checkExisting;
+    Node y = null;
+    Node x = this.root;
+    int ret = 0;
+    while (x != null) {
+      ret = compare(context, type, sortKey, x.getSortKey());
+      if (ret == 0 && stopAtEqual) break;
+      y = x;
+      x = ret < 0 ? x.left : x.right;
+    }
+    if (x != null) {
+      if (dupes) {
+        addDuplicate(x, key, value);
+        if (valueIndex != null) valueIndex.add(key, x.getSortKey(), value);
+      } else {
+        replaceValue(x, value);
       }
+      return this;
     }
+    insertAt(y, ret, newNode(key, value, sortKey));
+    return this;
+  }
 
-    Node x = new Node((RubyObject) key, value);
-    internalPutHelper(context, x);
+  /**
+   * Links z below y, on the left if ret is negative, and rebalances.
+   */
+  private void insertAt(Node y, int ret, Node z) {
+    attach(y, ret, z);
+    if (valueIndex != null) valueIndex.add(z.key, z.getSortKey(), z.value);
+    insertFixup(z);
+  }
+
+  private void insertFixup(Node x) {
     while (x != this.root && x.parent.isRed()) {
       if (x.parent == x.parent.parent.left) {
         Node y = x.parent.parent.right;
-        if (!y.isNull() && y.isRed()) {
+        if (isRed(y)) {
+          y = own(y);
           x.parent.setBlack();
           y.setBlack();
           x.parent.parent.setRed();
@@ -417,7 +1188,8 @@ public class MultiRBTree extends RubyObject {
         }
       } else {
         Node y = x.parent.parent.left;
-        if (!y.isNull() && y.isRed()) {
+        if (isRed(y)) {
+          y = own(y);
           x.parent.setBlack();
           y.setBlack();
           x.parent.parent.setRed();
@@ -434,74 +1206,200 @@ public class MultiRBTree extends RubyObject {
       }
     }
     root.setBlack();
-    return this;
   }
 
-  public IRubyObject internalDelete(ThreadContext context, Node z) {
-    Node y = (z.left.isNull() || z.right.isNull()) ? z : successor(z);
-    Node x = y.left.isNull() ? y.right : y.left;
-    x.parent = y.parent;
-    if (y.parent.isNull()) {
-      this.root = x;
+  /**
+   * Replaces the value of node, the first one if it is a BucketNode.
+   */
+  private Node replaceValue(Node node, IRubyObject value) {
+    node = own(node);
+    Node entry = firstEntry(node);
+    if (valueIndex != null) {
+      valueIndex.remove(entry.key, entry.getSortKey(), entry.value);
+      valueIndex.add(entry.key, entry.getSortKey(), value);
+    }
+    entry.setValue(value);
+    return node;
+  }
+
+  /**
+   * Adds value after the ones already stored under the key of node, which
+   * becomes a BucketNode on its first duplicate. Returns the bucket.
+   */
+  private Node addDuplicate(Node node, IRubyObject key, IRubyObject value) {
+    node = own(node);
+    BucketNode bucket;
+    if (node instanceof BucketNode) {
+      bucket = (BucketNode) node;
     } else {
-      if (y.isLeft()) {
-        y.parent.left = x;
+      bucket = new BucketNode(node);
+      bucket.epoch = epoch;
+      relink(node, bucket, node.parent);
+    }
+    bucket.add(key, value);
+    for (Node p = bucket; p != null; p = p.parent) {
+      p.count += 1;
+    }
+    this.size += 1;
+    this.modCount++;
+    return bucket;
+  }
+
+  public IRubyObject internalDelete(ThreadContext context, Node z) {
+    RubyArray ret = newArray(z);
+    if (valueIndex != null) valueIndex.remove(z.key, z.getSortKey(), z.value);
+    if (z instanceof BucketEntry) {
+      BucketEntry entry = (BucketEntry) z;
+      if (entry.bucket.length > 1) {
+        // one of several values goes, the node stays
+        BucketNode bucket = (BucketNode) own(entry.bucket);
+        bucket.remove(entry.index);
+        for (Node p = bucket; p != null; p = p.parent) {
+          p.count -= 1;
+        }
+        this.size -= 1;
+        this.modCount++;
+        return ret;
+      }
+      z = entry.bucket;
+    }
+    z = own(z);
+    // the first and last node have at most one child, they are unlinked
+    // themselves below
+    if (z == leftmost) leftmost = nextNode(z);
+    if (z == rightmost) rightmost = prevNode(z);
+    // a node with two children takes over its successor's entry, and the
+    // successor, which has at most one child, is unlinked instead
+    Node y = (z.left == null || z.right == null) ? z : own(nextNode(z));
+    if (y != z) {
+      if (y instanceof BucketNode || z instanceof BucketNode) {
+        // a bucket does not fit in a plain node or the other way round,
+        // so a copy of the successor takes z's place
+        Node moved = y.copy();
+        moved.epoch = epoch;
+        moved.left = z.left;
+        moved.right = z.right;
+        moved.count = z.count;
+        moved.color = z.color;
+        relink(z, moved, z.parent);
+        z = moved;
       } else {
-        y.parent.right = x;
+        z.copyEntry(y);
       }
+      if (y == rightmost) rightmost = z;
     }
-    if (y != z) {
-      z.setKey(y.key);
-      z.setValue(y.value);
+    // z held a single entry, while the successor brings all of its own
+    int entries = y.entries();
+    for (Node p = y.parent; p != null; p = p.parent) {
+      p.count -= entries;
+    }
+    if (y != z && entries > 1) {
+      for (Node p = z; p != null; p = p.parent) {
+        p.count += entries - 1;
+      }
+    }
+    Node x = y.left == null ? y.right : y.left;
+    if (x != null) {
+      replaceChild(y, x);
+      y.left = y.right = y.parent = null;
+      if (y.isBlack()) deleteFixup(x);
+    } else if (y.parent == null) {
+      this.root = null;
+    } else {
+      // no child to carry the missing black, fix up with y still in place
+      // but already counted out of its ancestors
+      y.count = 0;
+      if (y.isBlack()) deleteFixup(y);
+      replaceChild(y, null);
+      y.parent = null;
     }
-    if (y.isBlack()) deleteFixup(x);
     this.size -= 1;
+    this.modCount++;
 
-    return newArray(y);
+    return ret;
   }
 
-  private Node minimum() {
-    if (this.root.isNull()) {
-      return this.root;
+  private void replaceChild(Node y, Node x) {
+    if (x != null) x.parent = y.parent;
+    if (y.parent == null) {
+      this.root = x;
+    } else if (y.isLeft()) {
+      y.parent.left = x;
+    } else {
+      y.parent.right = x;
     }
-    return minimum(this.root);
   }
 
-  private Node minimum(Node x) {
-    while (!x.left.isNull()) {
+  Node minimum() {
+    return firstEntry(leftmost);
+  }
+
+  private static Node minimum(Node x) {
+    while (x.left != null) {
       x = x.left;
     }
     return x;
   }
 
-  private Node maximum() {
-    if (this.root.isNull()) {
-      return this.root;
-    }
-    return maximum(this.root);
+  Node maximum() {
+    return lastEntry(rightmost);
   }
 
-  private Node maximum(Node x) {
-    while (!x.right.isNull())
+  private static Node maximum(Node x) {
+    while (x.right != null)
       x = x.right;
     return x;
   }
 
-  // this is wrong, it cannot grant walk all nodes..
-  private Node successor(Node x) {
-    if (!x.right.isNull()) return minimum(x.right);
+  Node successor(Node x) {
+    if (x instanceof BucketEntry) {
+      BucketEntry entry = (BucketEntry) x;
+      if (entry.index + 1 < entry.bucket.length) return new BucketEntry(entry.bucket, entry.index + 1);
+      x = entry.bucket;
+    }
+    return firstEntry(nextNode(x));
+  }
+
+  Node predecessor(Node x) {
+    if (x instanceof BucketEntry) {
+      BucketEntry entry = (BucketEntry) x;
+      if (entry.index > 0) return new BucketEntry(entry.bucket, entry.index - 1);
+      x = entry.bucket;
+    }
+    return lastEntry(prevNode(x));
+  }
+
+  /**
+   * The entry-level primitives above hand out a node itself, or for a key
+   * stored more than once a BucketEntry view of one of its values.
+   */
+  private static Node firstEntry(Node x) {
+    // also takes null, for an empty tree or no next node
+    return x instanceof BucketNode ? new BucketEntry((BucketNode) x, 0) : x;
+  }
+
+  private static Node lastEntry(Node x) {
+    return x instanceof BucketNode ? new BucketEntry((BucketNode) x, ((BucketNode) x).length - 1) : x;
+  }
+
+  static Node entryAt(Node x, int index) {
+    return x instanceof BucketNode ? new BucketEntry((BucketNode) x, index) : x;
+  }
+
+  private static Node nextNode(Node x) {
+    if (x.right != null) return minimum(x.right);
     Node y = x.parent;
-    while (!y.isNull() && x == y.right) {
+    while (y != null && x == y.right) {
       x = y;
       y = y.parent;
     }
     return y;
   }
 
-  private Node predecessor(Node x) {
-    if (!x.left.isNull()) return maximum(x.left);
+  private static Node prevNode(Node x) {
+    if (x.left != null) return maximum(x.left);
     Node y = x.parent;
-    while (!y.isNull() && x == y.left) {
+    while (y != null && x == y.left) {
       x = y;
       y = y.parent;
     }
@@ -561,6 +1459,80 @@ public class MultiRBTree extends RubyObject {
     return nodeOrDefault(context, maximum(), true);
   }
 
+  /**
+   * Removes the first n entries and returns them as [key, value] pairs,
+   * like Array#shift(n).
+   */
+  @JRubyMethod
+  public IRubyObject shift(ThreadContext context, IRubyObject n) {
+    return takeEnd(context, RubyNumeric.num2int(n), false);
+  }
+
+  /**
+   * Removes the last n entries and returns them as [key, value] pairs in
+   * the tree's order, like Array#pop(n).
+   */
+  @JRubyMethod
+  public IRubyObject pop(ThreadContext context, IRubyObject n) {
+    return takeEnd(context, RubyNumeric.num2int(n), true);
+  }
+
+  /**
+   * Removes the first n entries, or the last n if fromEnd. A batch that
+   * is a large part of the tree is taken by rebuilding the rest from a
+   * sorted copy, which is cheaper than deleting entry by entry.
+   */
+  private IRubyObject takeEnd(ThreadContext context, int n, boolean fromEnd) {
+    Ruby runtime = context.runtime;
+    if (n < 0) throw runtime.newArgumentError("negative array size");
+    if (n > size) n = size;
+    if (n * 16L < size) {
+      IRubyObject[] taken = new IRubyObject[n];
+      for (int i = 0; i < n; i++) {
+        if (fromEnd) {
+          taken[n - 1 - i] = internalDelete(context, maximum());
+        } else {
+          taken[i] = internalDelete(context, minimum());
+        }
+      }
+      return runtime.newArray(taken);
+    }
+    int rest = size - n;
+    RubyArray ret = runtime.newArray(n);
+    IRubyObject[] keys = new IRubyObject[rest];
+    IRubyObject[] values = new IRubyObject[rest];
+    Node x = minimum();
+    for (int i = 0, j = 0; x != null; i++, x = successor(x)) {
+      if (fromEnd ? i >= rest : i < n) {
+        ret.append(newArray(x));
+      } else {
+        keys[j] = x.key;
+        values[j++] = x.value;
+      }
+    }
+    init();
+    putAllSorted(context, keys, values, rest);
+    return ret;
+  }
+
+  /**
+   * Removes entries from the front for as long as the block returns true
+   * for them, and returns them as [key, value] pairs.
+   */
+  @JRubyMethod
+  public IRubyObject drain_while(ThreadContext context, Block block) {
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "drain_while");
+    RubyArray ret = context.runtime.newArray();
+    for (Node x = minimum(); x != null; x = minimum()) {
+      int mod = modCount;
+      if (!block.yieldSpecific(context, x.key, x.value).isTrue()) break;
+      // if the block changed the tree, x may be gone: ask again about the
+      // entry that is first now
+      if (mod == modCount) ret.append(internalDelete(context, x));
+    }
+    return ret;
+  }
+
   @JRubyMethod
   public IRubyObject delete(ThreadContext context, IRubyObject key, Block block) {
     Node node = internalGet(context, (RubyObject) key);
@@ -570,67 +1542,138 @@ public class MultiRBTree extends RubyObject {
       }
       return getRuntime().getNil();
     }
+    IRubyObject value = node.value;
     internalDelete(context, node);
-    return node.value;
+    return value;
   }
 
   @JRubyMethod
   public IRubyObject delete_if(final ThreadContext context, final Block block) {
-    return block.isGiven() ? delete_ifInternal(context, block) : enumeratorize(context.runtime, this, "delete_if");
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "delete_if");
+    deleteMatching(context, block, true);
+    return this;
   }
 
-  private IRubyObject delete_ifInternal(final ThreadContext context, final Block block) {
+  @JRubyMethod(name = "reject!")
+  public IRubyObject reject_bang(final ThreadContext context, final Block block) {
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "reject!");
+    return deleteMatching(context, block, true) == 0 ? getRuntime().getNil() : this;
+  }
+
+  @JRubyMethod
+  public IRubyObject keep_if(final ThreadContext context, final Block block) {
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "keep_if");
+    deleteMatching(context, block, false);
+    return this;
+  }
+
+  @JRubyMethod(name = "select!")
+  public IRubyObject select_bang(final ThreadContext context, final Block block) {
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "select!");
+    return deleteMatching(context, block, false) == 0 ? getRuntime().getNil() : this;
+  }
+
+  // a filter deleting at least one entry in this many rebuilds the tree
+  private static final int REBUILD_SHARE = 4;
+
+  /**
+   * Deletes the entries the block returns what for and returns how many
+   * went. The doomed ones are only noted on the way; when they are a
+   * large share of the tree the others are built into a new one in O(n),
+   * otherwise they are deleted one by one. A block that changes the tree
+   * itself always gets the deletes.
+   */
+  private int deleteMatching(final ThreadContext context, final Block block, boolean what) {
     List<Node> nodeList = new ArrayList<Node>();
+    List<Integer> rankList = new ArrayList<Integer>();
+    int start = modCount;
+    int n = size;
+    boolean[] doomed = new boolean[n];
     try {
       iteratorEntry();
-      for (Node x = minimum(); !x.isNull(); x = successor(x)) {
-        if (block.yieldSpecific(context, x.key, x.value).isTrue()) {
+      int rank = 0;
+      for (Node x = minimum(); x != null; rank++) {
+        int mod = modCount;
+        if (block.yieldSpecific(context, x.key, x.value).isTrue() == what) {
           nodeList.add(x);
+          rankList.add(rank);
+          if (rank < n) doomed[rank] = true;
         }
+        x = mod == modCount ? successor(x) : nodeAt(rank + 1);
       }
-      // delete backward
-      for (int i = nodeList.size() - 1; i >= 0; i--) {
-        internalDelete(context, nodeList.get(i));
+      int deleted = nodeList.size();
+      if (deleted > 0 && modCount == start && deleted * REBUILD_SHARE >= n) {
+        rebuildWithout(context, doomed, n - deleted);
+        return deleted;
       }
+      // delete backward, so the ranks of the ones left stay right; a node
+      // that may be shared with a snapshot may also have been replaced by
+      // a copy since, and is found again by its rank
+      for (int i = deleted - 1; i >= 0; i--) {
+        Node node = nodeList.get(i);
+        internalDelete(context, node.epoch == epoch ? node : nodeAt(rankList.get(i)));
+      }
+      return deleted;
     } finally {
       iteratorExit();
     }
-    return this;
   }
 
-  @JRubyMethod(name = "reject!")
-  public IRubyObject reject_bang(final ThreadContext context, final Block block) {
-    return block.isGiven() ? reject_bangInternal(context, block) : enumeratorize(context.runtime, this, "reject!");
-  }
-
-  private IRubyObject reject_bangInternal(ThreadContext context, Block block) {
-    int n = size;
-    delete_if(context, block);
-    if (n == size) return getRuntime().getNil();
-    return this;
+  /**
+   * Rebuilds the tree from its entries but the doomed ones, by rank. The
+   * entries are read again rather than kept from the walk that chose
+   * them, as the block may have stored new values meanwhile.
+   */
+  private void rebuildWithout(ThreadContext context, final boolean[] doomed, int length) {
+    final IRubyObject[] keys = new IRubyObject[length];
+    final IRubyObject[] values = new IRubyObject[length];
+    final int[] at = new int[2];
+    visitAll(new Visitor() {
+      public void visit(IRubyObject key, IRubyObject value) {
+        if (!doomed[at[0]++]) {
+          keys[at[1]] = key;
+          values[at[1]++] = value;
+        }
+      }
+    });
+    init();
+    putAllSorted(context, keys, values, length);
   }
 
   @JRubyMethod
   public IRubyObject reject(final ThreadContext context, final Block block) {
-    return block.isGiven() ? rejectInternal(context, block) : enumeratorize(context.runtime, this, "reject");
-  }
-
-  private IRubyObject rejectInternal(ThreadContext context, Block block) {
-    return ((MultiRBTree) dup()).reject_bangInternal(context, block);
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "reject");
+    return filter(context, block, false);
   }
 
   @JRubyMethod
   public IRubyObject select(final ThreadContext context, final Block block) {
-    final Ruby runtime = getRuntime();
-    if (!block.isGiven()) return enumeratorize(runtime, this, "select");
-
-    final MultiRBTree rbtree = (MultiRBTree) getMetaClass().getRealClass().allocate();
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "select");
+    return filter(context, block, true);
+  }
+
+  /**
+   * A new tree of the entries the block returns what for, built from
+   * them in order in O(n). Like reject! on a copy, reject returns nil
+   * when the block rejected nothing.
+   */
+  private IRubyObject filter(final ThreadContext context, final Block block, final boolean what) {
+    final List<IRubyObject> keys = new ArrayList<IRubyObject>();
+    final List<IRubyObject> values = new ArrayList<IRubyObject>();
+    final int[] dropped = new int[1];
     iteratorVisitAll(new Visitor() {
       public void visit(IRubyObject key, IRubyObject value) {
-        if (block.yieldSpecific(context, key, value).isTrue())
-          rbtree.internalPut(context, key, value);
+        if (block.yieldSpecific(context, key, value).isTrue() == what) {
+          keys.add(key);
+          values.add(value);
+        } else {
+          dropped[0]++;
+        }
       }
     });
+    if (!what && dropped[0] == 0) return context.runtime.getNil();
+    MultiRBTree rbtree = emptyCopy(context);
+    rbtree.putAllSorted(context, keys.toArray(new IRubyObject[keys.size()]), values.toArray(new IRubyObject[values.size()]), keys.size());
     return rbtree;
   }
 
@@ -655,21 +1698,694 @@ public class MultiRBTree extends RubyObject {
 
   @JRubyMethod(name = "values_at", rest = true)
   public IRubyObject values_at(final ThreadContext context, IRubyObject[] args) {
+    IRubyObject[] values = lookupMany(context, args);
     RubyArray result = RubyArray.newArray(context.runtime, args.length);
     for (int i = 0; i < args.length; i++) {
-      result.append(op_aref(context, args[i]));
+      // the default is only asked for once all keys are looked up, it may
+      // change the tree
+      result.append(values[i] == null ? callMethod(context, "default", args[i]) : values[i]);
+    }
+    return result;
+  }
+
+  /**
+   * values_at for an array of keys.
+   */
+  @JRubyMethod
+  public IRubyObject get_many(ThreadContext context, IRubyObject keys) {
+    return values_at(context, keys.convertToArray().toJavaArray());
+  }
+
+  /**
+   * Whether the batch methods may start each search from the node the
+   * last one found, climbing its parent links, rather than from the root.
+   */
+  boolean searchesFromFinger() {
+    return true;
+  }
+
+  /**
+   * The order in which to search sortKeys, each from where the last one
+   * was found, or null to search each from the root. Sorting k keys takes
+   * about as many comparisons as the finger then saves, so a batch that
+   * is not sorted already is only sorted when it is large next to the
+   * tree; k sorted keys cost about O(k log(n/k)) rather than O(k log n).
+   */
+  private Integer[] fingerOrder(ThreadContext context, RubyObject[] sortKeys) {
+    int k = sortKeys.length;
+    int i = 1;
+    while (i < k && compare(context, sortKeys[i - 1], sortKeys[i]) <= 0) i++;
+    if (i >= k) {
+      Integer[] order = new Integer[k];
+      for (int j = 0; j < k; j++) {
+        order[j] = j;
+      }
+      return order;
+    }
+    if ((long) k * 4 < size) return null;
+    return sortedOrder(context, sortKeys);
+  }
+
+  /**
+   * The values stored under keys, the first one of a MultiRBTree, or
+   * null where a key is absent.
+   */
+  IRubyObject[] lookupMany(ThreadContext context, IRubyObject[] keys) {
+    IRubyObject[] values = new IRubyObject[keys.length];
+    if (!searchesFromFinger()) {
+      for (int i = 0; i < keys.length; i++) {
+        Node node = internalGet(context, (RubyObject) keys[i]);
+        if (node != null) values[i] = node.value;
+      }
+      return values;
+    }
+    RubyObject[] sortKeys = sortKeysOf(context, keys);
+    Integer[] order = fingerOrder(context, sortKeys);
+    Node finger = null;
+    for (int j = 0; j < keys.length; j++) {
+      int i = order == null ? j : order[j];
+      int type = keyTypeFor(sortKeys[i]);
+      Node x = lowerNodeFrom(context, type, finger, sortKeys[i]);
+      if (x == null) {
+        // in order, the rest are beyond the last key too
+        if (order != null) break;
+        continue;
+      }
+      if (compare(context, type, sortKeys[i], x.getSortKey()) == 0) values[i] = x.value;
+      if (order != null) finger = x;
+    }
+    return values;
+  }
+
+  /**
+   * The first node whose key is not less than sortKey. The search climbs
+   * from finger only as far as needed and goes down from there; every
+   * node before finger must be less than sortKey. A null finger searches
+   * from the root.
+   */
+  private Node lowerNodeFrom(ThreadContext context, int type, Node finger, RubyObject sortKey) {
+    Node bound = null;
+    Node x = this.root;
+    if (finger != null) {
+      if (compare(context, type, sortKey, finger.getSortKey()) <= 0) return finger;
+      // everything up to y is less than sortKey, the answer is in the
+      // right subtree of y or is the first ancestor passed from the left
+      Node y = finger;
+      while (y.parent != null) {
+        if (y == y.parent.left && compare(context, type, sortKey, y.parent.getSortKey()) <= 0) {
+          bound = y.parent;
+          break;
+        }
+        y = y.parent;
+      }
+      x = y.right;
+    }
+    while (x != null) {
+      int ret = compare(context, type, sortKey, x.getSortKey());
+      if (ret > 0) {
+        x = x.right;
+      } else if (ret < 0) {
+        bound = x;
+        x = x.left;
+      } else {
+        return x;
+      }
+    }
+    return bound;
+  }
+
+  /**
+   * Stores each [key, value] of pairs, an array of them or a Hash, as []=
+   * would. A sorted or large batch is inserted in sorted order, each key
+   * found from the node of the one before; an empty tree is loaded in
+   * bulk.
+   */
+  @JRubyMethod
+  public IRubyObject put_many(ThreadContext context, IRubyObject pairs) {
+    final List<IRubyObject> keyList = new ArrayList<IRubyObject>();
+    final List<IRubyObject> valueList = new ArrayList<IRubyObject>();
+    if (pairs instanceof RubyHash) {
+      ((RubyHash) pairs).visitAll(new RubyHash.Visitor() {
+        public void visit(IRubyObject key, IRubyObject value) {
+          keyList.add(key);
+          valueList.add(value);
+        }
+      });
+    } else {
+      RubyArray array = pairs.convertToArray();
+      for (int i = 0; i < array.getLength(); i++) {
+        IRubyObject pair = array.eltInternal(i);
+        if (!(pair instanceof RubyArray) || ((RubyArray) pair).getLength() != 2) {
+          throw context.runtime.newArgumentError("wrong element type " + pair.getMetaClass().getRealClass().getName() + " at " + i + " (expected [key, value])");
+        }
+        keyList.add(((RubyArray) pair).eltInternal(0));
+        valueList.add(((RubyArray) pair).eltInternal(1));
+      }
+    }
+    putMany(context, keyList.toArray(new IRubyObject[keyList.size()]), valueList.toArray(new IRubyObject[valueList.size()]));
+    return this;
+  }
+
+  private void putMany(ThreadContext context, IRubyObject[] keys, IRubyObject[] values) {
+    int n = keys.length;
+    if (n == 0) return;
+    if (size == 0) {
+      checkIterating();
+      for (int i = 0; i < n; i++) {
+        keys[i] = storedKey(context, keys[i]);
+      }
+      sortAndLoad(context, keys, values);
+      return;
+    }
+    if (!searchesFromFinger()) {
+      for (int i = 0; i < n; i++) {
+        store(context, keys[i], values[i]);
+      }
+      return;
+    }
+    RubyObject[] sortKeys = sortKeysOf(context, keys);
+    Integer[] order = fingerOrder(context, sortKeys);
+    Node finger = null;
+    for (int j = 0; j < n; j++) {
+      int i = order == null ? j : order[j];
+      int type = keyTypeFor(sortKeys[i]);
+      Node x = lowerNodeFrom(context, type, order == null ? null : finger, sortKeys[i]);
+      if (x != null && compare(context, type, sortKeys[i], x.getSortKey()) == 0) {
+        if (dupes) {
+          checkIterating();
+          IRubyObject key = storedKey(context, keys[i]);
+          finger = addDuplicate(x, key, values[i]);
+          if (valueIndex != null) valueIndex.add(key, sortKeys[i], values[i]);
+        } else {
+          finger = replaceValue(x, values[i]);
+        }
+        continue;
+      }
+      // the new node goes right before x, or after the last node
+      checkIterating();
+      Node z = newNode(storedKey(context, keys[i]), values[i], sortKeys[i]);
+      if (x == null) {
+        insertAt(rightmost, 1, z);
+      } else if (x.left == null) {
+        insertAt(x, -1, z);
+      } else {
+        insertAt(maximum(x.left), 1, z);
+      }
+      finger = z;
+    }
+  }
+
+  /**
+   * Fills an empty tree from unsorted entries; for equal keys of an
+   * RBTree the last one wins, as it would with []=.
+   */
+  private void sortAndLoad(ThreadContext context, IRubyObject[] keys, IRubyObject[] values) {
+    Integer[] order = sortedOrder(context, sortKeysOf(context, keys));
+    IRubyObject[] sortedKeys = new IRubyObject[keys.length];
+    IRubyObject[] sortedValues = new IRubyObject[keys.length];
+    for (int j = 0; j < order.length; j++) {
+      sortedKeys[j] = keys[order[j]];
+      sortedValues[j] = values[order[j]];
+    }
+    putAllSorted(context, sortedKeys, sortedValues, keys.length);
+  }
+
+  /**
+   * Deletes each of keys as delete would, without a block, and returns
+   * the values deleted, nil for keys that were absent.
+   */
+  @JRubyMethod
+  public IRubyObject delete_many(ThreadContext context, IRubyObject keys) {
+    IRubyObject[] args = keys.convertToArray().toJavaArray();
+    IRubyObject[] deleted = new IRubyObject[args.length];
+    if (!searchesFromFinger()) {
+      for (int i = 0; i < args.length; i++) {
+        Node node = internalGet(context, (RubyObject) args[i]);
+        if (node != null) {
+          deleted[i] = node.value;
+          internalDelete(context, node);
+        }
+      }
+    } else {
+      RubyObject[] sortKeys = sortKeysOf(context, args);
+      Integer[] order = fingerOrder(context, sortKeys);
+      Node finger = null;
+      for (int j = 0; j < args.length; j++) {
+        int i = order == null ? j : order[j];
+        int type = keyTypeFor(sortKeys[i]);
+        Node x = lowerNodeFrom(context, type, finger, sortKeys[i]);
+        if (x == null) {
+          if (order != null) break;
+          continue;
+        }
+        if (compare(context, type, sortKeys[i], x.getSortKey()) != 0) {
+          if (order != null) finger = x;
+          continue;
+        }
+        // the node before goes on as the finger if the delete neither
+        // removed nor copied it
+        Node before = order == null ? null : prevNode(x);
+        Node entry = firstEntry(x);
+        deleted[i] = entry.value;
+        internalDelete(context, entry);
+        finger = before != null && before.epoch == epoch ? before : null;
+      }
+    }
+    RubyArray ret = context.runtime.newArray(args.length);
+    for (IRubyObject value : deleted) {
+      ret.append(value == null ? context.runtime.getNil() : value);
+    }
+    return ret;
+  }
+
+  /**
+   * Removes the entries whose key sorts before key and returns them as a
+   * new tree. On node storage the tree is cut along one path, O(log n)
+   * whatever the number of entries moved.
+   */
+  @JRubyMethod
+  public IRubyObject take_before(ThreadContext context, IRubyObject key) {
+    return cut(context, key, false, false);
+  }
+
+  /**
+   * Removes the entries from key on and returns them as a new tree.
+   */
+  @JRubyMethod
+  public IRubyObject take_from(ThreadContext context, IRubyObject key) {
+    return cut(context, key, false, true);
+  }
+
+  /**
+   * Splits the tree into one of the entries before key and one of the
+   * rest, which are returned; this tree is left empty.
+   */
+  @JRubyMethod
+  public IRubyObject split(ThreadContext context, IRubyObject key) {
+    MultiRBTree lower = cut(context, key, false, false);
+    MultiRBTree upper = emptyCopy(context);
+    upper.joinTree(context, this);
+    return context.runtime.newArray(lower, upper);
+  }
+
+  /**
+   * Removes the entries with keys from lower to upper, both included, and
+   * returns them as a new tree, in O(log n) on node storage.
+   */
+  @JRubyMethod
+  public IRubyObject delete_range(ThreadContext context, IRubyObject lower, IRubyObject upper) {
+    MultiRBTree range = cut(context, lower, false, true);
+    joinTree(context, range.cut(context, upper, true, true));
+    return range;
+  }
+
+  /**
+   * Moves the entries of other into this tree, leaving other empty. The
+   * keys of one must all sort before those of the other; on node storage
+   * the two are then joined in O(log n).
+   */
+  @JRubyMethod
+  public IRubyObject join(ThreadContext context, IRubyObject other) {
+    checkCompatible(context.runtime, other);
+    MultiRBTree otherTree = (MultiRBTree) other;
+    if (otherTree == this) throw context.runtime.newArgumentError("can't join a tree to itself");
+    otherTree.lockWrite();
+    try {
+      joinTree(context, otherTree);
+    } finally {
+      otherTree.unlockWrite();
+    }
+    return this;
+  }
+
+  /**
+   * Whether split and join may move whole subtrees from one tree to
+   * another, which takes node storage.
+   */
+  boolean canSplit() {
+    return true;
+  }
+
+  /**
+   * Cuts the tree in two, before key, or after it when inclusive, keeps
+   * one part and returns the other, the upper one when takeUpper is set,
+   * as a new tree.
+   */
+  MultiRBTree cut(ThreadContext context, IRubyObject key, boolean inclusive, boolean takeUpper) {
+    checkWritable(context, this);
+    checkIterating();
+    MultiRBTree taken = emptyCopy(context);
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    if (!canSplit()) {
+      SortedEntries entries = entriesInOrder(context, this);
+      int at = 0;
+      while (at < entries.length && goesLower(context, type, sortKey, entries.sortKeys[at], inclusive)) at++;
+      int keep = takeUpper ? 0 : at;
+      int move = takeUpper ? at : 0;
+      int kept = takeUpper ? at : entries.length - at;
+      init();
+      putAllSorted(context, Arrays.copyOfRange(entries.keys, keep, keep + kept), Arrays.copyOfRange(entries.values, keep, keep + kept), kept);
+      taken.putAllSorted(context, Arrays.copyOfRange(entries.keys, move, move + entries.length - kept), Arrays.copyOfRange(entries.values, move, move + entries.length - kept), entries.length - kept);
+      return taken;
+    }
+    // every comparison is made before the tree is touched, so one that
+    // raises leaves it as it was
+    boolean[] path = new boolean[MAX_DEPTH];
+    int depth = 0;
+    for (Node x = root; x != null; depth++) {
+      path[depth] = goesLower(context, type, sortKey, x.getSortKey(), inclusive);
+      x = path[depth] ? x.right : x.left;
+    }
+    Halves halves = new Halves();
+    splitNode(root, blackHeight(root), path, 0, halves);
+    taken.takeNodes(this, takeUpper ? halves.upper : halves.lower);
+    setRootNode(takeUpper ? halves.lower : halves.upper);
+    return taken;
+  }
+
+  private boolean goesLower(ThreadContext context, int type, RubyObject sortKey, RubyObject nodeKey, boolean inclusive) {
+    int ret = compare(context, type, sortKey, nodeKey);
+    return ret > 0 || ret == 0 && inclusive;
+  }
+
+  /**
+   * Moves the entries of other, which is left empty, into this tree.
+   */
+  final void joinTree(ThreadContext context, MultiRBTree other) {
+    checkWritable(context, this);
+    checkWritable(context, other);
+    checkIterating();
+    other.checkIterating();
+    if (other.size == 0) return;
+    if (!canSplit() || !other.canSplit() || !similar(other)) {
+      SortedEntries ours = entriesInOrder(context, this);
+      SortedEntries theirs = sortedEntriesOf(context, other, true);
+      SortedEntries lower = ours;
+      SortedEntries upper = theirs;
+      if (ours.length > 0 && compare(context, ours.sortKeys[ours.length - 1], theirs.sortKeys[0]) >= 0) {
+        if (compare(context, theirs.sortKeys[theirs.length - 1], ours.sortKeys[0]) >= 0) throw overlapError(context);
+        lower = theirs;
+        upper = ours;
+      }
+      IRubyObject[] keys = Arrays.copyOf(lower.keys, lower.length + upper.length);
+      IRubyObject[] values = Arrays.copyOf(lower.values, keys.length);
+      System.arraycopy(upper.keys, 0, keys, lower.length, upper.length);
+      System.arraycopy(upper.values, 0, values, lower.length, upper.length);
+      other.init();
+      init();
+      putAllSorted(context, keys, values, keys.length);
+      return;
+    }
+    if (size == 0) {
+      takeNodes(other, other.root);
+      other.init();
+      return;
+    }
+    boolean after = compare(context, rightmost, other.leftmost) < 0;
+    if (!after && compare(context, other.rightmost, leftmost) >= 0) throw overlapError(context);
+    // other's nodes are shared unless they are of its current epoch; with
+    // this tree's epoch at least other's, this tree takes them that way too
+    if (other.epoch > epoch) epoch = other.epoch;
+    if (valueIndex != null) indexNodes(other.root);
+    if (other.keyType != keyType) keyType = keyType == KEY_NONE ? other.keyType : KEY_GENERIC;
+    Node lower = after ? root : other.root;
+    Node upper = after ? other.root : root;
+    Node first = after ? other.leftmost : leftmost;
+    other.init();
+    // the first node of the upper tree goes between the two
+    boolean[] path = new boolean[MAX_DEPTH];
+    int depth = 0;
+    for (Node x = upper; x != null; depth++) {
+      path[depth] = x == first;
+      x = path[depth] ? x.right : x.left;
+    }
+    Halves halves = new Halves();
+    splitNode(upper, blackHeight(upper), path, 0, halves);
+    int[] height = new int[1];
+    setRootNode(joinNodes(lower, blackHeight(lower), halves.lower, halves.upper, halves.upperHeight, height));
+  }
+
+  private RaiseException overlapError(ThreadContext context) {
+    return context.runtime.newArgumentError("keys of the trees overlap");
+  }
+
+  private static void checkWritable(ThreadContext context, MultiRBTree tree) {
+    tree.checkFrozen();
+  }
+
+  /**
+   * Makes part, cut from the tree from, this tree's nodes.
+   */
+  private void takeNodes(final MultiRBTree from, Node part) {
+    this.epoch = from.epoch;
+    this.keyType = from.keyType;
+    if (from.valueIndex != null) {
+      for (Node x = part == null ? null : minimum(part); x != null; x = nextNode(x)) {
+        final RubyObject sortKey = x.getSortKey();
+        x.visitEntries(new Visitor() {
+          public void visit(IRubyObject key, IRubyObject value) {
+            from.valueIndex.remove(key, sortKey, value);
+          }
+        });
+      }
+    }
+    if (valueIndex != null) indexNodes(part);
+    setRootNode(part);
+  }
+
+  private void indexNodes(Node part) {
+    for (Node x = part == null ? null : minimum(part); x != null; x = nextNode(x)) {
+      final RubyObject sortKey = x.getSortKey();
+      x.visitEntries(new Visitor() {
+        public void visit(IRubyObject key, IRubyObject value) {
+          valueIndex.add(key, sortKey, value);
+        }
+      });
+    }
+  }
+
+  private void setRootNode(Node part) {
+    this.root = part;
+    this.size = countOf(part);
+    this.leftmost = part == null ? null : minimum(part);
+    this.rightmost = part == null ? null : maximum(part);
+    this.modCount++;
+  }
+
+  // no red-black tree of 2^31 entries is deeper than this
+  private static final int MAX_DEPTH = 64;
+
+  private static final class Halves {
+    Node lower;
+    int lowerHeight;
+    Node upper;
+    int upperHeight;
+  }
+
+  private static int blackHeight(Node x) {
+    int height = 0;
+    for (; x != null; x = x.left) {
+      if (x.isBlack()) height++;
+    }
+    return height;
+  }
+
+  /**
+   * Splits the subtree at x, of black height height and at depth depth,
+   * into its nodes that path sends to the lower side and the rest. Each
+   * node on the path joins the pieces split off below it with its
+   * subtree on the other side; the joins cost O(log n) in all.
+   */
+  private void splitNode(Node x, int height, boolean[] path, int depth, Halves out) {
+    if (x == null) {
+      out.lower = out.upper = null;
+      out.lowerHeight = out.upperHeight = 0;
+      return;
+    }
+    x = mine(x);
+    Node left = detach(x.left);
+    Node right = detach(x.right);
+    x.left = x.right = x.parent = null;
+    int childHeight = x.isBlack() ? height - 1 : height;
+    int[] joined = new int[1];
+    if (path[depth]) {
+      splitNode(right, childHeight, path, depth + 1, out);
+      out.lower = joinNodes(left, childHeight, x, out.lower, out.lowerHeight, joined);
+      out.lowerHeight = joined[0];
+    } else {
+      splitNode(left, childHeight, path, depth + 1, out);
+      out.upper = joinNodes(out.upper, out.upperHeight, x, right, childHeight, joined);
+      out.upperHeight = joined[0];
+    }
+  }
+
+  private static Node detach(Node x) {
+    if (x != null) x.parent = null;
+    return x;
+  }
+
+  /**
+   * x, or a copy of x if it may be shared with a snapshot. Unlike own,
+   * linking the copy in is left to the caller, as split and join work
+   * on subtrees cut loose from the tree.
+   */
+  private Node mine(Node x) {
+    if (x == null || x.epoch == epoch) return x;
+    Node copy = x.copy();
+    copy.epoch = epoch;
+    copy.parent = x.parent;
+    if (copy.left != null) copy.left.parent = copy;
+    if (copy.right != null) copy.right.parent = copy;
+    return copy;
+  }
+
+  /**
+   * Joins the subtrees a and b, of black heights ha and hb, with k, whose
+   * key sorts between theirs, in between. k goes down the side of the
+   * taller one to where the other is as tall and is rebalanced up from
+   * there as an inserted node would be, O(|ha - hb| + 1). Returns the
+   * root and its black height in height.
+   */
+  private Node joinNodes(Node a, int ha, Node k, Node b, int hb, int[] height) {
+    if (isRed(a)) {
+      a = mine(a);
+      a.setBlack();
+      ha++;
+    }
+    if (isRed(b)) {
+      b = mine(b);
+      b.setBlack();
+      hb++;
+    }
+    if (ha == hb) {
+      k.left = a;
+      k.right = b;
+      if (a != null) a.parent = k;
+      if (b != null) b.parent = k;
+      k.setBlack();
+      k.count = countOf(a) + countOf(b) + k.entries();
+      height[0] = ha + 1;
+      return k;
+    }
+    if (ha > hb) {
+      Node p = mine(a);
+      int h = ha - 1;
+      Node c = p.right;
+      while (!(isBlack(c) && h == hb)) {
+        c = mine(c);
+        p.right = c;
+        if (c.isBlack()) h--;
+        p = c;
+        c = c.right;
+      }
+      k.left = c;
+      k.right = b;
+      p.right = k;
+      k.parent = p;
+    } else {
+      Node p = mine(b);
+      int h = hb - 1;
+      Node c = p.left;
+      while (!(isBlack(c) && h == ha)) {
+        c = mine(c);
+        p.left = c;
+        if (c.isBlack()) h--;
+        p = c;
+        c = c.left;
+      }
+      k.left = a;
+      k.right = c;
+      p.left = k;
+      k.parent = p;
+    }
+    if (k.left != null) k.left.parent = k;
+    if (k.right != null) k.right.parent = k;
+    k.setRed();
+    for (Node y = k; y != null; y = y.parent) {
+      y.count = countOf(y.left) + countOf(y.right) + y.entries();
+    }
+    Node top = joinFixup(k);
+    height[0] = Math.max(ha, hb);
+    if (top.isRed()) {
+      top.setBlack();
+      height[0]++;
+    }
+    return top;
+  }
+
+  /**
+   * insertFixup for a subtree joinNodes is building: the nodes from x up
+   * are already this tree's own, and the root found is returned. The
+   * rotations may point root at the subtree meanwhile, split and join
+   * set it once they are done.
+   */
+  private Node joinFixup(Node x) {
+    while (x.parent != null && x.parent.isRed()) {
+      Node p = x.parent;
+      Node g = p.parent;
+      if (p == g.left) {
+        Node u = g.right;
+        if (isRed(u)) {
+          u = mine(u);
+          g.right = u;
+          p.setBlack();
+          u.setBlack();
+          g.setRed();
+          x = g;
+        } else {
+          if (x == p.right) {
+            leftRotate(p);
+            p = x;
+          }
+          p.setBlack();
+          g.setRed();
+          rightRotate(g);
+          x = p;
+          break;
+        }
+      } else {
+        Node u = g.left;
+        if (isRed(u)) {
+          u = mine(u);
+          g.left = u;
+          p.setBlack();
+          u.setBlack();
+          g.setRed();
+          x = g;
+        } else {
+          if (x == p.left) {
+            rightRotate(p);
+            p = x;
+          }
+          p.setBlack();
+          g.setRed();
+          leftRotate(g);
+          x = p;
+          break;
+        }
+      }
     }
-    return result;
+    while (x.parent != null) {
+      x = x.parent;
+    }
+    return x;
   }
 
   @JRubyMethod
   public IRubyObject invert(final ThreadContext context) {
     final MultiRBTree rbtree = (MultiRBTree) getMetaClass().getRealClass().allocate();
+    final IRubyObject[] keys = new IRubyObject[size];
+    final IRubyObject[] values = new IRubyObject[size];
+    final int[] length = new int[1];
     iteratorVisitAll(new Visitor() {
       public void visit(IRubyObject key, IRubyObject value) {
-        rbtree.internalPut(context, value, key);
+        keys[length[0]] = value;
+        values[length[0]++] = key;
       }
     });
+    // only sorted when the values happen to be, putAllSorted checks
+    rbtree.putAllSorted(context, keys, values, length[0]);
     return rbtree;
   }
 
@@ -678,7 +2394,7 @@ public class MultiRBTree extends RubyObject {
   }
 
   private IRubyObject nodeOrDefault(ThreadContext context, Node node, boolean deleteNode) {
-    if (node.isNull()) {
+    if (node == null) {
       if (this.ifNone == null)
         return getRuntime().getNil();
       if ((flags & PROCDEFAULT_HASH_F) != 0)
@@ -686,7 +2402,7 @@ public class MultiRBTree extends RubyObject {
       return ifNone;
     }
     if (deleteNode) {
-      internalDelete(context, node);
+      return internalDelete(context, node);
     }
     return newArray(node);
   }
@@ -705,10 +2421,35 @@ public class MultiRBTree extends RubyObject {
     return this;
   }
 
+  /**
+   * An external iterator over the entries: next, prev and peek walk the
+   * tree directly instead of through an Enumerator. With a key, the
+   * cursor starts on the first entry not less than it.
+   */
+  @JRubyMethod(optional = 1)
+  public IRubyObject cursor(ThreadContext context, IRubyObject[] args) {
+    Arity.checkArgumentCount(context.runtime, args, 0, 1);
+    RBTreeCursor cursor = new RBTreeCursor(context.runtime, this);
+    if (args.length == 1) cursor.seek(context, args[0]);
+    return cursor;
+  }
+
   public Node internalGet(ThreadContext context, RubyObject key) {
+    return findNode(context, sortKeyOf(context, key));
+  }
+
+  Node findNode(ThreadContext context, RubyObject sortKey) {
+    return firstEntry(lookupNode(context, sortKey));
+  }
+
+  /**
+   * The node holding sortKey, a BucketNode if it holds several values.
+   */
+  private Node lookupNode(ThreadContext context, RubyObject sortKey) {
+    int type = keyTypeFor(sortKey);
     Node x = this.root;
-    while (!x.isNull()) {
-      int ret = compare(context, key, x.key);
+    while (x != null) {
+      int ret = compare(context, type, sortKey, x.getSortKey());
       if (ret > 0) {
         x = x.right;
       } else if (ret < 0) {
@@ -725,13 +2466,67 @@ public class MultiRBTree extends RubyObject {
     return getRuntime().newBoolean(size == 0);
   }
 
+  /**
+   * :node, or :compact for a tree made with RBTree.new(storage: :compact).
+   */
+  @JRubyMethod(name = "storage")
+  public IRubyObject storage(ThreadContext context) {
+    return context.runtime.newSymbol("node");
+  }
+
+  /**
+   * Estimated heap used by the tree structure, not counting the keys and
+   * values themselves: one node per key of an object header, five
+   * references, the subtree count, the color and the snapshot epoch,
+   * padded to 8 bytes. A key stored more than once has a bucket node with
+   * a value array instead, so for a MultiRBTree the nodes are counted.
+   */
+  @JRubyMethod(name = "memory_footprint")
+  public IRubyObject memory_footprint(ThreadContext context) {
+    Ruby runtime = context.runtime;
+    int ref = referenceSize();
+    int fields = 5 + (sortKeyProc == null ? 0 : 1);
+    int nodeBytes = (objectHeaderSize() + fields * ref + 4 + 1 + 2 + 7) & ~7;
+    long bytes = (long) nodeBytes * size;
+    if (dupes) {
+      int bucketBytes = (objectHeaderSize() + 8 * ref + 4 + 4 + 1 + 2 + 7) & ~7;
+      bytes = 0;
+      for (Node x = leftmost; x != null; x = nextNode(x)) {
+        if (x instanceof BucketNode) {
+          BucketNode bucket = (BucketNode) x;
+          long arrayBytes = (objectHeaderSize() + 4 + (long) bucket.values.length * ref + 7) & ~7;
+          bytes += bucketBytes + (bucket.keys == null ? arrayBytes : 2 * arrayBytes);
+        } else {
+          bytes += nodeBytes;
+        }
+      }
+    }
+    RubyHash ret = RubyHash.newHash(runtime);
+    ret.fastASet(runtime.newSymbol("entries"), runtime.newFixnum(size));
+    ret.fastASet(runtime.newSymbol("bytes_per_entry"), runtime.newFixnum(size == 0 ? nodeBytes : bytes / size));
+    ret.fastASet(runtime.newSymbol("bytes"), runtime.newFixnum(bytes));
+    return ret;
+  }
+
+  private static final boolean IS_64 = "64".equals(System.getProperty("sun.arch.data.model"));
+  // HotSpot compresses references by default below a 32GB heap
+  private static final boolean COMPRESSED_OOPS = IS_64 && Runtime.getRuntime().maxMemory() < (32L << 30);
+
+  static int referenceSize() {
+    return IS_64 && !COMPRESSED_OOPS ? 8 : 4;
+  }
+
+  static int objectHeaderSize() {
+    return IS_64 ? (COMPRESSED_OOPS ? 12 : 16) : 8;
+  }
+
   @JRubyMethod(name = "black_height")
   public IRubyObject blackHeight() {
     Node x = this.root;
     int height = 0;
-    while (!x.isNull()) {
+    while (x != null) {
       x = x.left;
-      if (x.isNull() || x.isBlack()) height += 1;
+      if (isBlack(x)) height += 1;
     }
     return RubyFixnum.newFixnum(getRuntime(), height);
   }
@@ -740,11 +2535,11 @@ public class MultiRBTree extends RubyObject {
     Node y = x.right;
     x.right = y.left;
 
-    if (!y.left.isNull()) {
+    if (y.left != null) {
       y.left.parent = x;
     }
     y.parent = x.parent;
-    if (x.parent.isNull()) {
+    if (x.parent == null) {
       this.root = y;
     } else {
       if (x.isLeft()) {
@@ -754,16 +2549,18 @@ public class MultiRBTree extends RubyObject {
     }
     y.left = x;
     x.parent = y;
+    y.count = x.count;
+    x.count = countOf(x.left) + countOf(x.right) + x.entries();
   }
 
   private void rightRotate(Node x) {
     Node y = x.left;
     x.left = y.right;
-    if (!y.right.isNull()) {
+    if (y.right != null) {
       y.right.parent = x;
     }
     y.parent = x.parent;
-    if (x.parent.isNull()) {
+    if (x.parent == null) {
       this.root = y;
     } else {
       if (x.isLeft()) {
@@ -774,91 +2571,193 @@ public class MultiRBTree extends RubyObject {
     }
     y.right = x;
     x.parent = y;
+    y.count = x.count;
+    x.count = countOf(x.left) + countOf(x.right) + x.entries();
+  }
+
+  int compare(ThreadContext context, Node a, Node b) {
+    return compare(context, a.getSortKey(), b.getSortKey());
   }
 
-  private int compare(ThreadContext context, Node a, Node b) {
-    return compare(context, a.key, b.key);
+  int compare(ThreadContext context, RubyObject a, RubyObject b) {
+    return compare(context, keyTypeFor(a), a, b);
   }
 
-  private int compare(ThreadContext context, RubyObject a, RubyObject b) {
+  /**
+   * Compares two keys. When the type says every key in play is a Fixnum,
+   * Float, String or Symbol whose <=> has not been redefined the values
+   * are compared directly, otherwise <=> or the cmp_proc is called. The
+   * direct paths still check their operands, so a stale type only costs
+   * the generic call.
+   */
+  int compare(ThreadContext context, int type, RubyObject a, RubyObject b) {
+    int ret = compareTyped(getRuntime(), type, a, b);
+    if (ret != UNTYPED) return ret;
     if (context == null || cmpProc == null)
       return a.compareTo(b);
-    return (int) cmpProc.call(context, new IRubyObject[]{a, b}).convertToInteger().getLongValue();
+    return callComparator(context, a, b);
+  }
+
+  /**
+   * The direct comparison of compare(), shared with MultiSkipListMap:
+   * -1, 0 or 1 if a and b are both of the given type and comparable
+   * without <=>, UNTYPED otherwise.
+   */
+  static int compareTyped(Ruby runtime, int type, IRubyObject a, IRubyObject b) {
+    switch (type) {
+      case KEY_FIXNUM:
+        if (a instanceof RubyFixnum && b instanceof RubyFixnum) {
+          long x = ((RubyFixnum) a).getLongValue();
+          long y = ((RubyFixnum) b).getLongValue();
+          return x < y ? -1 : (x > y ? 1 : 0);
+        }
+        break;
+      case KEY_FLOAT:
+        if (a instanceof RubyFloat && b instanceof RubyFloat) {
+          double x = ((RubyFloat) a).getDoubleValue();
+          double y = ((RubyFloat) b).getDoubleValue();
+          // NaN is not comparable, let <=> raise as usual
+          if (x < y) return -1;
+          if (x > y) return 1;
+          if (x == y) return 0;
+        }
+        break;
+      case KEY_STRING:
+        RubyClass stringClass = runtime.getString();
+        if (a.getMetaClass() == stringClass && b.getMetaClass() == stringClass) {
+          RubyString x = (RubyString) a;
+          RubyString y = (RubyString) b;
+          int ret = x.getByteList().cmp(y.getByteList());
+          // equal bytes in different encodings are ordered by <=>
+          if (ret != 0 || x.getEncoding() == y.getEncoding()) return ret < 0 ? -1 : (ret > 0 ? 1 : 0);
+        }
+        break;
+      case KEY_SYMBOL:
+        if (a instanceof RubySymbol && b instanceof RubySymbol) {
+          if (a == b) return 0;
+          int ret = ((RubySymbol) a).asString().getByteList().cmp(((RubySymbol) b).asString().getByteList());
+          return ret < 0 ? -1 : (ret > 0 ? 1 : 0);
+        }
+        break;
+    }
+    return UNTYPED;
   }
 
-  private void internalPutHelper(ThreadContext context, Node z) {
-    Node y = NilNode.getInstance();
-    Node x = this.root;
-    while (!x.isNull()) {
-      y = x;
-      x = compare(context, z, x) < 0 ? x.left : x.right;
+  private int keyTypeOf(IRubyObject key) {
+    if (key instanceof RubyFixnum) return KEY_FIXNUM;
+    if (key instanceof RubyFloat) return KEY_FLOAT;
+    if (key instanceof RubySymbol) return KEY_SYMBOL;
+    if (key.getMetaClass() == getRuntime().getString()) return KEY_STRING;
+    return KEY_GENERIC;
+  }
+
+  /**
+   * The comparison to use for a search with the given key: a direct one if
+   * the key has the same type as everything already in the tree and its
+   * class still has the builtin <=>, the generic one otherwise.
+   */
+  int keyTypeFor(IRubyObject key) {
+    if (cmpProc != null) return KEY_GENERIC;
+    int type = keyTypeOf(key);
+    if (type == KEY_GENERIC || keyType != KEY_NONE && keyType != type) return KEY_GENERIC;
+    Ruby runtime = getRuntime();
+    switch (type) {
+      case KEY_FIXNUM:
+        return runtime.getFixnum().isMethodBuiltin("<=>") ? type : KEY_GENERIC;
+      case KEY_FLOAT:
+        return runtime.getFloat().isMethodBuiltin("<=>") ? type : KEY_GENERIC;
+      case KEY_STRING:
+        return runtime.getString().isMethodBuiltin("<=>") ? type : KEY_GENERIC;
+      default:
+        return runtime.getSymbol().isMethodBuiltin("<=>") ? type : KEY_GENERIC;
+    }
+  }
+
+  void addKeyType(IRubyObject key) {
+    int type = keyTypeOf(key);
+    if (keyType == KEY_NONE) {
+      keyType = type;
+    } else if (keyType != type) {
+      keyType = KEY_GENERIC;
     }
+  }
+
+  private void attach(Node y, int ret, Node z) {
+    if (y != null) y = own(y);
     z.parent = y;
-    if (y.isNull()) {
+    if (y == null) {
       this.root = z;
+      this.leftmost = this.rightmost = z;
     } else {
-      if (compare(context, z, y) < 0) {
+      if (ret < 0) {
         y.left = z;
+        if (y == leftmost) leftmost = z;
       } else {
         y.right = z;
+        if (y == rightmost) rightmost = z;
       }
     }
+    for (; y != null; y = y.parent) {
+      y.count += 1;
+    }
+    addKeyType(z.getSortKey());
     this.size += 1;
+    this.modCount++;
   }
 
   private void deleteFixup(Node x) {
     while (x != this.root && x.isBlack()) {
       if (x.isLeft()) {
-        Node w = x.parent.right;
+        Node w = own(x.parent.right);
         if (w.isRed()) {
           w.setBlack();
           x.parent.setRed();
           leftRotate(x.parent);
-          w = x.parent.right;
+          w = own(x.parent.right);
         }
-        if (w.left.isBlack() && w.right.isBlack()) {
+        if (isBlack(w.left) && isBlack(w.right)) {
           w.setRed();
           x = x.parent;
         } else {
-          if (w.right.isBlack()) {
-            w.left.setBlack();
+          if (isBlack(w.right)) {
+            own(w.left).setBlack();
             w.setRed();
             rightRotate(w);
             w = x.parent.right;
           }
           w.color = x.parent.color;
           x.parent.setBlack();
-          w.right.setBlack();
+          own(w.right).setBlack();
           leftRotate(x.parent);
           x = this.root;
         }
       } else {
-        Node w = x.parent.left;
+        Node w = own(x.parent.left);
         if (w.isRed()) {
           w.setBlack();
           x.parent.setRed();
           rightRotate(x.parent);
-          w = x.parent.left;
+          w = own(x.parent.left);
         }
-        if (w.right.isBlack() && w.left.isBlack()) {
+        if (isBlack(w.right) && isBlack(w.left)) {
           w.setRed();
           x = x.parent;
         } else {
-          if (w.left.isBlack()) {
-            w.right.setBlack();
+          if (isBlack(w.left)) {
+            own(w.right).setBlack();
             w.setRed();
-            rightRotate(w);
+            leftRotate(w);
             w = x.parent.left;
           }
           w.color = x.parent.color;
           x.parent.setBlack();
-          w.left.setBlack();
+          own(w.left).setBlack();
           rightRotate(x.parent);
           x = this.root;
         }
       }
     }
-    x.setBlack();
+    own(x).setBlack();
   }
 
   @JRubyMethod(name = "size")
@@ -877,84 +2776,266 @@ public class MultiRBTree extends RubyObject {
   }
 
   public Node lower_boundInternal(ThreadContext context, IRubyObject key) {
-    Ruby runtime = getRuntime();
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
     Node node = this.root;
-    Node tentative = NilNode.getInstance();
-    while (!node.isNull()) {
-      int result = compare(context, (RubyObject) key, node.key);
+    Node tentative = null;
+    while (node != null) {
+      int result = compare(context, type, sortKey, node.getSortKey());
       if (result > 0) {
         node = node.right;
       } else if (result < 0) {
         tentative = node;
         node = node.left;
       } else {
-        if (!dupes) {
-          return node;
-        } else {
-          tentative = node;
-          node = node.left;
-        }
+        // equal keys share a node, so this is the only one
+        return firstEntry(node);
       }
     }
-    return tentative;
+    return firstEntry(tentative);
   }
 
   @JRubyMethod
   public IRubyObject lower_bound(ThreadContext context, IRubyObject key) {
     Node node = lower_boundInternal(context, key);
-    return node.isNull() ? context.runtime.getNil() : newArray(node);
+    return node == null ? context.runtime.getNil() : newArray(node);
   }
 
   public Node upper_boundInternal(ThreadContext context, IRubyObject key) {
-    Ruby runtime = getRuntime();
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
     Node node = this.root;
-    Node tentative = NilNode.getInstance();
-    while (!node.isNull()) {
-      int result = compare(context, (RubyObject) key, node.key);
+    Node tentative = null;
+    while (node != null) {
+      int result = compare(context, type, sortKey, node.getSortKey());
       if (result < 0) {
         node = node.left;
       } else if (result > 0) {
         tentative = node;
         node = node.right;
       } else {
-        if (!dupes) {
-          return node;
-        } else { // if there are duplicates, go to the far right
-          tentative = node;
-          node = node.right;
-        }
+        return lastEntry(node);
       }
     }
-    return tentative;
+    return lastEntry(tentative);
   }
 
   @JRubyMethod
   public IRubyObject upper_bound(ThreadContext context, IRubyObject key) {
     Node node = upper_boundInternal(context, key);
-    return node.isNull() ? context.runtime.getNil() : newArray(node);
+    return node == null ? context.runtime.getNil() : newArray(node);
   }
 
-  @JRubyMethod(name = "bound", required = 1, optional = 1)
-  public IRubyObject bound(final ThreadContext context, final IRubyObject[] bounds, final Block block) {
-    final Ruby runtime = getRuntime();
-    final RubyArray ret = runtime.newArray();
+  /**
+   * Number of entries whose key sorts before the given one, or before or
+   * equal to it when inclusive is set. Uses the subtree counts, O(log n).
+   */
+  int countBefore(ThreadContext context, IRubyObject key, boolean inclusive) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    int ret = 0;
+    Node node = this.root;
+    while (node != null) {
+      int result = compare(context, type, node.getSortKey(), sortKey);
+      if (result < 0 || inclusive && result == 0) {
+        ret += countOf(node.left) + node.entries();
+        node = node.right;
+      } else {
+        node = node.left;
+      }
+    }
+    return ret;
+  }
+
+  int rankOf(Node node) {
+    int ret = 0;
+    if (node instanceof BucketEntry) {
+      ret = ((BucketEntry) node).index;
+      node = ((BucketEntry) node).bucket;
+    }
+    ret += countOf(node.left);
+    for (Node x = node; x.parent != null; x = x.parent) {
+      if (x.isRight()) ret += countOf(x.parent.left) + x.parent.entries();
+    }
+    return ret;
+  }
+
+  Node nodeAt(int index) {
+    Node x = this.root;
+    while (x != null) {
+      int leftCount = countOf(x.left);
+      if (index < leftCount) {
+        x = x.left;
+      } else if (index < leftCount + x.entries()) {
+        return entryAt(x, index - leftCount);
+      } else {
+        index -= leftCount + x.entries();
+        x = x.right;
+      }
+    }
+    return null;
+  }
+
+  @JRubyMethod
+  public IRubyObject rank(ThreadContext context, IRubyObject key) {
+    Node node = lower_boundInternal(context, key);
+    if (node == null || compare(context, node.getSortKey(), sortKeyOf(context, key)) != 0) return context.runtime.getNil();
+    return context.runtime.newFixnum(rankOf(node));
+  }
+
+  @JRubyMethod(name = {"at", "nth"})
+  public IRubyObject at(ThreadContext context, IRubyObject index) {
+    int i = RubyNumeric.num2int(index);
+    if (i < 0) i += size;
+    if (i < 0 || i >= size) return context.runtime.getNil();
+    return newArray(nodeAt(i));
+  }
+
+  /**
+   * With a key, the number of entries stored under it, in O(log n).
+   * Otherwise as Enumerable#count: the size, or how many entries the
+   * block accepts.
+   */
+  @JRubyMethod(optional = 1)
+  public IRubyObject count(final ThreadContext context, IRubyObject[] args, final Block block) {
+    Arity.checkArgumentCount(context.runtime, args, 0, 1);
+    if (args.length == 1) {
+      return context.runtime.newFixnum(countBefore(context, args[0], true) - countBefore(context, args[0], false));
+    }
+    if (!block.isGiven()) return context.runtime.newFixnum(size);
+    final int[] ret = new int[1];
     iteratorVisitAll(new Visitor() {
       public void visit(IRubyObject key, IRubyObject value) {
-        if (((RubyObject) key).compareTo((RubyObject) bounds[0]) == 0
-                || bounds.length == 2 && ((RubyObject) key).compareTo((RubyObject) bounds[0]) >= 0
-                && ((RubyObject) key).compareTo((RubyObject) bounds[1]) <= 0) {
-          if (block.isGiven()) {
-            block.yieldSpecific(context, key, value);
-          } else {
-            ret.add(runtime.newArray(key, value));
-          }
-        }
+        if (block.yieldSpecific(context, key, value).isTrue()) ret[0]++;
       }
     });
+    return context.runtime.newFixnum(ret[0]);
+  }
+
+  /**
+   * The values stored under key, in the order they were added.
+   */
+  @JRubyMethod
+  public IRubyObject values_for(ThreadContext context, IRubyObject key) {
+    int from = countBefore(context, key, false);
+    int length = countBefore(context, key, true) - from;
+    RubyArray ret = context.runtime.newArray(length);
+    Node x = length == 0 ? null : nodeAt(from);
+    for (int i = 0; i < length; i++, x = successor(x)) {
+      ret.append(x.value);
+    }
+    return ret;
+  }
+
+  @JRubyMethod(name = "count_between", required = 1, optional = 1)
+  public IRubyObject count_between(ThreadContext context, IRubyObject[] bounds) {
+    IRubyObject lower = bounds[0];
+    IRubyObject upper = bounds.length == 2 ? bounds[1] : bounds[0];
+    boolean excludeEnd = false;
+    if (bounds.length == 1 && bounds[0] instanceof RubyRange) {
+      RubyRange range = (RubyRange) bounds[0];
+      lower = range.first(context);
+      upper = range.last(context);
+      excludeEnd = range.exclude_end_p().isTrue();
+    }
+    int ret = countBefore(context, upper, !excludeEnd) - countBefore(context, lower, false);
+    return context.runtime.newFixnum(ret < 0 ? 0 : ret);
+  }
+
+  @JRubyMethod
+  public IRubyObject slice(ThreadContext context, IRubyObject offset, IRubyObject limit) {
+    int from = RubyNumeric.num2int(offset);
+    int length = RubyNumeric.num2int(limit);
+    if (from < 0) from += size;
+    if (from < 0 || from > size || length < 0) return context.runtime.getNil();
+    if (length > size - from) length = size - from;
+    RubyArray ret = context.runtime.newArray(length);
+    Node x = nodeAt(from);
+    for (int i = 0; i < length; i++, x = successor(x)) {
+      ret.append(newArray(x));
+    }
+    return ret;
+  }
+
+  /**
+   * Last node whose key is strictly less than the given one, the
+   * counterpart of upper_boundInternal for ranges excluding their end.
+   */
+  Node lastBeforeInternal(ThreadContext context, IRubyObject key) {
+    RubyObject sortKey = sortKeyOf(context, key);
+    int type = keyTypeFor(sortKey);
+    Node node = this.root;
+    Node tentative = null;
+    while (node != null) {
+      if (compare(context, type, node.getSortKey(), sortKey) < 0) {
+        tentative = node;
+        node = node.right;
+      } else {
+        node = node.left;
+      }
+    }
+    return lastEntry(tentative);
+  }
+
+  @JRubyMethod(name = "bound", required = 1, optional = 1)
+  public IRubyObject bound(final ThreadContext context, final IRubyObject[] bounds, final Block block) {
+    return boundCommon(context, bounds, block, false);
+  }
+
+  @JRubyMethod(name = "reverse_bound", required = 1, optional = 1)
+  public IRubyObject reverse_bound(final ThreadContext context, final IRubyObject[] bounds, final Block block) {
+    return boundCommon(context, bounds, block, true);
+  }
+
+  /**
+   * Walks the nodes between lower_bound(lower) and upper_bound(upper), so
+   * the cost is O(log n + k) in the number of entries found. A single Range
+   * argument gives both ends and may exclude the upper one.
+   */
+  private IRubyObject boundCommon(ThreadContext context, IRubyObject[] bounds, Block block, boolean reverse) {
+    IRubyObject lower = bounds[0];
+    IRubyObject upper = bounds.length == 2 ? bounds[1] : bounds[0];
+    boolean excludeEnd = false;
+    if (bounds.length == 1 && bounds[0] instanceof RubyRange) {
+      RubyRange range = (RubyRange) bounds[0];
+      lower = range.first(context);
+      upper = range.last(context);
+      excludeEnd = range.exclude_end_p().isTrue();
+    }
+    RubyArray ret = getRuntime().newArray();
+    Node from = lower_boundInternal(context, lower);
+    Node to = excludeEnd ? lastBeforeInternal(context, upper) : upper_boundInternal(context, upper);
+    if (from == null || to == null || compare(context, from, to) > 0) return ret;
+
+    // walk by count rather than stopping at the last node, the compact
+    // storage hands out a fresh Node for every step
+    int fromRank = rankOf(from);
+    int toRank = rankOf(to);
+    int length = toRank - fromRank + 1;
+    Node x = reverse ? to : from;
+    try {
+      iteratorEntry();
+      for (int i = 0; i < length; i++) {
+        int mod = modCount;
+        if (block.isGiven()) {
+          block.yieldSpecific(context, x.key, x.value);
+        } else {
+          ret.append(newArray(x));
+        }
+        if (i + 1 == length) break;
+        if (mod != modCount) {
+          x = nodeAt(reverse ? toRank - i - 1 : fromRank + i + 1);
+        } else {
+          x = reverse ? predecessor(x) : successor(x);
+        }
+      }
+    } finally {
+      iteratorExit();
+    }
     return ret;
   }
 
-  private RubyArray newArray(Node node) {
+  RubyArray newArray(Node node) {
     return getRuntime().newArray(node.key, node.value);
   }
 
@@ -962,23 +3043,149 @@ public class MultiRBTree extends RubyObject {
   public IRubyObject replace(final ThreadContext context, IRubyObject other) {
     checkCompatible(context.runtime, other);
     MultiRBTree otherTree = (MultiRBTree) other;
-    return replaceInternal(context, otherTree, otherTree.cmpProc);
+    return replaceInternal(context, otherTree, otherTree.cmpProc, otherTree.sortKeyProc);
   }
 
-  private IRubyObject replaceInternal(final ThreadContext context, MultiRBTree otherTree, RubyProc cmpfunc) {
+  private IRubyObject replaceInternal(final ThreadContext context, MultiRBTree otherTree, IRubyObject cmpfunc, RubyProc keyfunc) {
     init();
     if (this == otherTree) return this;
     this.ifNone = otherTree.ifNone;
-    this.flags = otherTree.flags;
-    this.cmpProc = cmpfunc;
+    // only the default proc flag, dup and clone see to frozen
+    this.flags = (this.flags & ~PROCDEFAULT_HASH_F) | (otherTree.flags & PROCDEFAULT_HASH_F);
+    // a copy of an indexed tree is indexed too, like dup keeps a Hash's
+    // compare_by_identity
+    if (otherTree.valueIndex != null && valueIndex == null && canIndexValues()) {
+      this.valueIndex = new ValueIndex(this);
+    }
+    setComparator(cmpfunc, keyfunc);
+    final IRubyObject[] keys = new IRubyObject[otherTree.size];
+    final IRubyObject[] values = new IRubyObject[otherTree.size];
+    final int[] length = new int[1];
     otherTree.visitAll(new Visitor() {
       public void visit(IRubyObject key, IRubyObject value) {
-        internalPut(context, key, value);
+        keys[length[0]] = key;
+        values[length[0]++] = value;
       }
     });
+    putAllSorted(context, keys, values, length[0]);
     return this;
   }
 
+  /**
+   * Loads entries into an empty tree. If the keys are already in order
+   * under this tree's comparator the tree is built bottom up in O(n),
+   * otherwise every entry goes through internalPut.
+   */
+  void putAllSorted(ThreadContext context, IRubyObject[] keys, IRubyObject[] values, int length) {
+    IRubyObject[] sortKeys = keys;
+    if (sortKeyProc != null) {
+      sortKeys = new IRubyObject[length];
+      for (int i = 0; i < length; i++) {
+        sortKeys[i] = sortKeyOf(context, keys[i]);
+      }
+    }
+    if (this.size == 0 && isSorted(context, sortKeys, length)) {
+      // built nodes are of epoch 0, which is this tree's own once it is empty
+      this.epoch = 0;
+      this.modCount++;
+      int[] runs = dupes ? runsOf(context, sortKeys, length) : null;
+      int nodes = runs == null ? length : runs.length - 1;
+      this.root = buildFromSorted(0, 0, nodes - 1, computeRedLevel(nodes), keys, values, sortKeyProc == null ? null : sortKeys, runs);
+      this.leftmost = root == null ? null : minimum(root);
+      this.rightmost = root == null ? null : maximum(root);
+      this.size = length;
+      for (int i = 0; i < length && keyType != KEY_GENERIC; i++) {
+        addKeyType(sortKeys[i]);
+      }
+      for (int i = 0; valueIndex != null && i < length; i++) {
+        valueIndex.add(keys[i], (RubyObject) sortKeys[i], values[i]);
+      }
+      return;
+    }
+    for (int i = 0; i < length; i++) {
+      internalPut(context, keys[i], values[i]);
+    }
+  }
+
+  boolean isSorted(ThreadContext context, IRubyObject[] keys, int length) {
+    int type = length > 0 ? keyTypeFor(keys[0]) : KEY_GENERIC;
+    for (int i = 1; i < length; i++) {
+      int ret = compare(context, type, (RubyObject) keys[i - 1], (RubyObject) keys[i]);
+      // equal keys are only kept side by side in a MultiRBTree
+      if (ret > 0 || ret == 0 && !dupes) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Where each run of equal keys starts in sorted keys, with length added
+   * at the end, or null when all keys differ.
+   */
+  private int[] runsOf(ThreadContext context, IRubyObject[] keys, int length) {
+    int type = length > 0 ? keyTypeFor(keys[0]) : KEY_GENERIC;
+    int[] runs = new int[length + 1];
+    int count = 0;
+    for (int i = 0; i < length; i++) {
+      if (i == 0 || compare(context, type, (RubyObject) keys[i - 1], (RubyObject) keys[i]) != 0) runs[count++] = i;
+    }
+    if (count == length) return null;
+    runs[count] = length;
+    int[] ret = new int[count + 1];
+    System.arraycopy(runs, 0, ret, 0, count + 1);
+    return ret;
+  }
+
+  /**
+   * Builds a complete tree from nodes lo..hi, node i holding entry i, or
+   * the entries of run i when runs is given. All nodes are black except
+   * the ones on the deepest, possibly partial, level which are red, so the
+   * black height is the same along every path.
+   */
+  private static Node buildFromSorted(int level, int lo, int hi, int redLevel, IRubyObject[] keys, IRubyObject[] values, IRubyObject[] sortKeys, int[] runs) {
+    if (hi < lo) return null;
+    int mid = (lo + hi) >>> 1;
+    Node left = buildFromSorted(level + 1, lo, mid - 1, redLevel, keys, values, sortKeys, runs);
+    int from = runs == null ? mid : runs[mid];
+    int to = runs == null ? mid + 1 : runs[mid + 1];
+    Node middle;
+    if (to - from > 1) {
+      IRubyObject[] bucket = new IRubyObject[to - from];
+      System.arraycopy(values, from, bucket, 0, to - from);
+      IRubyObject[] bucketKeys = null;
+      for (int i = from + 1; i < to && bucketKeys == null; i++) {
+        if (!sameKey(keys[from], keys[i])) {
+          bucketKeys = new IRubyObject[to - from];
+          System.arraycopy(keys, from, bucketKeys, 0, to - from);
+        }
+      }
+      middle = new BucketNode(keys[from], (RubyObject) (sortKeys == null ? keys[from] : sortKeys[from]), bucketKeys, bucket, to - from);
+    } else if (sortKeys == null) {
+      middle = new Node(keys[from], values[from]);
+    } else {
+      middle = new SortKeyNode(keys[from], values[from], (RubyObject) sortKeys[from]);
+    }
+    if (level != redLevel) middle.setBlack();
+    if (left != null) {
+      middle.left = left;
+      left.parent = middle;
+    }
+    Node right = buildFromSorted(level + 1, mid + 1, hi, redLevel, keys, values, sortKeys, runs);
+    if (right != null) {
+      middle.right = right;
+      right.parent = middle;
+    }
+    middle.count = countOf(left) + countOf(right) + to - from;
+    return middle;
+  }
+
+  static int computeRedLevel(int length) {
+    int level = 0;
+    for (int m = length - 1; m >= 0; m = m / 2 - 1) {
+      level++;
+    }
+    return level;
+  }
+
   @JRubyMethod(name = "==")
   public IRubyObject op_equal(IRubyObject other) {
     Ruby runtime = getRuntime();
@@ -993,7 +3200,7 @@ public class MultiRBTree extends RubyObject {
     if (this.size != other.size || !similar(other))
       return false;
     for (Node node1 = minimum(), node2 = other.minimum();
-         !node1.isNull() && !node2.isNull();
+         node1 != null && node2 != null;
          node1 = successor(node1), node2 = other.successor(node2)) {
       if (!node1.key.eql(node2.key) || !node1.value.eql(node2.value))
         return false;
@@ -1002,7 +3209,7 @@ public class MultiRBTree extends RubyObject {
   }
 
   private boolean similar(MultiRBTree other) {
-    return this.cmpProc == other.cmpProc;
+    return this.cmpProc == other.cmpProc && this.sortKeyProc == other.sortKeyProc;
   }
 
   private byte comma_breakable(ThreadContext context, IRubyObject pp) {
@@ -1078,11 +3285,11 @@ public class MultiRBTree extends RubyObject {
 
   private AtomicInteger iteratorCount = new AtomicInteger(0);
 
-  private void iteratorEntry() {
+  void iteratorEntry() {
     iteratorCount.incrementAndGet();
   }
 
-  private void iteratorExit() {
+  void iteratorExit() {
     iteratorCount.decrementAndGet();
   }
 
@@ -1092,17 +3299,46 @@ public class MultiRBTree extends RubyObject {
     }
   }
 
-  private void visitAll(Visitor visitor) {
-    for (Node x = minimum(); !x.isNull(); x = successor(x)) {
-      visitor.visit(x.key, x.value);
+  /**
+   * Held around reads that must see the tree stay put from start to end,
+   * like Marshal writing the size before the entries. A plain tree is
+   * not shared between threads and needs nothing, ConcurrentMultiRBTree
+   * takes its read lock.
+   */
+  void lockRead() {
+  }
+
+  void unlockRead() {
+  }
+
+  /**
+   * Held around writes that do not come through the tree's own methods,
+   * like RBTreeCursor#delete_current.
+   */
+  void lockWrite() {
+  }
+
+  void unlockWrite() {
+  }
+
+  Node getRoot() {
+    return root;
+  }
+
+  void visitAll(Visitor visitor) {
+    for (Node x = leftmost; x != null; x = nextNode(x)) {
+      x.visitEntries(visitor);
     }
   }
 
   public void iteratorReverseVisitAll(Visitor visitor) {
     try {
       iteratorEntry();
-      for (Node x = maximum(); !x.isNull(); x = predecessor(x)) {
+      int rank = size - 1;
+      for (Node x = maximum(); x != null; rank--) {
+        int mod = modCount;
         visitor.visit(x.key, x.value);
+        x = mod == modCount ? predecessor(x) : nodeAt(rank - 1);
       }
     } finally {
       iteratorExit();
@@ -1112,8 +3348,13 @@ public class MultiRBTree extends RubyObject {
   public void iteratorVisitAll(Visitor visitor) {
     try {
       iteratorEntry();
-      for (Node x = minimum(); !x.isNull(); x = successor(x)) {
+      int rank = 0;
+      for (Node x = minimum(); x != null; rank++) {
+        int mod = modCount;
         visitor.visit(x.key, x.value);
+        // the block replaced nodes, say by storing into a key shared with
+        // a snapshot, so x may be gone and the next one is found by rank
+        x = mod == modCount ? successor(x) : nodeAt(rank + 1);
       }
     } finally {
       iteratorExit();
@@ -1126,14 +3367,52 @@ public class MultiRBTree extends RubyObject {
     }
   }
 
-  private static final ObjectMarshal RBTREE_MARSHAL = new ObjectMarshal() {
+  boolean hasDefaultProc() {
+    return (flags & PROCDEFAULT_HASH_F) != 0;
+  }
+
+  /**
+   * Writes the tree to io in a format of its own, see TreeDump, which is
+   * more compact and much faster to load than Marshal's. Unlike Marshal
+   * it takes empty trees and trees with a comparator; a Method of a
+   * named module is found again by name, a Proc has to be given to
+   * load_from as a block. Returns io.
+   */
+  @JRubyMethod
+  public IRubyObject dump_to(ThreadContext context, IRubyObject io) {
+    TreeDump.dump(context, this, io);
+    return io;
+  }
+
+  /**
+   * Reads a tree dump_to wrote to io, and builds the tree from the
+   * entries, which come in order, in O(n).
+   */
+  @JRubyMethod(meta = true)
+  public static IRubyObject load_from(ThreadContext context, IRubyObject recv, IRubyObject io, Block block) {
+    return TreeDump.load(context, (RubyClass) recv, io, block);
+  }
+
+  /**
+   * Writes the tree to path as a file MappedRBTree.open serves lookups
+   * from without loading it. The keys have to be all Fixnums or all
+   * Strings, in their natural order. Returns self.
+   */
+  @JRubyMethod
+  public IRubyObject write_sorted_file(ThreadContext context, IRubyObject path) {
+    MappedRBTree.write(context, this, path);
+    return this;
+  }
+
+  static final ObjectMarshal RBTREE_MARSHAL = new ObjectMarshal() {
     public void marshalTo(Ruby runtime, final Object obj, RubyClass recv, final MarshalStream output) throws IOException {
       MultiRBTree rbtree = (MultiRBTree) obj;
-      if (rbtree.size == 0) throw runtime.newArgumentError("cannot dump empty tree");
-      if (rbtree.cmpProc != null) throw runtime.newArgumentError("cannot dump rbtree with compare proc");
-      output.registerLinkTarget(rbtree);
-      output.writeInt(rbtree.size);
+      rbtree.lockRead();
       try {
+        if (rbtree.size == 0) throw runtime.newArgumentError("cannot dump empty tree");
+        if (rbtree.cmpProc != null || rbtree.sortKeyProc != null) throw runtime.newArgumentError("cannot dump rbtree with compare proc");
+        output.registerLinkTarget(rbtree);
+        output.writeInt(rbtree.size);
         rbtree.visitAll(new Visitor() {
           public void visit(IRubyObject key, IRubyObject value) {
             try {
@@ -1146,6 +3425,8 @@ public class MultiRBTree extends RubyObject {
         });
       } catch (VisitorIOException e) {
         throw (IOException) e.getCause();
+      } finally {
+        rbtree.unlockRead();
       }
     }
 
@@ -1153,14 +3434,18 @@ public class MultiRBTree extends RubyObject {
       MultiRBTree result = (MultiRBTree) type.allocate();
       input.registerLinkTarget(result);
       int size = input.unmarshalInt();
+      IRubyObject[] keys = new IRubyObject[size];
+      IRubyObject[] values = new IRubyObject[size];
       for (int i = 0; i < size; i++) {
-        result.internalPut(runtime.getCurrentContext(), input.unmarshalObject(), input.unmarshalObject());
+        keys[i] = input.unmarshalObject();
+        values[i] = input.unmarshalObject();
       }
+      result.putAllSorted(runtime.getCurrentContext(), keys, values, size);
       return result;
     }
   };
 
-  private static abstract class Visitor {
+  static abstract class Visitor {
     public abstract void visit(IRubyObject key, IRubyObject value);
   }
 
@@ -1182,34 +3467,36 @@ public class MultiRBTree extends RubyObject {
     }
   }
 
-  private static class Node {
-    protected Color color;
+  /**
+   * A tree node. Leaves are null rather than a shared sentinel and the
+   * color is a single boolean; the parent link stays so successor and
+   * predecessor remain O(1) amortized for iteration, bounds and rank.
+   */
+  static class Node {
     protected RubyObject key;
     protected IRubyObject value;
     protected Node left;
     protected Node right;
     protected Node parent;
-
-    protected Node() {
-    }
+    // number of entries in the subtree rooted here
+    protected int count;
+    protected boolean color;
+    // the tree's epoch when the node was made, fits in the padding
+    short epoch;
 
     protected Node(IRubyObject key, IRubyObject value) {
-      this(key, value, Color.RED);
-    }
-
-    protected Node(IRubyObject key, IRubyObject value, Color color) {
       this.key = (RubyObject) key;
       this.value = value;
-      this.color = color;
-      this.left = this.right = this.parent = NilNode.getInstance();
+      this.color = RED;
+      this.count = 1;
     }
 
     public boolean isRed() {
-      return this.color == Color.RED;
+      return this.color == RED;
     }
 
     public boolean isBlack() {
-      return !isRed();
+      return this.color == BLACK;
     }
 
     public Node getGrandParent() {
@@ -1220,20 +3507,64 @@ public class MultiRBTree extends RubyObject {
       this.key = (RubyObject) key;
     }
 
+    public RubyObject getSortKey() {
+      return this.key;
+    }
+
+    /**
+     * Number of values stored under the key, more than one only in a
+     * BucketNode.
+     */
+    int entries() {
+      return 1;
+    }
+
+    IRubyObject lastValue() {
+      return this.value;
+    }
+
+    void visitEntries(Visitor visitor) {
+      visitor.visit(this.key, this.value);
+    }
+
+    void reverseVisitEntries(Visitor visitor) {
+      visitor.visit(this.key, this.value);
+    }
+
+    /**
+     * Takes over the entry of another node, used when deleting a node with
+     * two children moves its successor into its place.
+     */
+    public void copyEntry(Node other) {
+      this.key = other.key;
+      this.value = other.value;
+    }
+
     public void setValue(IRubyObject val) {
       this.value = val;
     }
 
-    public void setBlack() {
-      this.color = Color.BLACK;
+    /**
+     * A node with the same entry, children, count and color.
+     */
+    Node copy() {
+      return copyInto(new Node(key, value));
     }
 
-    public void setRed() {
-      this.color = Color.RED;
+    final Node copyInto(Node copy) {
+      copy.left = this.left;
+      copy.right = this.right;
+      copy.count = this.count;
+      copy.color = this.color;
+      return copy;
     }
 
-    public boolean isNull() {
-      return false;
+    public void setBlack() {
+      this.color = BLACK;
+    }
+
+    public void setRed() {
+      this.color = RED;
     }
 
     public boolean isLeft() {
@@ -1249,25 +3580,191 @@ public class MultiRBTree extends RubyObject {
     }
   }
 
+  private static class SortKeyNode extends Node {
+    private RubyObject sortKey;
+
+    protected SortKeyNode(IRubyObject key, IRubyObject value, RubyObject sortKey) {
+      super(key, value);
+      this.sortKey = sortKey;
+    }
+
+    @Override
+    public RubyObject getSortKey() {
+      return this.sortKey;
+    }
+
+    @Override
+    public void copyEntry(Node other) {
+      super.copyEntry(other);
+      this.sortKey = other.getSortKey();
+    }
+
+    @Override
+    Node copy() {
+      return copyInto(new SortKeyNode(key, value, sortKey));
+    }
+  }
+
+  /**
+   * A MultiRBTree node for a key stored more than once: all its values,
+   * in the order they were added, share one node. key and value are kept
+   * equal to the first entry's. The keys of the other entries are only
+   * kept, in keys, once one of them is not the same as the first.
+   */
+  private static final class BucketNode extends Node {
+    private IRubyObject[] values;
+    private IRubyObject[] keys;
+    private int length;
+    private final RubyObject sortKey;
+
+    BucketNode(IRubyObject key, RubyObject sortKey, IRubyObject[] keys, IRubyObject[] values, int length) {
+      super(key, values[0]);
+      this.sortKey = sortKey;
+      this.keys = keys;
+      this.values = values;
+      this.length = length;
+    }
+
+    BucketNode(Node node) {
+      this(node.key, node.getSortKey(), null, new IRubyObject[] { node.value, null }, 1);
+      node.copyInto(this);
+    }
+
+    @Override
+    public RubyObject getSortKey() {
+      return this.sortKey;
+    }
+
+    @Override
+    int entries() {
+      return this.length;
+    }
+
+    @Override
+    IRubyObject lastValue() {
+      return this.values[this.length - 1];
+    }
 
-  private static class NilNode extends Node {
-      private static NilNode nil = null;
-      private NilNode() {
-          this.color = Color.BLACK;
-          this.left = this.right = this.parent = null;
+    IRubyObject keyAt(int index) {
+      return this.keys == null ? this.key : this.keys[index];
+    }
+
+    @Override
+    void visitEntries(Visitor visitor) {
+      for (int i = 0; i < this.length; i++) {
+        visitor.visit(keyAt(i), this.values[i]);
       }
+    }
 
-      public static NilNode getInstance() {
-          if (nil == null) {
-              nil = new NilNode();
-          }
-          return nil;
+    @Override
+    void reverseVisitEntries(Visitor visitor) {
+      for (int i = this.length - 1; i >= 0; i--) {
+        visitor.visit(keyAt(i), this.values[i]);
+      }
+    }
+
+    void add(IRubyObject newKey, IRubyObject val) {
+      if (this.keys == null && !sameKey(this.key, newKey)) {
+        this.keys = new IRubyObject[this.values.length];
+        for (int i = 0; i < this.length; i++) this.keys[i] = this.key;
+      }
+      if (this.length == this.values.length) {
+        IRubyObject[] grown = new IRubyObject[this.length * 2];
+        System.arraycopy(this.values, 0, grown, 0, this.length);
+        this.values = grown;
+        if (this.keys != null) {
+          grown = new IRubyObject[this.length * 2];
+          System.arraycopy(this.keys, 0, grown, 0, this.length);
+          this.keys = grown;
+        }
+      }
+      if (this.keys != null) this.keys[this.length] = newKey;
+      this.values[this.length++] = val;
+    }
+
+    void remove(int index) {
+      System.arraycopy(this.values, index + 1, this.values, index, this.length - index - 1);
+      this.values[this.length - 1] = null;
+      if (this.keys != null) {
+        System.arraycopy(this.keys, index + 1, this.keys, index, this.length - index - 1);
+        this.keys[this.length - 1] = null;
+        this.key = (RubyObject) this.keys[0];
       }
+      this.length -= 1;
+      this.value = this.values[0];
+    }
 
-      @Override
-      public boolean isNull() {
-          return true;
+    @Override
+    Node copy() {
+      IRubyObject[] copiedKeys = null;
+      if (this.keys != null) {
+        copiedKeys = new IRubyObject[this.keys.length];
+        System.arraycopy(this.keys, 0, copiedKeys, 0, this.length);
       }
+      IRubyObject[] copied = new IRubyObject[this.values.length];
+      System.arraycopy(this.values, 0, copied, 0, this.length);
+      return copyInto(new BucketNode(key, sortKey, copiedKeys, copied, this.length));
+    }
+  }
+
+  /**
+   * Whether b can be stood in for by a, which it is equal to, without
+   * anyone telling: the same object, or the same Fixnum or String, like
+   * the frozen copies []= makes of String keys.
+   */
+  static boolean sameKey(IRubyObject a, IRubyObject b) {
+    if (a == b) return true;
+    if (a instanceof RubyFixnum && b instanceof RubyFixnum) {
+      return ((RubyFixnum) a).getLongValue() == ((RubyFixnum) b).getLongValue();
+    }
+    if (a instanceof RubyString && b instanceof RubyString) {
+      return a.getMetaClass() == b.getMetaClass() && a.equals(b);
+    }
+    return false;
+  }
+
+  /**
+   * One entry of a BucketNode, as handed out by minimum, successor,
+   * nodeAt and the other entry-level primitives.
+   */
+  static final class BucketEntry extends Node {
+    final BucketNode bucket;
+    final int index;
+
+    BucketEntry(BucketNode bucket, int index) {
+      super(bucket.keyAt(index), bucket.values[index]);
+      this.bucket = bucket;
+      this.index = index;
+      // stale once the bucket is copied for a snapshot, like a node
+      this.epoch = bucket.epoch;
+    }
+
+    @Override
+    public RubyObject getSortKey() {
+      return bucket.getSortKey();
+    }
+
+    @Override
+    public void setValue(IRubyObject val) {
+      this.value = val;
+      bucket.values[index] = val;
+      if (index == 0) bucket.value = val;
+    }
+  }
+
+  private static final boolean RED = false;
+  private static final boolean BLACK = true;
+
+  // null leaves count as black and empty
+  private static boolean isRed(Node node) {
+    return node != null && node.color == RED;
+  }
+
+  private static boolean isBlack(Node node) {
+    return node == null || node.color == BLACK;
+  }
+
+  static int countOf(Node node) {
+    return node == null ? 0 : node.count;
   }
-  private enum Color { RED, BLACK }
 }
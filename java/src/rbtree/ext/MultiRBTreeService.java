@@ -7,7 +7,12 @@ import java.io.IOException;
 
 public class MultiRBTreeService implements BasicLibraryService {
     public boolean basicLoad(final Ruby ruby) throws IOException {
-        MultiRBTree.createMultiRBTreeClass(ruby);
+        RBTreeCursor.createCursorClass(ruby, MultiRBTree.createMultiRBTreeClass(ruby));
+        MultiBTreeMap.createMultiBTreeMapClass(ruby);
+        ConcurrentMultiRBTree.createConcurrentMultiRBTreeClass(ruby);
+        MultiSkipListMap.createMultiSkipListMapClass(ruby);
+        MappedRBTree.createMappedRBTreeClass(ruby);
+        LongRBTree.createLongRBTreeClass(ruby);
         return true;
     }
 }
@@ -0,0 +1,532 @@
+package rbtree.ext;
+
+import static org.jruby.RubyEnumerator.enumeratorize;
+import static rbtree.ext.MultiRBTree.KEY_FIXNUM;
+import static rbtree.ext.MultiRBTree.KEY_FLOAT;
+import static rbtree.ext.MultiRBTree.KEY_GENERIC;
+import static rbtree.ext.MultiRBTree.KEY_STRING;
+import static rbtree.ext.MultiRBTree.KEY_SYMBOL;
+
+import org.jruby.Ruby;
+import org.jruby.RubyObject;
+import org.jruby.RubyClass;
+import org.jruby.RubyString;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubySymbol;
+import org.jruby.RubyHash;
+import org.jruby.RubyArray;
+import org.jruby.RubyProc;
+import org.jruby.RubyRange;
+import org.jruby.runtime.Arity;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ObjectMarshal;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.runtime.marshal.MarshalStream;
+import org.jruby.runtime.marshal.UnmarshalStream;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.util.TypeConverter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sorted map for many threads writing at once, on top of
+ * ConcurrentSkipListMap: no operation takes a lock, so inserts and deletes
+ * on different keys proceed in parallel. It has the MultiRBTree methods
+ * that make sense without a lock ([], []=, delete, lower_bound,
+ * upper_bound, bound, first, last, shift, pop, each, reverse_each, ==,
+ * dup and Marshal); iteration is weakly consistent, it sees every entry that was there
+ * when it started and was not removed before it got there, and may or may
+ * not see entries added meanwhile.
+ *
+ * In Ruby it is MultiSkipListMap, which keeps duplicate keys in insertion
+ * order like MultiRBTree, and SkipListMap, which does not. Each entry of
+ * the underlying map is keyed by a Slot holding the Ruby key and, with
+ * duplicates, a sequence number that orders equal keys.
+ */
+@JRubyClass(name = "MultiSkipListMap")
+public class MultiSkipListMap extends RubyObject {
+  private final ConcurrentSkipListMap<Slot, Value> map;
+  private final boolean dupes;
+  // orders duplicate keys, only used when dupes is set
+  private final AtomicLong sequence = new AtomicLong();
+  private IRubyObject ifNone;
+  private boolean procDefault;
+  private volatile IRubyObject cmpProc;
+
+  // the entry count, striped by thread so that writers on different cores
+  // do not all bump the same cache line; a stripe sits on its own line
+  private static final int STRIPES = 16;
+  private static final int PAD = 8;
+  private final AtomicLongArray counts = new AtomicLongArray(STRIPES * PAD);
+
+  public static RubyClass createMultiSkipListMapClass(Ruby runtime) {
+    RubyClass skipListClass = runtime.defineClass("MultiSkipListMap", runtime.getObject(), SKIPLIST_ALLOCATOR);
+    skipListClass.setReifiedClass(MultiSkipListMap.class);
+    skipListClass.includeModule(runtime.getEnumerable());
+    skipListClass.defineAnnotatedMethods(MultiSkipListMap.class);
+    skipListClass.setMarshal(SKIPLIST_MARSHAL);
+    return skipListClass;
+  }
+
+  private static final ObjectAllocator SKIPLIST_ALLOCATOR = new ObjectAllocator() {
+    public IRubyObject allocate(Ruby runtime, RubyClass klazz) {
+      return new MultiSkipListMap(runtime, klazz);
+    }
+  };
+
+  public MultiSkipListMap(final Ruby ruby, RubyClass rubyClass) {
+    super(ruby, rubyClass);
+    this.dupes = getMetaClass().getRealClass().getName().equals("MultiSkipListMap");
+    this.ifNone = ruby.getNil();
+    this.map = new ConcurrentSkipListMap<Slot, Value>(new SlotComparator());
+  }
+
+  /**
+   * A key as the map sees it. The type is worked out once when the slot is
+   * made, so comparing two Fixnums, Floats, Strings or Symbols whose <=>
+   * is the builtin one does not call into Ruby.
+   */
+  private static final class Slot {
+    final IRubyObject key;
+    final int type;
+    final long seq;
+
+    Slot(IRubyObject key, int type, long seq) {
+      this.key = key;
+      this.type = type;
+      this.seq = seq;
+    }
+  }
+
+  /**
+   * Holds a value in the map. Removing an entry compares values with
+   * equals, which has to be identity here: Ruby's == may call back into
+   * Ruby or, for NaN, never hold.
+   */
+  private static final class Value {
+    final IRubyObject value;
+
+    Value(IRubyObject value) {
+      this.value = value;
+    }
+  }
+
+  private final class SlotComparator implements Comparator<Slot> {
+    public int compare(Slot a, Slot b) {
+      int ret = compareKeys(a, b);
+      if (ret != 0) return ret;
+      return a.seq < b.seq ? -1 : (a.seq > b.seq ? 1 : 0);
+    }
+  }
+
+  private int compareKeys(Slot a, Slot b) {
+    if (a.type == b.type) {
+      int ret = MultiRBTree.compareTyped(getRuntime(), a.type, a.key, b.key);
+      if (ret != MultiRBTree.UNTYPED) return ret;
+    }
+    IRubyObject cmp = cmpProc;
+    if (cmp == null) return ((RubyObject) a.key).compareTo(b.key);
+    ThreadContext context = getRuntime().getCurrentContext();
+    IRubyObject ret = cmp.callMethod(context, "call", new IRubyObject[] {a.key, b.key});
+    long result = ret instanceof RubyFixnum ? ((RubyFixnum) ret).getLongValue() : ret.convertToInteger().getLongValue();
+    return result < 0 ? -1 : (result > 0 ? 1 : 0);
+  }
+
+  private int keyTypeOf(IRubyObject key) {
+    if (cmpProc != null) return KEY_GENERIC;
+    Ruby runtime = getRuntime();
+    if (key instanceof RubyFixnum) return runtime.getFixnum().isMethodBuiltin("<=>") ? KEY_FIXNUM : KEY_GENERIC;
+    if (key instanceof RubyFloat) return runtime.getFloat().isMethodBuiltin("<=>") ? KEY_FLOAT : KEY_GENERIC;
+    if (key instanceof RubySymbol) return runtime.getSymbol().isMethodBuiltin("<=>") ? KEY_SYMBOL : KEY_GENERIC;
+    if (key.getMetaClass() == runtime.getString()) return runtime.getString().isMethodBuiltin("<=>") ? KEY_STRING : KEY_GENERIC;
+    return KEY_GENERIC;
+  }
+
+  /**
+   * A slot to search with: it sorts before every entry with an equal key,
+   * or after all of them when last is set.
+   */
+  private Slot probe(IRubyObject key, boolean last) {
+    return new Slot(key, keyTypeOf(key), dupes ? (last ? Long.MAX_VALUE : Long.MIN_VALUE) : 0);
+  }
+
+  private boolean sameKey(Slot probe, Slot slot) {
+    return compareKeys(probe, slot) == 0;
+  }
+
+  private void addCount(int delta) {
+    counts.addAndGet((int) (Thread.currentThread().getId() % STRIPES) * PAD, delta);
+  }
+
+  private int count() {
+    long ret = 0;
+    for (int i = 0; i < STRIPES; i++) ret += counts.get(i * PAD);
+    // a removal counted before the insert it undid, in another stripe
+    return ret < 0 ? 0 : (int) ret;
+  }
+
+  @JRubyMethod(name = "[]", rest = true, meta = true)
+  public static IRubyObject create(final ThreadContext context, IRubyObject recv, IRubyObject[] args, Block block) {
+    RubyClass klass = (RubyClass) recv;
+    Ruby runtime = context.runtime;
+    final MultiSkipListMap skipList = (MultiSkipListMap) klass.allocate();
+    if (args.length == 1) {
+      IRubyObject tmp = TypeConverter.convertToTypeWithCheck(args[0], runtime.getHash(), "to_hash");
+      if (!tmp.isNil()) {
+        ((RubyHash) tmp).visitAll(new RubyHash.Visitor() {
+          @Override
+          public void visit(IRubyObject key, IRubyObject val) {
+            skipList.put(context, key, val);
+          }
+        });
+        return skipList;
+      }
+    }
+    if (args.length % 2 != 0) throw runtime.newArgumentError("odd number of arguments");
+    for (int i = 0; i < args.length; i += 2) {
+      skipList.put(context, args[i], args[i + 1]);
+    }
+    return skipList;
+  }
+
+  @JRubyMethod(name = "initialize", optional = 1)
+  public IRubyObject initialize(ThreadContext context, IRubyObject[] args, Block block) {
+    if (block.isGiven()) {
+      if (args.length > 0) throw getRuntime().newArgumentError("wrong number arguments");
+      this.ifNone = getRuntime().newProc(Block.Type.PROC, block);
+      this.procDefault = true;
+    } else {
+      Arity.checkArgumentCount(getRuntime(), args, 0, 1);
+      if (args.length == 1) this.ifNone = args[0];
+    }
+    return this;
+  }
+
+  private void put(ThreadContext context, IRubyObject key, IRubyObject value) {
+    if (key instanceof RubyString && !key.isFrozen()) {
+      key = ((RubyString) key).strDup(context.runtime);
+      key.setFrozen(true);
+    }
+    Slot slot = new Slot(key, keyTypeOf(key), dupes ? sequence.getAndIncrement() : 0);
+    if (map.put(slot, new Value(value)) == null) addCount(1);
+  }
+
+  @JRubyMethod(name = {"[]=", "store"}, required = 2)
+  public IRubyObject op_aset(ThreadContext context, IRubyObject key, IRubyObject value) {
+    put(context, key, value);
+    return value;
+  }
+
+  /**
+   * The entry for key, the first one of them with duplicates.
+   */
+  private Map.Entry<Slot, Value> entryFor(IRubyObject key) {
+    Slot probe = probe(key, false);
+    Map.Entry<Slot, Value> entry = map.ceilingEntry(probe);
+    return entry != null && sameKey(probe, entry.getKey()) ? entry : null;
+  }
+
+  @JRubyMethod(name = "[]", required = 1)
+  public IRubyObject op_aref(ThreadContext context, IRubyObject key) {
+    Map.Entry<Slot, Value> entry = entryFor(key);
+    return entry == null ? callMethod(context, "default", key) : entry.getValue().value;
+  }
+
+  @JRubyMethod(name = {"has_key?", "key?", "include?", "member?"}, required = 1)
+  public IRubyObject has_key_p(ThreadContext context, IRubyObject key) {
+    return getRuntime().newBoolean(entryFor(key) != null);
+  }
+
+  /**
+   * Removes the first entry with the given key and returns its value, or
+   * yields the key (or returns nil) if there is none.
+   */
+  @JRubyMethod(required = 1)
+  public IRubyObject delete(ThreadContext context, IRubyObject key, Block block) {
+    while (true) {
+      Map.Entry<Slot, Value> entry = entryFor(key);
+      if (entry == null) return block.isGiven() ? block.yield(context, key) : context.runtime.getNil();
+      // lost to another thread if the entry went away or changed meanwhile
+      if (map.remove(entry.getKey(), entry.getValue())) {
+        addCount(-1);
+        return entry.getValue().value;
+      }
+    }
+  }
+
+  private IRubyObject pairOf(Map.Entry<Slot, Value> entry) {
+    return entry == null ? getRuntime().getNil() : getRuntime().newArray(entry.getKey().key, entry.getValue().value);
+  }
+
+  @JRubyMethod(required = 1)
+  public IRubyObject lower_bound(ThreadContext context, IRubyObject key) {
+    return pairOf(map.ceilingEntry(probe(key, false)));
+  }
+
+  @JRubyMethod(required = 1)
+  public IRubyObject upper_bound(ThreadContext context, IRubyObject key) {
+    return pairOf(map.floorEntry(probe(key, true)));
+  }
+
+  /**
+   * The entries from lower_bound(lower) to upper_bound(upper), or within a
+   * Range; yields each of them if a block is given.
+   */
+  @JRubyMethod(name = "bound", required = 1, optional = 1)
+  public IRubyObject bound(ThreadContext context, IRubyObject[] bounds, Block block) {
+    IRubyObject lower = bounds[0];
+    IRubyObject upper = bounds.length == 2 ? bounds[1] : bounds[0];
+    boolean excludeEnd = false;
+    if (bounds.length == 1 && bounds[0] instanceof RubyRange) {
+      RubyRange range = (RubyRange) bounds[0];
+      lower = range.first(context);
+      upper = range.last(context);
+      excludeEnd = range.exclude_end_p().isTrue();
+    }
+    RubyArray ret = context.runtime.newArray();
+    Slot from = probe(lower, false);
+    Slot to = probe(upper, !excludeEnd);
+    if (map.comparator().compare(from, to) > 0) return ret;
+    for (Map.Entry<Slot, Value> entry : map.subMap(from, true, to, !excludeEnd).entrySet()) {
+      if (block.isGiven()) {
+        block.yieldSpecific(context, entry.getKey().key, entry.getValue().value);
+      } else {
+        ret.append(pairOf(entry));
+      }
+    }
+    return ret;
+  }
+
+  private IRubyObject pairOrDefault(ThreadContext context, Map.Entry<Slot, Value> entry) {
+    if (entry != null) return pairOf(entry);
+    if (procDefault) return ifNone.callMethod(context, "call", new IRubyObject[] {this, getRuntime().getNil()});
+    return ifNone;
+  }
+
+  @JRubyMethod
+  public IRubyObject first(ThreadContext context) {
+    return pairOrDefault(context, map.firstEntry());
+  }
+
+  @JRubyMethod
+  public IRubyObject last(ThreadContext context) {
+    return pairOrDefault(context, map.lastEntry());
+  }
+
+  @JRubyMethod
+  public IRubyObject shift(ThreadContext context) {
+    Map.Entry<Slot, Value> entry = map.pollFirstEntry();
+    if (entry != null) addCount(-1);
+    return pairOrDefault(context, entry);
+  }
+
+  @JRubyMethod
+  public IRubyObject pop(ThreadContext context) {
+    Map.Entry<Slot, Value> entry = map.pollLastEntry();
+    if (entry != null) addCount(-1);
+    return pairOrDefault(context, entry);
+  }
+
+  @JRubyMethod(name = {"each_pair", "each"})
+  public IRubyObject each(ThreadContext context, Block block) {
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "each");
+    for (Map.Entry<Slot, Value> entry : map.entrySet()) {
+      block.yieldSpecific(context, entry.getKey().key, entry.getValue().value);
+    }
+    return this;
+  }
+
+  @JRubyMethod
+  public IRubyObject reverse_each(ThreadContext context, Block block) {
+    if (!block.isGiven()) return enumeratorize(context.runtime, this, "reverse_each");
+    for (Map.Entry<Slot, Value> entry : map.descendingMap().entrySet()) {
+      block.yieldSpecific(context, entry.getKey().key, entry.getValue().value);
+    }
+    return this;
+  }
+
+  @JRubyMethod
+  public IRubyObject keys(ThreadContext context) {
+    RubyArray ret = context.runtime.newArray();
+    for (Slot slot : map.keySet()) ret.append(slot.key);
+    return ret;
+  }
+
+  @JRubyMethod
+  public IRubyObject values(ThreadContext context) {
+    RubyArray ret = context.runtime.newArray();
+    for (Value value : map.values()) ret.append(value.value);
+    return ret;
+  }
+
+  @JRubyMethod(name = {"size", "length"})
+  public IRubyObject getSize() {
+    return getRuntime().newFixnum(count());
+  }
+
+  @JRubyMethod(name = "empty?")
+  public IRubyObject empty_p(ThreadContext context) {
+    return getRuntime().newBoolean(map.isEmpty());
+  }
+
+  /**
+   * Removes the entries one at a time, so that a concurrent writer's
+   * entry is either cleared or counted.
+   */
+  @JRubyMethod
+  public IRubyObject clear(ThreadContext context) {
+    for (Iterator<Slot> it = map.keySet().iterator(); it.hasNext(); ) {
+      if (map.remove(it.next()) != null) addCount(-1);
+    }
+    return this;
+  }
+
+  @JRubyMethod(name = "default", optional = 1)
+  public IRubyObject default_value_get(ThreadContext context, IRubyObject[] args) {
+    if (!procDefault) return ifNone;
+    return args.length == 0 ? getRuntime().getNil() : ifNone.callMethod(context, "call", new IRubyObject[] {this, args[0]});
+  }
+
+  @JRubyMethod
+  public IRubyObject cmp_proc(ThreadContext context) {
+    return cmpProc == null ? getRuntime().getNil() : cmpProc;
+  }
+
+  /**
+   * Sets the comparison to use instead of <=>. The order of entries
+   * already in a skip list cannot change under concurrent readers, so this
+   * only works while it is empty.
+   */
+  @JRubyMethod(optional = 1)
+  public IRubyObject readjust(ThreadContext context, IRubyObject[] args, Block block) {
+    IRubyObject cmp;
+    if (block.isGiven()) {
+      Arity.checkArgumentCount(getRuntime(), args, 0, 0);
+      cmp = getRuntime().newProc(Block.Type.PROC, block);
+    } else {
+      Arity.checkArgumentCount(getRuntime(), args, 0, 1);
+      cmp = args.length == 0 || args[0].isNil() ? null : args[0];
+      if (cmp != null && !(cmp instanceof RubyProc) && !cmp.respondsTo("call")) {
+        throw getRuntime().newTypeError(String.format("wrong argument type %s (expected Proc)", cmp.getMetaClass().getRealClass().getName()));
+      }
+    }
+    if (!map.isEmpty()) throw getRuntime().newArgumentError("can't readjust a non-empty " + getMetaClass().getRealClass().getName());
+    cmpProc = cmp;
+    return this;
+  }
+
+  /**
+   * Copies the entries other has while it is walked, with its default and
+   * cmp_proc. Slots and values are immutable, so both maps share them.
+   */
+  @JRubyMethod(name = "initialize_copy", required = 1)
+  public IRubyObject initialize_copy(ThreadContext context, IRubyObject other) {
+    if (this == other) return this;
+    if (!(other instanceof MultiSkipListMap) || other.getMetaClass().getRealClass() != getMetaClass().getRealClass()) {
+      throw getRuntime().newTypeError("initialize_copy should take same class object");
+    }
+    MultiSkipListMap source = (MultiSkipListMap) other;
+    clear(context);
+    ifNone = source.ifNone;
+    procDefault = source.procDefault;
+    cmpProc = source.cmpProc;
+    for (Map.Entry<Slot, Value> entry : source.map.entrySet()) {
+      if (map.put(entry.getKey(), entry.getValue()) == null) addCount(1);
+    }
+    // read after the walk, so it is past every sequence number copied
+    sequence.set(source.sequence.get());
+    return this;
+  }
+
+  /**
+   * Like MultiRBTree#==: the same cmp_proc and the same keys and values in
+   * the same order, compared with eql?.
+   */
+  @JRubyMethod(name = "==")
+  public IRubyObject op_equal(ThreadContext context, IRubyObject other) {
+    Ruby runtime = getRuntime();
+    if (this == other) return runtime.getTrue();
+    if (!(other instanceof MultiSkipListMap)) return runtime.getFalse();
+    MultiSkipListMap that = (MultiSkipListMap) other;
+    if (cmpProc != that.cmpProc) return runtime.getFalse();
+    Iterator<Map.Entry<Slot, Value>> it1 = map.entrySet().iterator();
+    Iterator<Map.Entry<Slot, Value>> it2 = that.map.entrySet().iterator();
+    while (it1.hasNext() && it2.hasNext()) {
+      Map.Entry<Slot, Value> e1 = it1.next(), e2 = it2.next();
+      if (!e1.getKey().key.eql(e2.getKey().key) || !e1.getValue().value.eql(e2.getValue().value)) return runtime.getFalse();
+    }
+    return runtime.newBoolean(!it1.hasNext() && !it2.hasNext());
+  }
+
+  @JRubyMethod(name = "inspect")
+  public IRubyObject inspect(ThreadContext context) {
+    Ruby runtime = context.runtime;
+    String name = getMetaClass().getRealClass().getName();
+    if (runtime.isInspecting(this)) return runtime.newString("#<" + name + ": ...>");
+    try {
+      runtime.registerInspecting(this);
+      RubyString str = runtime.newString("#<" + name + ": {");
+      boolean first = true;
+      for (Map.Entry<Slot, Value> entry : map.entrySet()) {
+        if (!first) str.cat(", ".getBytes());
+        str.append(entry.getKey().key.inspect());
+        str.cat("=>".getBytes());
+        str.append(entry.getValue().value.inspect());
+        first = false;
+      }
+      str.cat("}, default=".getBytes());
+      str.append(ifNone.inspect());
+      str.cat(", cmp_proc=".getBytes());
+      str.append(cmp_proc(context).inspect());
+      str.cat((byte) '>');
+      return str;
+    } finally {
+      runtime.unregisterInspecting(this);
+    }
+  }
+
+  /**
+   * Dumps the entries, taken in one walk so that the count matches them,
+   * and the default. A cmp_proc or default proc cannot be dumped.
+   */
+  private static final ObjectMarshal SKIPLIST_MARSHAL = new ObjectMarshal() {
+    public void marshalTo(Ruby runtime, Object obj, RubyClass recv, MarshalStream output) throws IOException {
+      MultiSkipListMap skipList = (MultiSkipListMap) obj;
+      if (skipList.cmpProc != null) throw runtime.newArgumentError("cannot dump skip list with compare proc");
+      if (skipList.procDefault) throw runtime.newArgumentError("cannot dump skip list with default proc");
+      List<Map.Entry<Slot, Value>> entries = new ArrayList<Map.Entry<Slot, Value>>(skipList.map.entrySet());
+      output.registerLinkTarget(skipList);
+      output.writeInt(entries.size());
+      for (Map.Entry<Slot, Value> entry : entries) {
+        output.dumpObject(entry.getKey().key);
+        output.dumpObject(entry.getValue().value);
+      }
+      output.dumpObject(skipList.ifNone);
+    }
+
+    public Object unmarshalFrom(Ruby runtime, RubyClass type, UnmarshalStream input) throws IOException {
+      MultiSkipListMap result = (MultiSkipListMap) type.allocate();
+      input.registerLinkTarget(result);
+      ThreadContext context = runtime.getCurrentContext();
+      int size = input.unmarshalInt();
+      for (int i = 0; i < size; i++) {
+        IRubyObject key = input.unmarshalObject();
+        result.put(context, key, input.unmarshalObject());
+      }
+      result.ifNone = input.unmarshalObject();
+      return result;
+    }
+  };
+}
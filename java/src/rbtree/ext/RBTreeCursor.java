@@ -0,0 +1,190 @@
+package rbtree.ext;
+
+import org.jruby.Ruby;
+import org.jruby.RubyObject;
+import org.jruby.RubyClass;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.ObjectAllocator;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import rbtree.ext.MultiRBTree.Node;
+
+/**
+ * What MultiRBTree#cursor returns: a position in the tree that steps
+ * with successor and predecessor, so next and prev cost what walking
+ * the tree costs rather than a fiber switch like Enumerator#next.
+ *
+ * A cursor is before the first entry, on an entry, after the last one,
+ * or in the gap delete_current left. It remembers the tree's modCount
+ * and raises once anything but the cursor itself changed the tree, until
+ * seek or rewind puts it in a known place again.
+ */
+@JRubyClass(name = "MultiRBTree::Cursor")
+public class RBTreeCursor extends RubyObject {
+  private final MultiRBTree tree;
+  // the entry the cursor is on, null before, after or in a gap
+  private Node current;
+  // rank of current; -1 before the first entry, size after the last, and
+  // the rank of the entry after the gap left by delete_current
+  private int rank = -1;
+  private boolean removed;
+  private int expectedModCount;
+
+  public static RubyClass createCursorClass(Ruby runtime, RubyClass rbtreeClass) {
+    RubyClass cursorClass = rbtreeClass.defineClassUnder("Cursor", runtime.getObject(), ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+    cursorClass.defineAnnotatedMethods(RBTreeCursor.class);
+    return cursorClass;
+  }
+
+  RBTreeCursor(Ruby runtime, MultiRBTree tree) {
+    super(runtime, (RubyClass) runtime.getClassFromPath("MultiRBTree::Cursor"));
+    this.tree = tree;
+    this.expectedModCount = tree.modCount;
+  }
+
+  private void checkModCount() {
+    if (tree.modCount != expectedModCount) {
+      throw getRuntime().newRuntimeError(tree.getMetaClass().getRealClass().getName() + " modified since the cursor was positioned");
+    }
+  }
+
+  private RaiseException stopIteration() {
+    Ruby runtime = getRuntime();
+    return runtime.newRaiseException(runtime.getStopIteration(), "iteration reached an end");
+  }
+
+  private Node nextNode() {
+    if (current != null) return tree.successor(current);
+    if (rank < 0) return tree.minimum();
+    return removed && rank < tree.size ? tree.nodeAt(rank) : null;
+  }
+
+  private Node prevNode() {
+    if (current != null) return tree.predecessor(current);
+    return rank > 0 ? tree.nodeAt(rank - 1) : null;
+  }
+
+  private IRubyObject moveTo(Node node, int newRank) {
+    removed = false;
+    current = node;
+    rank = newRank;
+    return node == null ? getRuntime().getNil() : tree.newArray(node);
+  }
+
+  /**
+   * Moves to the next entry and returns it as [key, value]; raises
+   * StopIteration, and stays after the last entry, when there is none.
+   */
+  @JRubyMethod(name = "next")
+  public IRubyObject next(ThreadContext context) {
+    tree.lockRead();
+    try {
+      checkModCount();
+      Node node = nextNode();
+      if (node == null) {
+        moveTo(null, tree.size);
+        throw stopIteration();
+      }
+      return moveTo(node, current != null ? rank + 1 : Math.max(rank, 0));
+    } finally {
+      tree.unlockRead();
+    }
+  }
+
+  @JRubyMethod(name = "prev")
+  public IRubyObject prev(ThreadContext context) {
+    tree.lockRead();
+    try {
+      checkModCount();
+      Node node = prevNode();
+      if (node == null) {
+        moveTo(null, -1);
+        throw stopIteration();
+      }
+      return moveTo(node, rank - 1);
+    } finally {
+      tree.unlockRead();
+    }
+  }
+
+  /**
+   * The entry next would return, without moving.
+   */
+  @JRubyMethod(name = "peek")
+  public IRubyObject peek(ThreadContext context) {
+    tree.lockRead();
+    try {
+      checkModCount();
+      Node node = nextNode();
+      if (node == null) throw stopIteration();
+      return tree.newArray(node);
+    } finally {
+      tree.unlockRead();
+    }
+  }
+
+  /**
+   * Moves to the first entry whose key is not less than key and returns
+   * it, or moves after the last entry and returns nil.
+   */
+  @JRubyMethod(name = "seek")
+  public IRubyObject seek(ThreadContext context, IRubyObject key) {
+    tree.lockRead();
+    try {
+      expectedModCount = tree.modCount;
+      Node node = tree.lower_boundInternal(context, key);
+      return moveTo(node, node == null ? tree.size : tree.rankOf(node));
+    } finally {
+      tree.unlockRead();
+    }
+  }
+
+  @JRubyMethod(name = "rewind")
+  public IRubyObject rewind(ThreadContext context) {
+    tree.lockRead();
+    try {
+      expectedModCount = tree.modCount;
+      moveTo(null, -1);
+      return this;
+    } finally {
+      tree.unlockRead();
+    }
+  }
+
+  @JRubyMethod(name = "key")
+  public IRubyObject key(ThreadContext context) {
+    checkModCount();
+    return current == null ? context.runtime.getNil() : current.key;
+  }
+
+  @JRubyMethod(name = "value")
+  public IRubyObject value(ThreadContext context) {
+    checkModCount();
+    return current == null ? context.runtime.getNil() : current.value;
+  }
+
+  /**
+   * Deletes the entry the cursor is on and returns its value. The cursor
+   * is left in its place: next goes on with the entry after it, prev
+   * with the one before.
+   */
+  @JRubyMethod(name = "delete_current")
+  public IRubyObject delete_current(ThreadContext context) {
+    tree.lockWrite();
+    try {
+      checkModCount();
+      if (current == null) throw context.runtime.newIndexError("cursor is not on an entry");
+      IRubyObject value = current.value;
+      tree.internalDelete(context, current);
+      current = null;
+      removed = true;
+      expectedModCount = tree.modCount;
+      return value;
+    } finally {
+      tree.unlockWrite();
+    }
+  }
+}
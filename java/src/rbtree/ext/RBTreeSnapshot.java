@@ -0,0 +1,287 @@
+package rbtree.ext;
+
+import org.jruby.Ruby;
+import org.jruby.RubyObject;
+import org.jruby.RubyClass;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * What MultiRBTree#snapshot returns: a frozen tree sharing the nodes of
+ * the one it was taken from. The live tree copies a node before it next
+ * changes it, together with the nodes above it, so everything reachable
+ * from the snapshot's root stays as it was.
+ *
+ * The live tree still rewrites the parent links of shared nodes, so
+ * nothing here follows them. Nodes are found from the root and handed out
+ * as views that know their rank and the path down to them; successor and
+ * predecessor step along that path, O(1) amortized like on the live tree,
+ * and a full iteration walks the tree with a stack.
+ */
+public class RBTreeSnapshot extends MultiRBTree {
+  // no red-black tree of 2^31 entries is deeper than this
+  private static final int MAX_DEPTH = 64;
+
+  public RBTreeSnapshot(final Ruby ruby, RubyClass rubyClass, MultiRBTree source) {
+    super(ruby, rubyClass);
+    shareFrom(source);
+    setFrozen(true);
+  }
+
+  /**
+   * The ancestors of a node, nearest first. The nodes a snapshot reaches
+   * never change, so a path stays good as long as the snapshot.
+   */
+  private static final class Path {
+    final Node node;
+    final Path up;
+
+    Path(Node node, Path up) {
+      this.node = node;
+      this.up = up;
+    }
+  }
+
+  private final class Entry extends Node {
+    // the shared node and which of its values this is
+    final Node node;
+    final int index;
+    final int rank;
+    final Path up;
+    private final RubyObject sortKey;
+
+    Entry(Node node, int index, int rank, Path up) {
+      this(MultiRBTree.entryAt(node, index), node, index, rank, up);
+    }
+
+    private Entry(Node view, Node node, int index, int rank, Path up) {
+      super(view.key, view.value);
+      this.node = node;
+      this.index = index;
+      this.rank = rank;
+      this.up = up;
+      this.sortKey = node.getSortKey();
+    }
+
+    @Override
+    public RubyObject getSortKey() {
+      return sortKey;
+    }
+
+    @Override
+    public void setValue(IRubyObject val) {
+      throw frozenError();
+    }
+  }
+
+  /**
+   * Raises what writing to any frozen object raises.
+   */
+  private RaiseException frozenError() {
+    checkFrozen();
+    // a snapshot is frozen from the start and stays so
+    throw new IllegalStateException("snapshot is not frozen");
+  }
+
+  private Node entryAt(int rank) {
+    if (rank < 0 || rank >= size) return null;
+    int index = rank;
+    Path up = null;
+    Node x = getRoot();
+    while (true) {
+      int leftCount = countOf(x.left);
+      if (index < leftCount) {
+        up = new Path(x, up);
+        x = x.left;
+      } else if (index < leftCount + x.entries()) {
+        return new Entry(x, index - leftCount, rank, up);
+      } else {
+        index -= leftCount + x.entries();
+        up = new Path(x, up);
+        x = x.right;
+      }
+    }
+  }
+
+  @Override
+  public IRubyObject snapshot(ThreadContext context) {
+    return this;
+  }
+
+  @Override
+  public IRubyObject init() {
+    throw frozenError();
+  }
+
+  @Override
+  public MultiRBTree internalPut(ThreadContext context, IRubyObject key, IRubyObject value, boolean checkExisting) {
+    throw frozenError();
+  }
+
+  @Override
+  public IRubyObject internalDelete(ThreadContext context, Node node) {
+    throw frozenError();
+  }
+
+  @Override
+  boolean searchesFromFinger() {
+    return false;
+  }
+
+  @Override
+  IRubyObject updateInternal(ThreadContext context, IRubyObject key, Update update) {
+    throw frozenError();
+  }
+
+  @Override
+  void putAllSorted(ThreadContext context, IRubyObject[] keys, IRubyObject[] values, int length) {
+    throw frozenError();
+  }
+
+  @Override
+  Node minimum() {
+    return entryAt(0);
+  }
+
+  @Override
+  Node maximum() {
+    return entryAt(size - 1);
+  }
+
+  @Override
+  Node successor(Node x) {
+    Entry entry = (Entry) x;
+    if (entry.index + 1 < entry.node.entries()) return new Entry(entry.node, entry.index + 1, entry.rank + 1, entry.up);
+    Node y = entry.node;
+    Path up = entry.up;
+    if (y.right != null) {
+      up = new Path(y, up);
+      y = y.right;
+      while (y.left != null) {
+        up = new Path(y, up);
+        y = y.left;
+      }
+    } else {
+      while (up != null && up.node.right == y) {
+        y = up.node;
+        up = up.up;
+      }
+      if (up == null) return null;
+      y = up.node;
+      up = up.up;
+    }
+    return new Entry(y, 0, entry.rank + 1, up);
+  }
+
+  @Override
+  Node predecessor(Node x) {
+    Entry entry = (Entry) x;
+    if (entry.index > 0) return new Entry(entry.node, entry.index - 1, entry.rank - 1, entry.up);
+    Node y = entry.node;
+    Path up = entry.up;
+    if (y.left != null) {
+      up = new Path(y, up);
+      y = y.left;
+      while (y.right != null) {
+        up = new Path(y, up);
+        y = y.right;
+      }
+    } else {
+      while (up != null && up.node.left == y) {
+        y = up.node;
+        up = up.up;
+      }
+      if (up == null) return null;
+      y = up.node;
+      up = up.up;
+    }
+    return new Entry(y, y.entries() - 1, entry.rank - 1, up);
+  }
+
+  @Override
+  int rankOf(Node node) {
+    return ((Entry) node).rank;
+  }
+
+  @Override
+  Node nodeAt(int index) {
+    return entryAt(index);
+  }
+
+  @Override
+  Node findNode(ThreadContext context, RubyObject sortKey) {
+    int type = keyTypeFor(sortKey);
+    int rank = 0;
+    Path up = null;
+    Node x = getRoot();
+    while (x != null) {
+      int ret = compare(context, type, sortKey, x.getSortKey());
+      if (ret > 0) {
+        rank += countOf(x.left) + x.entries();
+        up = new Path(x, up);
+        x = x.right;
+      } else if (ret < 0) {
+        up = new Path(x, up);
+        x = x.left;
+      } else {
+        return new Entry(x, 0, rank + countOf(x.left), up);
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Node lower_boundInternal(ThreadContext context, IRubyObject key) {
+    return entryAt(countBefore(context, key, false));
+  }
+
+  @Override
+  public Node upper_boundInternal(ThreadContext context, IRubyObject key) {
+    return entryAt(countBefore(context, key, true) - 1);
+  }
+
+  @Override
+  Node lastBeforeInternal(ThreadContext context, IRubyObject key) {
+    return entryAt(countBefore(context, key, false) - 1);
+  }
+
+  @Override
+  void visitAll(Visitor visitor) {
+    Node[] stack = new Node[MAX_DEPTH];
+    int depth = 0;
+    Node x = getRoot();
+    while (x != null || depth > 0) {
+      if (x != null) {
+        stack[depth++] = x;
+        x = x.left;
+      } else {
+        x = stack[--depth];
+        x.visitEntries(visitor);
+        x = x.right;
+      }
+    }
+  }
+
+  @Override
+  public void iteratorVisitAll(Visitor visitor) {
+    visitAll(visitor);
+  }
+
+  @Override
+  public void iteratorReverseVisitAll(Visitor visitor) {
+    Node[] stack = new Node[MAX_DEPTH];
+    int depth = 0;
+    Node x = getRoot();
+    while (x != null || depth > 0) {
+      if (x != null) {
+        stack[depth++] = x;
+        x = x.right;
+      } else {
+        x = stack[--depth];
+        x.reverseVisitEntries(visitor);
+        x = x.left;
+      }
+    }
+  }
+}
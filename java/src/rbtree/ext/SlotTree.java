@@ -0,0 +1,401 @@
+package rbtree.ext;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The red-black tree that CompactRBTree and LongRBTree keep their entries
+ * in: the links in int arrays indexed by slot and the colors in a BitSet.
+ * Freed slots are chained through the left links and reused before the
+ * arrays grow. The entries themselves are in arrays the subclass owns,
+ * indexed by the same slots, which it grows, moves and clears when told
+ * to.
+ *
+ * With counted set it also keeps the size of the subtree under each slot,
+ * for the rank lookups of CompactRBTree.
+ */
+abstract class SlotTree {
+  static final int NIL = -1;
+
+  int[] left;
+  int[] right;
+  int[] parent;
+  // subtree sizes, null unless counted
+  int[] count;
+  // set bits are red, NIL and cleared bits are black
+  BitSet red;
+  int root = NIL;
+  // slots below this have been handed out at least once
+  private int used;
+  // head of the free list, chained through left
+  private int free = NIL;
+  private final boolean counted;
+
+  SlotTree(boolean counted) {
+    this.counted = counted;
+  }
+
+  /**
+   * Makes the entry arrays hold capacity slots, empty.
+   */
+  abstract void allocateEntries(int capacity);
+
+  /**
+   * Makes the entry arrays hold capacity slots, keeping the ones there.
+   */
+  abstract void growEntries(int capacity);
+
+  /**
+   * Copies the entry in slot from to slot to.
+   */
+  abstract void moveEntry(int from, int to);
+
+  /**
+   * Drops the references slot i holds, as it is freed.
+   */
+  abstract void clearEntry(int i);
+
+  /**
+   * Empties the tree into arrays of capacity slots.
+   */
+  void allocate(int capacity) {
+    left = new int[capacity];
+    right = new int[capacity];
+    parent = new int[capacity];
+    count = counted ? new int[capacity] : null;
+    red = new BitSet(capacity);
+    root = NIL;
+    used = 0;
+    free = NIL;
+    allocateEntries(capacity);
+  }
+
+  private void grow(int capacity) {
+    left = Arrays.copyOf(left, capacity);
+    right = Arrays.copyOf(right, capacity);
+    parent = Arrays.copyOf(parent, capacity);
+    if (counted) count = Arrays.copyOf(count, capacity);
+    growEntries(capacity);
+  }
+
+  /**
+   * Makes the links a copy of other's, which has the same subclass.
+   */
+  void copyFrom(SlotTree other) {
+    left = other.left.clone();
+    right = other.right.clone();
+    parent = other.parent.clone();
+    count = other.count == null ? null : other.count.clone();
+    red = (BitSet) other.red.clone();
+    root = other.root;
+    used = other.used;
+    free = other.free;
+  }
+
+  int capacity() {
+    return left.length;
+  }
+
+  /**
+   * A red slot with no links, for the caller to fill in and insert.
+   */
+  int newSlot() {
+    int i;
+    if (free != NIL) {
+      i = free;
+      free = left[i];
+    } else {
+      if (used == left.length) grow(used + (used >> 1) + 1);
+      i = used++;
+    }
+    left[i] = right[i] = parent[i] = NIL;
+    if (counted) count[i] = 1;
+    red.set(i);
+    return i;
+  }
+
+  private void freeSlot(int i) {
+    clearEntry(i);
+    right[i] = parent[i] = NIL;
+    left[i] = free;
+    free = i;
+  }
+
+  boolean isRed(int i) {
+    return i != NIL && red.get(i);
+  }
+
+  int countOf(int i) {
+    return i == NIL ? 0 : count[i];
+  }
+
+  /**
+   * Links the new slot z in as the left or right child of y, where a
+   * search for its key ended, and rebalances.
+   */
+  void insert(int z, int y, boolean less) {
+    parent[z] = y;
+    if (y == NIL) {
+      root = z;
+    } else if (less) {
+      left[y] = z;
+    } else {
+      right[y] = z;
+    }
+    if (counted) {
+      for (int p = y; p != NIL; p = parent[p]) {
+        count[p] += 1;
+      }
+    }
+    insertFixup(z);
+  }
+
+  private void insertFixup(int x) {
+    while (x != root && isRed(parent[x])) {
+      int p = parent[x];
+      int g = parent[p];
+      if (p == left[g]) {
+        int y = right[g];
+        if (isRed(y)) {
+          red.clear(p);
+          red.clear(y);
+          red.set(g);
+          x = g;
+        } else {
+          if (x == right[p]) {
+            x = p;
+            leftRotate(x);
+            p = parent[x];
+          }
+          red.clear(p);
+          red.set(g);
+          rightRotate(g);
+        }
+      } else {
+        int y = left[g];
+        if (isRed(y)) {
+          red.clear(p);
+          red.clear(y);
+          red.set(g);
+          x = g;
+        } else {
+          if (x == left[p]) {
+            x = p;
+            rightRotate(x);
+            p = parent[x];
+          }
+          red.clear(p);
+          red.set(g);
+          leftRotate(g);
+        }
+      }
+    }
+    red.clear(root);
+  }
+
+  /**
+   * Removes the entry in slot z; callers take its key and value first.
+   * As in MultiRBTree, z takes over its successor's entry when it has two
+   * children and the successor's slot is the one freed.
+   */
+  void delete(int z) {
+    int y = (left[z] == NIL || right[z] == NIL) ? z : successor(z);
+    if (y != z) moveEntry(y, z);
+    if (counted) {
+      for (int p = parent[y]; p != NIL; p = parent[p]) {
+        count[p] -= 1;
+      }
+    }
+    int x = left[y] == NIL ? right[y] : left[y];
+    if (x != NIL) {
+      replaceChild(y, x);
+      if (!isRed(y)) deleteFixup(x);
+    } else if (parent[y] == NIL) {
+      root = NIL;
+    } else {
+      if (counted) count[y] = 0;
+      if (!isRed(y)) deleteFixup(y);
+      replaceChild(y, NIL);
+    }
+    freeSlot(y);
+  }
+
+  private void replaceChild(int y, int x) {
+    int p = parent[y];
+    if (x != NIL) parent[x] = p;
+    if (p == NIL) {
+      root = x;
+    } else if (y == left[p]) {
+      left[p] = x;
+    } else {
+      right[p] = x;
+    }
+  }
+
+  private void deleteFixup(int x) {
+    while (x != root && !isRed(x)) {
+      int p = parent[x];
+      if (x == left[p]) {
+        int w = right[p];
+        if (isRed(w)) {
+          red.clear(w);
+          red.set(p);
+          leftRotate(p);
+          w = right[p];
+        }
+        if (!isRed(left[w]) && !isRed(right[w])) {
+          red.set(w);
+          x = p;
+        } else {
+          if (!isRed(right[w])) {
+            red.clear(left[w]);
+            red.set(w);
+            rightRotate(w);
+            w = right[p];
+          }
+          red.set(w, red.get(p));
+          red.clear(p);
+          red.clear(right[w]);
+          leftRotate(p);
+          x = root;
+        }
+      } else {
+        int w = left[p];
+        if (isRed(w)) {
+          red.clear(w);
+          red.set(p);
+          rightRotate(p);
+          w = left[p];
+        }
+        if (!isRed(right[w]) && !isRed(left[w])) {
+          red.set(w);
+          x = p;
+        } else {
+          if (!isRed(left[w])) {
+            red.clear(right[w]);
+            red.set(w);
+            leftRotate(w);
+            w = left[p];
+          }
+          red.set(w, red.get(p));
+          red.clear(p);
+          red.clear(left[w]);
+          rightRotate(p);
+          x = root;
+        }
+      }
+    }
+    red.clear(x);
+  }
+
+  private void leftRotate(int x) {
+    int y = right[x];
+    right[x] = left[y];
+    if (left[y] != NIL) parent[left[y]] = x;
+    parent[y] = parent[x];
+    if (parent[x] == NIL) {
+      root = y;
+    } else if (x == left[parent[x]]) {
+      left[parent[x]] = y;
+    } else {
+      right[parent[x]] = y;
+    }
+    left[y] = x;
+    parent[x] = y;
+    if (counted) {
+      count[y] = count[x];
+      count[x] = countOf(left[x]) + countOf(right[x]) + 1;
+    }
+  }
+
+  private void rightRotate(int x) {
+    int y = left[x];
+    left[x] = right[y];
+    if (right[y] != NIL) parent[right[y]] = x;
+    parent[y] = parent[x];
+    if (parent[x] == NIL) {
+      root = y;
+    } else if (x == left[parent[x]]) {
+      left[parent[x]] = y;
+    } else {
+      right[parent[x]] = y;
+    }
+    right[y] = x;
+    parent[x] = y;
+    if (counted) {
+      count[y] = count[x];
+      count[x] = countOf(left[x]) + countOf(right[x]) + 1;
+    }
+  }
+
+  int minimum(int x) {
+    if (x == NIL) return NIL;
+    while (left[x] != NIL) x = left[x];
+    return x;
+  }
+
+  int maximum(int x) {
+    if (x == NIL) return NIL;
+    while (right[x] != NIL) x = right[x];
+    return x;
+  }
+
+  int successor(int x) {
+    if (right[x] != NIL) return minimum(right[x]);
+    int y = parent[x];
+    while (y != NIL && x == right[y]) {
+      x = y;
+      y = parent[y];
+    }
+    return y;
+  }
+
+  int predecessor(int x) {
+    if (left[x] != NIL) return maximum(left[x]);
+    int y = parent[x];
+    while (y != NIL && x == left[y]) {
+      x = y;
+      y = parent[y];
+    }
+    return y;
+  }
+
+  /**
+   * Links a balanced tree over slots handed out in order for the sorted
+   * entries lo..hi, coloring red only the bottom level of an incomplete
+   * tree; fill is called with each new slot and the index of its entry.
+   */
+  int buildFromSorted(int level, int lo, int hi, int redLevel, Fill fill) {
+    if (hi < lo) return NIL;
+    int mid = (lo + hi) >>> 1;
+    int l = buildFromSorted(level + 1, lo, mid - 1, redLevel, fill);
+    int m = newSlot();
+    fill.fill(m, mid);
+    if (level != redLevel) red.clear(m);
+    if (l != NIL) {
+      left[m] = l;
+      parent[l] = m;
+    }
+    int r = buildFromSorted(level + 1, mid + 1, hi, redLevel, fill);
+    if (r != NIL) {
+      right[m] = r;
+      parent[r] = m;
+    }
+    if (counted) count[m] = hi - lo + 1;
+    return m;
+  }
+
+  static abstract class Fill {
+    abstract void fill(int slot, int index);
+  }
+
+  int blackHeight() {
+    int x = root;
+    int height = 0;
+    while (x != NIL) {
+      x = left[x];
+      if (!isRed(x)) height += 1;
+    }
+    return height;
+  }
+}
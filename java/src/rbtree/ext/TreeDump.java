@@ -0,0 +1,489 @@
+package rbtree.ext;
+
+import org.jcodings.Encoding;
+import org.jcodings.specific.ASCIIEncoding;
+import org.jcodings.specific.USASCIIEncoding;
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyIO;
+import org.jruby.RubyMethod;
+import org.jruby.RubyModule;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The format of MultiRBTree#dump_to and load_from: a header, the default
+ * value, the entry count and the entries in order. Fixnum, Float, true,
+ * false, nil, Symbol and String in UTF-8, US-ASCII or ASCII-8BIT are
+ * written as a tag and their bytes, anything else as the tag MARSHALED
+ * and what Marshal.dump makes of it.
+ *
+ * The stream is cut into frames of up to FRAME_SIZE bytes, each led by
+ * its length, and ends with an empty one. Frames let the writer hand a
+ * Ruby IO's channel a full buffer at a time, and the reader ask the IO
+ * for exactly the bytes of the next frame, so a dump can be followed by
+ * other data. A number never straddles two frames.
+ */
+final class TreeDump {
+  private static final byte[] MAGIC = { 'R', 'B', 'T', 1 };
+  private static final int FRAME_SIZE = 1 << 16;
+
+  private static final int MULTI = 1;
+  private static final int COMPACT = 2;
+  private static final int INDEX_VALUES = 4;
+
+  // how the tree was ordered; a Method of a named module is kept by
+  // name, a Proc has to be handed to load_from again
+  private static final int ORDER_NATURAL = 0;
+  private static final int ORDER_METHOD = 1;
+  private static final int ORDER_CMP_PROC = 2;
+  private static final int ORDER_SORT_KEY_PROC = 3;
+
+  private static final int NIL = 0;
+  private static final int TRUE = 1;
+  private static final int FALSE = 2;
+  private static final int FIXNUM = 3;
+  private static final int FLOAT = 4;
+  private static final int UTF8_STRING = 5;
+  private static final int ASCII_STRING = 6;
+  private static final int BINARY_STRING = 7;
+  private static final int SYMBOL = 8;
+  private static final int MARSHALED = 9;
+
+  // symbols keep their bytes in a String of one char per byte
+  private static final Charset RAW = Charset.forName("ISO-8859-1");
+
+  private TreeDump() {
+  }
+
+  static void dump(final ThreadContext context, MultiRBTree tree, IRubyObject io) {
+    Ruby runtime = context.runtime;
+    final Out out = new Out(context, io);
+    tree.lockRead();
+    try {
+      if (tree.hasDefaultProc())
+        throw runtime.newTypeError("can't dump " + tree.getMetaClass().getRealClass().getName() + " with default proc");
+      out.putBytes(MAGIC, 0, MAGIC.length);
+      out.putByte((tree.dupes ? MULTI : 0) | (tree instanceof CompactRBTree ? COMPACT : 0) | (tree.valueIndex != null ? INDEX_VALUES : 0));
+      String owner = tree.cmpProc instanceof RubyMethod ? ownerName(context, tree.cmpProc) : null;
+      if (tree.sortKeyProc != null) {
+        out.putByte(ORDER_SORT_KEY_PROC);
+      } else if (tree.cmpProc == null) {
+        out.putByte(ORDER_NATURAL);
+      } else if (owner != null) {
+        out.putByte(ORDER_METHOD);
+        out.putName(owner);
+        out.putName(tree.cmpProc.callMethod(context, "name").asJavaString());
+      } else {
+        out.putByte(ORDER_CMP_PROC);
+      }
+      out.putValue(tree.ifNone);
+      out.putInt(tree.size);
+      tree.visitAll(new MultiRBTree.Visitor() {
+        public void visit(IRubyObject key, IRubyObject value) {
+          out.putValue(key);
+          out.putValue(value);
+        }
+      });
+    } finally {
+      tree.unlockRead();
+    }
+    out.finish();
+  }
+
+  /**
+   * The name of the module method belongs to, or null when it belongs to
+   * something load_from could not find again by name.
+   */
+  private static String ownerName(ThreadContext context, IRubyObject method) {
+    IRubyObject receiver = method.callMethod(context, "receiver");
+    if (!(receiver instanceof RubyModule)) return null;
+    String name = ((RubyModule) receiver).getName();
+    return name == null || name.startsWith("#<") ? null : name;
+  }
+
+  static IRubyObject load(ThreadContext context, RubyClass klass, IRubyObject io, Block block) {
+    Ruby runtime = context.runtime;
+    In in = new In(context, io);
+    if (!Arrays.equals(in.getBytes(MAGIC.length), MAGIC))
+      throw runtime.newArgumentError("not a tree dump, or one of another version");
+    int flags = in.getByte();
+    MultiRBTree tree = (MultiRBTree) klass.allocate();
+    if ((flags & MULTI) != 0 && !tree.dupes)
+      throw runtime.newTypeError("cannot convert MultiRBTree to " + klass.getName());
+    if ((flags & COMPACT) != 0 && tree.getClass() == MultiRBTree.class) tree = new CompactRBTree(runtime, klass);
+    if ((flags & INDEX_VALUES) != 0 && tree.canIndexValues()) tree.valueIndex = new ValueIndex(tree);
+    int order = in.getByte();
+    if ((order == ORDER_CMP_PROC || order == ORDER_SORT_KEY_PROC) != block.isGiven()) {
+      throw runtime.newArgumentError(block.isGiven() ? "the tree was dumped without a compare proc"
+          : "the tree was dumped with a " + (order == ORDER_CMP_PROC ? "compare proc" : "sort key proc") + ", give it as a block");
+    }
+    switch (order) {
+      case ORDER_NATURAL:
+        break;
+      case ORDER_METHOD:
+        String owner = in.getName();
+        String name = in.getName();
+        tree.setComparator(runtime.getClassFromPath(owner).callMethod(context, "method", runtime.newSymbol(name)), null);
+        break;
+      case ORDER_CMP_PROC:
+        tree.setComparator(runtime.newProc(Block.Type.PROC, block), null);
+        break;
+      case ORDER_SORT_KEY_PROC:
+        tree.setComparator(null, runtime.newProc(Block.Type.PROC, block));
+        break;
+      default:
+        throw in.corrupt();
+    }
+    tree.ifNone = in.getValue();
+    int size = in.getInt();
+    if (size < 0) throw in.corrupt();
+    // grown as the entries come, so a damaged count cannot ask for all memory
+    IRubyObject[] keys = new IRubyObject[Math.min(size, FRAME_SIZE)];
+    IRubyObject[] values = new IRubyObject[keys.length];
+    for (int i = 0; i < size; i++) {
+      if (i == keys.length) {
+        keys = Arrays.copyOf(keys, (int) Math.min(size, 2L * i));
+        values = Arrays.copyOf(values, keys.length);
+      }
+      IRubyObject key = in.getValue();
+      // as []= stores them
+      if (key instanceof RubyString) key.setFrozen(true);
+      keys[i] = key;
+      values[i] = in.getValue();
+    }
+    in.end();
+    tree.putAllSorted(context, keys, values, size);
+    return tree;
+  }
+
+  /**
+   * Writes numbers, names and values in the format's encoding into
+   * buffer; room makes sure the next bytes fit. MappedRBTree writes its
+   * values the same way.
+   */
+  abstract static class Sink {
+    final ThreadContext context;
+    ByteBuffer buffer;
+
+    Sink(ThreadContext context, ByteBuffer buffer) {
+      this.context = context;
+      this.buffer = buffer;
+    }
+
+    abstract void room(int length);
+
+    void putByte(int b) {
+      room(1);
+      buffer.put((byte) b);
+    }
+
+    void putInt(int i) {
+      room(4);
+      buffer.putInt(i);
+    }
+
+    void putLong(long l) {
+      room(8);
+      buffer.putLong(l);
+    }
+
+    void putBytes(byte[] bytes, int begin, int length) {
+      while (length > 0) {
+        if (!buffer.hasRemaining()) room(1);
+        int n = Math.min(length, buffer.remaining());
+        buffer.put(bytes, begin, n);
+        begin += n;
+        length -= n;
+      }
+    }
+
+    void putName(String name) {
+      byte[] bytes = name.getBytes(RAW);
+      putInt(bytes.length);
+      putBytes(bytes, 0, bytes.length);
+    }
+
+    void putBytes(int tag, ByteList bytes) {
+      putByte(tag);
+      putInt(bytes.getRealSize());
+      putBytes(bytes.getUnsafeBytes(), bytes.getBegin(), bytes.getRealSize());
+    }
+
+    void putValue(IRubyObject value) {
+      Ruby runtime = context.runtime;
+      if (value.isNil()) {
+        putByte(NIL);
+      } else if (value == runtime.getTrue()) {
+        putByte(TRUE);
+      } else if (value == runtime.getFalse()) {
+        putByte(FALSE);
+      } else if (value instanceof RubyFixnum) {
+        room(9);
+        buffer.put((byte) FIXNUM);
+        buffer.putLong(((RubyFixnum) value).getLongValue());
+      } else if (value instanceof RubyFloat) {
+        room(9);
+        buffer.put((byte) FLOAT);
+        buffer.putDouble(((RubyFloat) value).getDoubleValue());
+      } else if (value instanceof RubySymbol) {
+        putBytes(SYMBOL, ((RubySymbol) value).asString().getByteList());
+      } else if (isPlainString(context, value)) {
+        putBytes(stringTag((RubyString) value), ((RubyString) value).getByteList());
+      } else {
+        putBytes(MARSHALED, runtime.getModule("Marshal").callMethod(context, "dump", value).convertToString().getByteList());
+      }
+    }
+  }
+
+  /**
+   * Whether value is a String the format keeps as its bytes: no subclass,
+   * no instance variables and an encoding it has a tag for.
+   */
+  static boolean isPlainString(ThreadContext context, IRubyObject value) {
+    return value.getMetaClass() == context.runtime.getString() && !((RubyString) value).hasVariables() && stringTag((RubyString) value) >= 0;
+  }
+
+  static int stringTag(RubyString string) {
+    Encoding encoding = string.getByteList().getEncoding();
+    if (encoding == UTF8Encoding.INSTANCE) return UTF8_STRING;
+    if (encoding == USASCIIEncoding.INSTANCE) return ASCII_STRING;
+    if (encoding == ASCIIEncoding.INSTANCE) return BINARY_STRING;
+    return -1;
+  }
+
+  /**
+   * Reads what a Sink wrote; need returns the buffer the next length
+   * bytes are in, or raises.
+   */
+  abstract static class Source {
+    final ThreadContext context;
+
+    Source(ThreadContext context) {
+      this.context = context;
+    }
+
+    abstract ByteBuffer need(int length);
+
+    abstract RaiseException corrupt();
+
+    int getByte() {
+      return need(1).get() & 0xff;
+    }
+
+    int getInt() {
+      return need(4).getInt();
+    }
+
+    long getLong() {
+      return need(8).getLong();
+    }
+
+    byte[] getBytes(int length) {
+      if (length < 0) throw corrupt();
+      byte[] bytes = new byte[Math.min(length, FRAME_SIZE)];
+      int filled = 0;
+      while (filled < length) {
+        if (filled == bytes.length) bytes = Arrays.copyOf(bytes, (int) Math.min(length, 2L * filled));
+        ByteBuffer from = need(1);
+        int n = Math.min(bytes.length - filled, from.remaining());
+        from.get(bytes, filled, n);
+        filled += n;
+      }
+      return bytes;
+    }
+
+    String getName() {
+      return new String(getBytes(getInt()), RAW);
+    }
+
+    IRubyObject string(int tag) {
+      byte[] bytes = getBytes(getInt());
+      return RubyString.newString(context.runtime, new ByteList(bytes, encodingOf(tag), false));
+    }
+
+    private Encoding encodingOf(int tag) {
+      switch (tag) {
+        case UTF8_STRING: return UTF8Encoding.INSTANCE;
+        case ASCII_STRING: return USASCIIEncoding.INSTANCE;
+        case BINARY_STRING: return ASCIIEncoding.INSTANCE;
+        default: throw corrupt();
+      }
+    }
+
+    IRubyObject getValue() {
+      Ruby runtime = context.runtime;
+      int tag = getByte();
+      switch (tag) {
+        case NIL: return runtime.getNil();
+        case TRUE: return runtime.getTrue();
+        case FALSE: return runtime.getFalse();
+        case FIXNUM: return runtime.newFixnum(need(8).getLong());
+        case FLOAT: return RubyFloat.newFloat(runtime, need(8).getDouble());
+        case UTF8_STRING:
+        case ASCII_STRING:
+        case BINARY_STRING: return string(tag);
+        case SYMBOL: return RubySymbol.newSymbol(runtime, getName());
+        case MARSHALED: return runtime.getModule("Marshal").callMethod(context, "load", RubyString.newString(runtime, getBytes(getInt())));
+        default: throw corrupt();
+      }
+    }
+
+    void skip(int length) {
+      getBytes(length);
+    }
+
+    /**
+     * Reads past a value without making it.
+     */
+    void skipValue() {
+      switch (getByte()) {
+        case NIL:
+        case TRUE:
+        case FALSE:
+          return;
+        case FIXNUM:
+        case FLOAT:
+          skip(8);
+          return;
+        case UTF8_STRING:
+        case ASCII_STRING:
+        case BINARY_STRING:
+        case SYMBOL:
+        case MARSHALED:
+          skip(getInt());
+          return;
+        default:
+          throw corrupt();
+      }
+    }
+  }
+
+  private static final class Out extends Sink {
+    private final IRubyObject io;
+    private final WritableByteChannel channel;
+
+    Out(ThreadContext context, IRubyObject io) {
+      // a frame, its length first
+      super(context, ByteBuffer.allocate(4 + FRAME_SIZE));
+      this.io = io;
+      this.channel = channelOf(context, io);
+      buffer.position(4);
+    }
+
+    /**
+     * The channel of a Ruby IO, emptied of what Ruby buffered for it, or
+     * null for anything else, which gets the frames as Strings through
+     * write.
+     */
+    private static WritableByteChannel channelOf(ThreadContext context, IRubyObject io) {
+      if (!(io instanceof RubyIO)) return null;
+      Channel channel = ((RubyIO) io).getChannel();
+      if (!(channel instanceof WritableByteChannel)) return null;
+      io.callMethod(context, "flush");
+      return (WritableByteChannel) channel;
+    }
+
+    void room(int length) {
+      if (buffer.remaining() < length) flush();
+    }
+
+    private void flush() {
+      if (buffer.position() == 4) return;
+      buffer.putInt(0, buffer.position() - 4);
+      buffer.flip();
+      write();
+      buffer.clear();
+      buffer.position(4);
+    }
+
+    void finish() {
+      flush();
+      buffer.putInt(0, 0);
+      buffer.position(0).limit(4);
+      write();
+    }
+
+    private void write() {
+      if (channel == null) {
+        io.callMethod(context, "write", RubyString.newString(context.runtime, buffer.array(), 0, buffer.limit()));
+        return;
+      }
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      } catch (IOException e) {
+        throw context.runtime.newIOErrorFromException(e);
+      }
+    }
+  }
+
+  private static final class In extends Source {
+    private final IRubyObject io;
+    private ByteBuffer frame = ByteBuffer.allocate(0);
+
+    In(ThreadContext context, IRubyObject io) {
+      super(context);
+      this.io = io;
+    }
+
+    RaiseException corrupt() {
+      return context.runtime.newArgumentError("tree dump is corrupt");
+    }
+
+    /**
+     * Exactly length bytes from io, which reads until it has them or the
+     * data ends.
+     */
+    private byte[] read(int length) {
+      byte[] bytes = new byte[length];
+      int filled = 0;
+      while (filled < length) {
+        IRubyObject got = io.callMethod(context, "read", context.runtime.newFixnum(length - filled));
+        ByteList chunk = got.isNil() ? null : got.convertToString().getByteList();
+        if (chunk == null || chunk.getRealSize() == 0) throw context.runtime.newArgumentError("tree dump too short");
+        System.arraycopy(chunk.getUnsafeBytes(), chunk.getBegin(), bytes, filled, chunk.getRealSize());
+        filled += chunk.getRealSize();
+      }
+      return bytes;
+    }
+
+    private int frameLength() {
+      int length = ByteBuffer.wrap(read(4)).getInt();
+      if (length < 0 || length > FRAME_SIZE) throw corrupt();
+      return length;
+    }
+
+    ByteBuffer need(int length) {
+      if (!frame.hasRemaining()) {
+        int next = frameLength();
+        if (next == 0) throw context.runtime.newArgumentError("tree dump too short");
+        frame = ByteBuffer.wrap(read(next));
+      }
+      if (frame.remaining() < length) throw corrupt();
+      return frame;
+    }
+
+    /**
+     * Reads the empty frame that closes the dump, and nothing after it.
+     */
+    void end() {
+      if (frame.hasRemaining() || frameLength() != 0) throw corrupt();
+    }
+  }
+}
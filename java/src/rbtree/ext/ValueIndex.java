@@ -0,0 +1,142 @@
+package rbtree.ext;
+
+import org.jruby.RubyArray;
+import org.jruby.RubyObject;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The reverse index of a tree made with <code>index_values: true</code>:
+ * a map from each value to the keys it is stored under, so value?,
+ * index and keys_for_value need not walk the tree. Values are matched
+ * like Hash keys, by eql? and hash, and must not be changed in place
+ * while they are in the tree.
+ *
+ * The keys of a value are kept ordered the way the tree orders them, by
+ * their sort keys, so the first one is found in O(log k) for k keys and
+ * a key is added or removed in O(log k) too. Keys that sort equal, which
+ * only a MultiRBTree has, are kept in the order they were added.
+ */
+final class ValueIndex {
+  private final MultiRBTree tree;
+  // each sort key maps to its key, or to a KeyList of equal ones
+  private final Map<Value, TreeMap<RubyObject, Object>> keysByValue = new HashMap<Value, TreeMap<RubyObject, Object>>();
+  private final Comparator<RubyObject> order = new Comparator<RubyObject>() {
+    public int compare(RubyObject a, RubyObject b) {
+      return tree.compare(tree.getRuntime().getCurrentContext(), a, b);
+    }
+  };
+
+  /**
+   * A value as a map key, matched by eql? and hash like a Hash key.
+   */
+  private static final class Value {
+    final IRubyObject value;
+
+    Value(IRubyObject value) {
+      this.value = value;
+    }
+
+    @Override
+    public int hashCode() {
+      return value.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Value && value.eql(((Value) other).value);
+    }
+  }
+
+  private static final class KeyList extends LinkedList<IRubyObject> {
+  }
+
+  ValueIndex(MultiRBTree tree) {
+    this.tree = tree;
+  }
+
+  void add(IRubyObject key, RubyObject sortKey, IRubyObject value) {
+    Value v = new Value(value);
+    TreeMap<RubyObject, Object> keys = keysByValue.get(v);
+    if (keys == null) {
+      keys = new TreeMap<RubyObject, Object>(order);
+      keysByValue.put(v, keys);
+    }
+    Object found = keys.get(sortKey);
+    if (found == null) {
+      keys.put(sortKey, key);
+    } else if (found instanceof KeyList) {
+      ((KeyList) found).add(key);
+    } else {
+      KeyList list = new KeyList();
+      list.add((IRubyObject) found);
+      list.add(key);
+      keys.put(sortKey, list);
+    }
+  }
+
+  void remove(IRubyObject key, RubyObject sortKey, IRubyObject value) {
+    Value v = new Value(value);
+    TreeMap<RubyObject, Object> keys = keysByValue.get(v);
+    if (keys == null) return;
+    Object found = keys.get(sortKey);
+    if (found instanceof KeyList) {
+      KeyList list = (KeyList) found;
+      // a MultiRBTree may hand back an equal key for the one that was added
+      for (Iterator<IRubyObject> i = list.iterator(); i.hasNext();) {
+        if (MultiRBTree.sameKey(i.next(), key)) {
+          i.remove();
+          break;
+        }
+      }
+      if (list.size() == 1) keys.put(sortKey, list.getFirst());
+    } else if (found != null) {
+      keys.remove(sortKey);
+    }
+    if (keys.isEmpty()) keysByValue.remove(v);
+  }
+
+  boolean contains(IRubyObject value) {
+    return keysByValue.containsKey(new Value(value));
+  }
+
+  /**
+   * The first key value is stored under, in the tree's order, or null
+   * when there is none.
+   */
+  IRubyObject firstKeyFor(IRubyObject value) {
+    TreeMap<RubyObject, Object> keys = keysByValue.get(new Value(value));
+    if (keys == null) return null;
+    Object first = keys.firstEntry().getValue();
+    return first instanceof KeyList ? ((KeyList) first).getFirst() : (IRubyObject) first;
+  }
+
+  /**
+   * The keys value is stored under, in the tree's order.
+   */
+  RubyArray keysFor(IRubyObject value) {
+    RubyArray ret = tree.getRuntime().newArray();
+    TreeMap<RubyObject, Object> keys = keysByValue.get(new Value(value));
+    if (keys == null) return ret;
+    for (Object found : keys.values()) {
+      if (found instanceof KeyList) {
+        for (IRubyObject key : (KeyList) found) {
+          ret.append(key);
+        }
+      } else {
+        ret.append((IRubyObject) found);
+      }
+    }
+    return ret;
+  }
+
+  void clear() {
+    keysByValue.clear();
+  }
+}
@@ -3,7 +3,35 @@ require 'rbtree/ext/multi_r_b_tree'
 class RBTree < MultiRBTree
 end
 
+class BTreeMap < MultiBTreeMap
+end
+
+class ConcurrentRBTree < ConcurrentMultiRBTree
+end
+
+class SkipListMap < MultiSkipListMap
+end
+
 class MultiRBTree
+  # Takes the storage: and index_values: options as keywords only, a
+  # Hash given as the default value stays the default value. Rubies
+  # before 2.7 cannot tell the two apart, there a trailing Hash holding
+  # either option is taken for the options.
+  def self.new(*args, &block)
+    options = args.last
+    if options.is_a?(Hash) && (options.key?(:storage) || options.key?(:index_values)) &&
+        (RUBY_VERSION < "2.7" || Hash.ruby2_keywords_hash?(options))
+      args.pop
+      unless (options.keys - [:storage, :index_values]).empty?
+        raise ArgumentError, "unknown option, only :storage and :index_values are accepted"
+      end
+      __new__(options[:storage], options[:index_values], *args, &block)
+    else
+      __new__(nil, nil, *args, &block)
+    end
+  end
+  singleton_class.send(:ruby2_keywords, :new) if singleton_class.respond_to?(:ruby2_keywords, true)
+
   def pretty_print(pp)
     pp.text "#<#{self.class.to_s}: "
     pp.pp_hash self
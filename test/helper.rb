@@ -14,5 +14,8 @@ $LOAD_PATH.unshift(File.join(File.dirname(__FILE__), '..', 'lib'))
 $LOAD_PATH.unshift(File.dirname(__FILE__))
 require 'rbtree'
 
+# rubies before 2.5 raise a plain RuntimeError on frozen objects
+FrozenError = RuntimeError unless defined?(FrozenError)
+
 class Test::Unit::TestCase
 end
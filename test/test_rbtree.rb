@@ -1,4 +1,12 @@
 require 'helper'
+require 'stringio'
+require 'tmpdir'
+
+module DumpOrder
+  def self.reverse(a, b)
+    b <=> a
+  end
+end
 
 class RBTreeTest < Test::Unit::TestCase
   def setup
@@ -13,6 +21,12 @@ class RBTreeTest < Test::Unit::TestCase
     }
     assert_raises(ArgumentError) { RBTree.new("a") {} }
     assert_raises(ArgumentError) { RBTree.new("a", "a") }
+    assert_equal({:a => 1}, RBTree.new({:a => 1}).default)
+    if RUBY_VERSION >= "2.7"
+      # the options are keywords, a Hash naming one is just a default
+      assert_equal({:storage => :x}, RBTree.new({:storage => :x}).default)
+      assert_equal(:node, RBTree.new({:storage => :compact}).storage)
+    end
   end
   
   def test_aref
@@ -220,6 +234,55 @@ class RBTreeTest < Test::Unit::TestCase
     assert_equal(nil, @rbtree.index("E"))
   end
 
+  def test_upsert
+    assert_equal("AA", @rbtree.upsert("a") {|v| v * 2 })
+    assert_equal("AA", @rbtree["a"])
+    assert_equal("E", @rbtree.upsert("e") {|v| v.nil? ? "E" : v })
+    assert_equal(5, @rbtree.size)
+    assert_raises(ArgumentError) { @rbtree.upsert("a") }
+
+    key = "f"
+    @rbtree.upsert(key) { "F" }
+    assert_not_same(key, @rbtree.last[0])
+    assert_equal(true, @rbtree.last[0].frozen?)
+  end
+
+  def test_fetch_or_store
+    assert_equal("A", @rbtree.fetch_or_store("a") { "X" })
+    assert_equal("A", @rbtree.fetch_or_store("a", "X"))
+    assert_equal("ee", @rbtree.fetch_or_store("e") {|k| k * 2 })
+    assert_equal("F", @rbtree.fetch_or_store("f", "F"))
+    assert_equal(%w(a A b B c C d D e ee f F), @rbtree.to_a.flatten)
+    assert_raises(ArgumentError) { @rbtree.fetch_or_store("g") }
+
+    assert_equal("A", @rbtree.compute_if_absent("a") { "X" })
+    assert_equal("G", @rbtree.compute_if_absent("g") { "G" })
+    assert_equal("G", @rbtree["g"])
+  end
+
+  def test_increment
+    rbtree = RBTree.new
+    assert_equal(1, rbtree.increment("a"))
+    assert_equal(2, rbtree.increment("a"))
+    assert_equal(12, rbtree.increment("a", 10))
+    assert_equal(0.5, rbtree.increment("b", 0.5))
+    assert_equal(2 ** 64, RBTree[1, 2 ** 64 - 1].increment(1))
+
+    [:node, :compact].each do |storage|
+      counts = RBTree.new(:storage => storage)
+      words = %w(x y z x y x)
+      words.each {|w| counts.increment(w) }
+      assert_equal([["x", 3], ["y", 2], ["z", 1]], counts.to_a)
+    end
+    counts = BTreeMap.new
+    %w(x y x).each {|w| counts.increment(w) }
+    assert_equal([["x", 2], ["y", 1]], counts.to_a)
+
+    # the block may write to the tree
+    @rbtree.upsert("e") { @rbtree["f"] = "F"; "E" }
+    assert_equal(%w(a A b B c C d D e E f F), @rbtree.to_a.flatten)
+  end
+
   def test_empty_p
     assert_equal(false, @rbtree.empty?)
     @rbtree.clear
@@ -357,7 +420,112 @@ class RBTreeTest < Test::Unit::TestCase
     rbtree = RBTree.new { "e" }
     assert_equal("e", rbtree.pop)
   end
-  
+
+  def test_shift_pop_many
+    assert_equal([%w(a A), %w(b B)], @rbtree.shift(2))
+    assert_equal([%w(d D)], @rbtree.pop(1))
+    assert_equal([], @rbtree.shift(0))
+    assert_equal([%w(c C)], @rbtree.pop(5))
+    assert_equal([], @rbtree.pop(1))
+    assert_raises(ArgumentError) { @rbtree.shift(-1) }
+
+    [:node, :compact].each do |storage|
+      rbtree = RBTree.new(:storage => storage)
+      1000.times {|i| rbtree[i] = i.to_s }
+      assert_equal([[0, "0"], [1, "1"]], rbtree.shift(2))
+      assert_equal((2...900).map {|i| [i, i.to_s] }, rbtree.shift(898))
+      assert_equal((950...1000).map {|i| [i, i.to_s] }, rbtree.pop(50))
+      assert_equal(50, rbtree.size)
+      assert_equal([900, "900"], rbtree.first)
+      assert_equal([949, "949"], rbtree.last)
+    end
+  end
+
+  def test_drain_while
+    assert_equal([%w(a A), %w(b B)], @rbtree.drain_while {|key, val| key < "c" })
+    assert_equal(RBTree[*%w(c C d D)], @rbtree)
+    assert_equal([], @rbtree.drain_while {|key, val| false })
+    assert_equal([%w(c C), %w(d D)], @rbtree.drain_while {|key, val| true })
+    assert_equal(true, @rbtree.empty?)
+  end
+
+  def test_take_before
+    ret = @rbtree.take_before("c")
+    assert_equal(RBTree[*%w(a A b B)], ret)
+    assert_equal(RBTree[*%w(c C d D)], @rbtree)
+    assert_equal(RBTree.new, @rbtree.take_before("a"))
+    assert_equal(%w(c C), @rbtree.first)
+  end
+
+  def test_take_from
+    ret = @rbtree.take_from("bb")
+    assert_equal(RBTree[*%w(c C d D)], ret)
+    assert_equal(RBTree[*%w(a A b B)], @rbtree)
+    assert_equal(%w(b B), @rbtree.last)
+    ret["e"] = "E"
+    assert_equal(2, @rbtree.size)
+    assert_equal(3, ret.size)
+  end
+
+  def test_split
+    lower, upper = @rbtree.split("c")
+    assert_equal(RBTree[*%w(a A b B)], lower)
+    assert_equal(RBTree[*%w(c C d D)], upper)
+    assert_equal(true, @rbtree.empty?)
+  end
+
+  def test_delete_range
+    assert_equal(RBTree[*%w(b B c C)], @rbtree.delete_range("b", "c"))
+    assert_equal(RBTree[*%w(a A d D)], @rbtree)
+    assert_equal(RBTree.new, @rbtree.delete_range("d", "a"))
+
+    rbtree = RBTree.new
+    1000.times {|i| rbtree[i] = i }
+    ret = rbtree.delete_range(100, 899)
+    assert_equal(800, ret.size)
+    assert_equal([100, 100], ret.first)
+    assert_equal(200, rbtree.size)
+    assert_equal([[99, 99], [900, 900]], rbtree.bound(99, 900).to_a)
+  end
+
+  def test_join
+    rbtree = RBTree[*%w(e E f F)]
+    assert_same(@rbtree, @rbtree.join(rbtree))
+    assert_equal(RBTree[*%w(a A b B c C d D e E f F)], @rbtree)
+    assert_equal(true, rbtree.empty?)
+
+    lower = @rbtree.take_before("c")
+    lower.join(@rbtree)
+    assert_equal(6, lower.size)
+
+    assert_raises(ArgumentError) { lower.join(RBTree[*%w(b X)]) }
+    assert_raises(ArgumentError) { lower.join(lower) }
+    assert_raises(TypeError) { lower.join(MultiRBTree[*%w(z Z)]) }
+  end
+
+  def test_split_snapshot
+    snapshot = @rbtree.snapshot
+    upper = @rbtree.take_from("c")
+    upper["e"] = "E"
+    @rbtree["a"] = "X"
+    assert_equal(%w(a A b B c C d D), snapshot.to_a.flatten)
+    assert_equal(%w(a X b B), @rbtree.to_a.flatten)
+    assert_equal(%w(c C d D e E), upper.to_a.flatten)
+    assert_raises(FrozenError) { snapshot.take_from("c") }
+  end
+
+  def test_split_storages
+    [RBTree.new(:storage => :compact), BTreeMap.new, ConcurrentRBTree.new].each do |tree|
+      tree.update(@rbtree)
+      assert_equal(RBTree[*%w(b B c C)].to_a, tree.delete_range("b", "c").to_a)
+      upper = tree.take_from("c")
+      assert_equal([%w(d D)], upper.to_a)
+      tree.join(upper)
+      assert_equal([%w(a A), %w(d D)], tree.to_a)
+      assert_equal(tree.class, upper.class)
+    end
+  end
+
   def test_delete
     ret = @rbtree.delete("c")
     assert_equal("C", ret)
@@ -416,6 +584,52 @@ class RBTreeTest < Test::Unit::TestCase
     end
   end
   
+  def test_keep_if
+    ret = @rbtree.keep_if {|key, val| val == "A" || val == "B" }
+    assert_same(@rbtree, ret)
+    assert_equal(RBTree[*%w(a A b B)], @rbtree)
+    assert_same(@rbtree, @rbtree.keep_if { true })
+    assert_equal(2, @rbtree.size)
+  end
+
+  def test_select_bang
+    ret = @rbtree.select! { true }
+    assert_equal(nil, ret)
+    assert_equal(4, @rbtree.size)
+
+    ret = @rbtree.select! {|key, val| val == "C" || val == "D" }
+    assert_same(@rbtree, ret)
+    assert_equal(RBTree[*%w(c C d D)], @rbtree)
+  end
+
+  def test_delete_if_most
+    rbtree = RBTree.new {|tree, key| key }
+    1000.times {|i| rbtree[i] = i.to_s }
+    rbtree.delete_if {|key, val| key % 10 != 0 }
+    assert_equal(100, rbtree.size)
+    assert_equal([0, "0"], rbtree.first)
+    assert_equal([990, "990"], rbtree.last)
+    assert_equal((0...100).map {|i| i * 10 }, rbtree.keys)
+    assert_equal(5, rbtree[5])
+
+    rbtree.delete_if {|key, val| rbtree[key] = val + "!" if key == 0; key > 500 }
+    assert_equal("0!", rbtree[0])
+    assert_equal(51, rbtree.size)
+  end
+
+  def test_select_reject_settings
+    rbtree = RBTree.new("none")
+    rbtree.readjust {|a, b| b <=> a }
+    %w(a b c d).each {|k| rbtree[k] = k.upcase }
+    selected = rbtree.select {|key, val| key != "c" }
+    assert_equal(%w(d b a), selected.keys)
+    assert_equal("none", selected["z"])
+    rejected = rbtree.reject {|key, val| key == "c" }
+    assert_equal(%w(d b a), rejected.keys)
+    assert_equal(rbtree.cmp_proc, rejected.cmp_proc)
+    assert_equal(4, rbtree.size)
+  end
+
   def test_reject
     ret = @rbtree.reject { false }
     assert_equal(nil, ret)
@@ -446,6 +660,53 @@ class RBTreeTest < Test::Unit::TestCase
     ret = @rbtree.values_at("d", "a", "e")
     assert_equal(["D", "A", nil], ret)
   end
+
+  def test_get_many
+    assert_equal(["D", "A", nil, "A"], @rbtree.get_many(%w(d a e a)))
+    @rbtree.default = "X"
+    assert_equal(["X", "C"], @rbtree.get_many(%w(0 c)))
+    assert_equal([], @rbtree.get_many([]))
+
+    [:node, :compact].each do |storage|
+      rbtree = RBTree.new(:storage => storage)
+      1000.times {|i| rbtree[i] = i.to_s }
+      probes = (0...2000).step(7).to_a.shuffle
+      assert_equal(probes.map {|i| i < 1000 ? i.to_s : nil }, rbtree.get_many(probes))
+    end
+  end
+
+  def test_put_many
+    assert_same(@rbtree, @rbtree.put_many([%w(e E), %w(a X), %w(0 Z)]))
+    assert_equal(%w(0 Z a X b B c C d D e E), @rbtree.to_a.flatten)
+    @rbtree.put_many("f" => "F", "b" => "Y")
+    assert_equal(%w(0 Z a X b Y c C d D e E f F), @rbtree.to_a.flatten)
+    assert_raises(ArgumentError) { @rbtree.put_many([%w(g)]) }
+
+    rbtree = RBTree.new
+    rbtree.put_many([%w(b 1), %w(a 2), %w(b 3)])
+    assert_equal(%w(a 2 b 3), rbtree.to_a.flatten)
+    key = "c"
+    rbtree.put_many([[key, "4"]])
+    assert_not_same(key, rbtree.last[0])
+
+    [:node, :compact].each do |storage|
+      rbtree = RBTree.new(:storage => storage)
+      rbtree.put_many((0...500).map {|i| [i * 2, i] })
+      rbtree.put_many((0...500).to_a.shuffle.map {|i| [i * 2 + 1, i] })
+      assert_equal((0...1000).to_a, rbtree.keys)
+    end
+  end
+
+  def test_delete_many
+    assert_equal(["C", nil, "A"], @rbtree.delete_many(%w(c e a)))
+    assert_equal(%w(b B d D), @rbtree.to_a.flatten)
+    assert_equal(["B", nil], @rbtree.delete_many(%w(b b)))
+
+    rbtree = RBTree[*(0...1000).map {|i| [i, i] }.flatten]
+    deleted = (0...1000).step(3).to_a.shuffle
+    assert_equal(deleted, rbtree.delete_many(deleted))
+    assert_equal((0...1000).to_a - deleted, rbtree.keys)
+  end
   
   def test_invert
     assert_equal(RBTree[*%w(A a B b C c D d)], @rbtree.invert)
@@ -478,6 +739,59 @@ class RBTreeTest < Test::Unit::TestCase
     assert_equal(RBTree[*%w(a A b B c C d D e E)], ret)
     
     assert_equal(4, @rbtree.size)
+
+    ret = @rbtree.merge({"e" => "E", "a" => "X"}) {|key, val1, val2| val1 + val2 }
+    assert_equal(RBTree[*%w(a AX b B c C d D e E)], ret)
+    assert_raises(TypeError) { @rbtree.merge("e") }
+  end
+
+  def test_update_with_hash
+    keys = []
+    @rbtree.update({"e" => "E", "b" => "X"}) {|key, val1, val2|
+      keys << key
+      val1 + val2
+    }
+    assert_equal(RBTree[*%w(a A b BX c C d D e E)], @rbtree)
+    assert_equal(%w(b), keys)
+
+    rbtree = RBTree.new
+    ("a".."z").each {|k| rbtree[k] = k.upcase }
+    rbtree.update(@rbtree)
+    assert_equal(26, rbtree.size)
+    assert_equal("BX", rbtree["b"])
+  end
+
+  def test_union
+    ret = @rbtree.union(RBTree[*%w(a X e E)])
+    assert_equal(RBTree[*%w(a A b B c C d D e E)], ret)
+    ret = @rbtree.union({"a" => "X"}) {|key, val1, val2| val2 + val1 }
+    assert_equal(RBTree[*%w(a XA b B c C d D)], ret)
+    assert_equal(4, @rbtree.size)
+  end
+
+  def test_intersection
+    ret = @rbtree.intersection(RBTree[*%w(a X c Y e E)])
+    assert_equal(RBTree[*%w(a A c C)], ret)
+    ret = @rbtree.intersection({"b" => "X"}) {|key, val1, val2| val1 + val2 }
+    assert_equal(RBTree[*%w(b BX)], ret)
+    assert_equal(RBTree[*%w(a A)], @rbtree.intersection(MultiRBTree[*%w(a X a Y)]))
+  end
+
+  def test_difference
+    assert_equal(RBTree[*%w(b B d D)], @rbtree.difference(RBTree[*%w(a X c Y e E)]))
+    assert_equal(@rbtree, @rbtree.difference({}))
+    assert_equal(RBTree.new, @rbtree.difference(@rbtree))
+    assert_raises(TypeError) { @rbtree.difference(%w(a)) }
+  end
+
+  def test_set_operations_keep_settings
+    rbtree = RBTree.new("default")
+    rbtree.readjust {|a, b| b <=> a }
+    rbtree.update(@rbtree)
+    ret = rbtree.merge({"e" => "E"})
+    assert_equal(%w(e d c b a), ret.keys)
+    assert_equal("default", ret["z"])
+    assert_equal(%w(d c b a), rbtree.union(@rbtree).keys)
   end
   
   def test_has_key
@@ -496,6 +810,33 @@ class RBTreeTest < Test::Unit::TestCase
     assert_equal(false, @rbtree.has_value?("E"))
   end
 
+  def test_index_values
+    rbtree = RBTree.new(:index_values => true)
+    rbtree.update(@rbtree)
+    rbtree["e"] = "A"
+    assert_equal(true, rbtree.value?("A"))
+    assert_equal("a", rbtree.key("A"))
+    assert_equal(%w(a e), rbtree.keys_for_value("A"))
+
+    rbtree["a"] = "B"
+    assert_equal("e", rbtree.index("A"))
+    assert_equal(%w(a b), rbtree.keys_for_value("B"))
+    rbtree.delete("e")
+    assert_equal(false, rbtree.has_value?("A"))
+    assert_equal(nil, rbtree.index("A"))
+    assert_equal([], rbtree.keys_for_value("A"))
+    assert_equal(%w(a b), rbtree.dup.keys_for_value("B"))
+    rbtree.shift
+    assert_equal(%w(b), rbtree.keys_for_value("B"))
+    rbtree.clear
+    assert_equal(false, rbtree.has_value?("B"))
+
+    assert_equal(%w(c), @rbtree.keys_for_value("C"))
+    assert_equal("e", RBTree.new("e", :index_values => true).default)
+    assert_raises(ArgumentError) { RBTree.new(:storage => :compact, :index_values => true) }
+    assert_raises(ArgumentError) { RBTree.new(:index_values => true, :foo => 1) }
+  end
+
   def test_keys
     assert_equal(%w(a b c d), @rbtree.keys)
   end
@@ -587,6 +928,25 @@ class RBTreeTest < Test::Unit::TestCase
     assert_equal([], rbtree.bound("Y", "Z"))
     assert_equal([], rbtree.bound("f", "g"))
     assert_equal([], rbtree.bound("f", "Z"))
+
+    assert_equal(%w(a A c C), rbtree.bound("a".."c").flatten)
+    assert_equal(%w(a A),     rbtree.bound("a"..."c").flatten)
+    assert_equal(%w(c C),     rbtree.bound("b"..."e").flatten)
+    assert_equal([],          rbtree.bound("a"..."a"))
+
+    rbtree.readjust {|a, b| b <=> a }
+    assert_equal(%w(e E c C), rbtree.bound("f", "b").flatten)
+  end
+
+  def test_reverse_bound
+    rbtree = RBTree[*%w(a A c C e E)]
+    assert_equal(%w(e E c C a A), rbtree.reverse_bound("a", "e").flatten)
+    assert_equal(%w(c C a A),     rbtree.reverse_bound("a"..."e").flatten)
+    assert_equal([],              rbtree.reverse_bound("f", "g"))
+
+    ret = []
+    rbtree.reverse_bound("b", "f") {|key, val| ret.push(key) }
+    assert_equal(%w(e c), ret)
   end
   
   def test_bound_block
@@ -613,6 +973,394 @@ class RBTreeTest < Test::Unit::TestCase
     assert_equal(4, @rbtree.size)
   end
   
+  def test_key_types
+    rbtree = RBTree[3, "c", 1, "a", 2, "b"]
+    assert_equal([1, 2, 3], rbtree.keys)
+    assert_equal("b", rbtree[2])
+
+    rbtree = RBTree[2.5, 1, -1.0, 2, 0.0, 3]
+    assert_equal([-1.0, 0.0, 2.5], rbtree.keys)
+    assert_equal([0.0, 3], rbtree.lower_bound(-0.5))
+
+    rbtree[1] = 4
+    assert_equal([-1.0, 0.0, 1, 2.5], rbtree.keys)
+    assert_equal(4, rbtree[1.0])
+
+    if :a.respond_to?(:<=>)
+      rbtree = RBTree[:c, 3, :a, 1, :b, 2]
+      assert_equal([:a, :b, :c], rbtree.keys)
+      assert_equal(2, rbtree[:b])
+    end
+
+    rbtree = RBTree["b", 2, "a", 1]
+    assert_equal(["a", 1], rbtree.first)
+    assert_raises(TypeError) { rbtree[1] }
+  end
+
+  def test_memory_footprint
+    footprint = @rbtree.memory_footprint
+    assert_equal(4, footprint[:entries])
+    assert(footprint[:bytes_per_entry] > 0)
+    assert_equal(4 * footprint[:bytes_per_entry], footprint[:bytes])
+  end
+
+  def test_rank
+    assert_equal(0, @rbtree.rank("a"))
+    assert_equal(3, @rbtree.rank("d"))
+    assert_equal(nil, @rbtree.rank("e"))
+  end
+
+  def test_at
+    assert_equal(%w(a A), @rbtree.at(0))
+    assert_equal(%w(c C), @rbtree.nth(2))
+    assert_equal(%w(d D), @rbtree.at(-1))
+    assert_equal(nil, @rbtree.at(4))
+  end
+
+  def test_count_between
+    assert_equal(2, @rbtree.count_between("b", "c"))
+    assert_equal(1, @rbtree.count_between("b"..."c"))
+    assert_equal(4, @rbtree.count_between("0", "z"))
+    assert_equal(0, @rbtree.count_between("e", "f"))
+    assert_equal(0, @rbtree.count_between("c", "b"))
+  end
+
+  def test_slice
+    assert_equal(%w(b B c C), @rbtree.slice(1, 2).flatten)
+    assert_equal(%w(d D),     @rbtree.slice(3, 10).flatten)
+    assert_equal([],          @rbtree.slice(4, 1))
+    assert_equal(nil,         @rbtree.slice(5, 1))
+  end
+
+  def test_order_statistics_after_deletes
+    rbtree = RBTree.new
+    keys = (1..200).to_a.shuffle
+    keys.each {|k| rbtree[k] = k }
+    keys.first(120).each {|k| rbtree.delete(k) }
+    expected = rbtree.keys
+    expected.each_with_index do |k, i|
+      assert_equal([k, k], rbtree.at(i))
+      assert_equal(i, rbtree.rank(k))
+    end
+  end
+
+  def test_compact_storage
+    rbtree = RBTree.new(:storage => :compact)
+    assert_equal(:compact, rbtree.storage)
+    assert_equal(:node, RBTree.new.storage)
+    assert_equal("e", RBTree.new("e", :storage => :compact).default)
+    assert_raises(ArgumentError) { RBTree.new(:storage => :packed) }
+
+    keys = (1..200).to_a.shuffle
+    keys.each {|k| rbtree[k] = k.to_s }
+    keys.first(120).each {|k| assert_equal(k.to_s, rbtree.delete(k)) }
+    expected = RBTree[*keys.last(80).map {|k| [k, k.to_s] }.flatten]
+    assert_equal(expected, rbtree)
+    assert_equal(expected.to_a, rbtree.to_a)
+    assert_equal(expected.to_a.reverse, rbtree.reverse_each.to_a)
+    assert_equal(expected.bound(50, 150), rbtree.bound(50, 150))
+    assert_equal(expected.lower_bound(100), rbtree.lower_bound(100))
+    assert_equal(expected.at(10), rbtree.at(10))
+    assert_equal(10, rbtree.rank(expected.keys[10]))
+
+    copy = rbtree.dup
+    assert_equal(:compact, copy.storage)
+    copy.delete_if {|k, v| k.even? }
+    assert_equal(expected.reject {|k, v| k.even? }, copy)
+    assert_equal(expected, rbtree)
+
+    rbtree.readjust {|a, b| b <=> a }
+    assert_equal(expected.keys.reverse, rbtree.keys)
+    rbtree.clear
+    assert_equal(0, rbtree.size)
+  end
+
+  def test_btree_map
+    btree = BTreeMap.new
+    assert_equal(:btree, btree.storage)
+    assert_kind_of(MultiRBTree, btree)
+    assert_raises(ArgumentError) { BTreeMap.new(:storage => :compact) }
+
+    keys = (1..2000).to_a.shuffle
+    keys.each {|k| btree[k] = k.to_s }
+    btree[1] = "one"
+    assert_equal(2000, btree.size)
+    assert_equal("one", btree[1])
+    keys.first(1500).each {|k| btree.delete(k) }
+    expected = RBTree[*keys.last(500).map {|k| [k, btree[k]] }.flatten]
+    assert_equal(expected, btree)
+    assert_equal(expected.keys, btree.keys)
+    assert_equal(expected.to_a.reverse, btree.reverse_each.to_a)
+    assert_equal(expected.bound(500, 1500), btree.bound(500, 1500))
+    assert_equal(expected.lower_bound(1000), btree.lower_bound(1000))
+    assert_equal(expected.upper_bound(1000), btree.upper_bound(1000))
+    assert_equal(expected.at(100), btree.at(100))
+    assert_equal(100, btree.rank(expected.keys[100]))
+    assert_equal(expected.count_between(500, 1500), btree.count_between(500, 1500))
+
+    btree.delete_if {|k, v| k.even? }
+    assert_equal(expected.reject {|k, v| k.even? }, btree)
+    copy = Marshal.load(Marshal.dump(btree))
+    assert_equal(BTreeMap, copy.class)
+    assert_equal(btree, copy)
+    assert_equal(BTreeMap, btree.dup.class)
+
+    assert_raises(TypeError) { BTreeMap.new.replace(MultiBTreeMap[1, 2]) }
+  end
+
+  def test_concurrent_rbtree
+    rbtree = ConcurrentRBTree[*%w(b B d D a A c C)]
+    assert_equal(@rbtree, rbtree)
+    assert_kind_of(MultiRBTree, rbtree)
+    assert_equal(ConcurrentRBTree, rbtree.dup.class)
+    assert_equal(%w(c C), rbtree.lower_bound("bb"))
+    assert_equal(%w(b B), rbtree.upper_bound("bb"))
+    assert_equal("x", rbtree.fetch("z", "x"))
+    assert_raises(ArgumentError) { ConcurrentRBTree.new(:storage => :compact) }
+
+    # a block sees the entries as they were and may write to the tree
+    rbtree.each {|k, v| rbtree[k.upcase] = v }
+    assert_equal(8, rbtree.size)
+    rbtree.delete_if {|k, v| k == v }
+    assert_equal(@rbtree, rbtree)
+    assert_equal(rbtree, Marshal.load(Marshal.dump(rbtree)))
+
+    stats = rbtree.contention_stats
+    assert_equal([:optimistic_retries, :read_locks, :read_waits, :write_locks, :write_waits],
+                 stats.keys.sort_by {|k| k.to_s })
+    assert(stats[:write_locks] > 0)
+  end
+
+  def test_concurrent_rbtree_threads
+    rbtree = ConcurrentRBTree.new
+    threads = (0...4).map {|t|
+      Thread.new {
+        1000.times {|i|
+          k = i * 4 + t
+          rbtree[k] = k
+          v = rbtree[k - 4]
+          raise "lost #{k - 4}" if k >= 4 && v != k - 4
+        }
+      }
+    }
+    threads.each {|t| t.join }
+    assert_equal(4000, rbtree.size)
+    assert_equal((0...4000).to_a, rbtree.keys)
+  end
+
+  def test_skip_list_map
+    map = SkipListMap[*%w(b B d D a A c C)]
+    assert_equal(@rbtree.to_a, map.to_a)
+    assert_equal(4, map.size)
+    assert_equal("B", map["b"])
+    assert_equal(nil, map["e"])
+    map["b"] = "BB"
+    assert_equal("BB", map["b"])
+    assert_equal(4, map.size)
+    assert_equal(%w(c C), map.lower_bound("bb"))
+    assert_equal(%w(b BB), map.upper_bound("bb"))
+    assert_equal(%w(b BB c C), map.bound("b", "c").flatten)
+    assert_equal(%w(b BB), map.bound("b"..."c").flatten)
+    assert_equal([], map.bound("c", "b"))
+    assert_equal(%w(d D c C b BB a A), map.reverse_each.to_a.flatten)
+
+    copy = map.dup
+    assert_equal(map, copy)
+    copy["e"] = "E"
+    assert_not_equal(map, copy)
+    assert_equal(4, map.size)
+    assert_equal(map, Marshal.load(Marshal.dump(map)))
+    assert_equal(SkipListMap, Marshal.load(Marshal.dump(map)).class)
+    assert_equal(:none, Marshal.load(Marshal.dump(SkipListMap.new(:none))).default)
+    assert_raises(ArgumentError) { Marshal.dump(SkipListMap.new { "x" }) }
+
+    assert_equal("BB", map.delete("b"))
+    assert_equal(nil, map.delete("b"))
+    assert_equal(%w(a A), map.shift)
+    assert_equal(%w(d D), map.pop)
+    assert_equal(%w(c C), map.first)
+    assert_equal(%w(c C), map.last)
+    map.clear
+    assert(map.empty?)
+    assert_equal(:none, SkipListMap.new(:none).shift)
+
+    map.readjust {|a, b| b <=> a }
+    %w(a b c).each {|k| map[k] = k }
+    assert_equal(%w(c b a), map.keys)
+    assert_raises(ArgumentError) { map.readjust }
+  end
+
+  def test_long_rbtree
+    tree = LongRBTree[3, "c", 1, "a", 4, "d", 2, "b"]
+    assert_equal([[1, "a"], [2, "b"], [3, "c"], [4, "d"]], tree.to_a)
+    assert_equal(4, tree.size)
+    assert_equal("b", tree[2])
+    assert_equal(nil, tree[5])
+    tree[2] = "bb"
+    assert_equal("bb", tree[2])
+    assert(tree.has_key?(2))
+    assert_equal([3, "c"], tree.lower_bound(3))
+    assert_equal([2, "bb"], tree.upper_bound(2))
+    assert_equal([[2, "bb"], [3, "c"]], tree.bound(2, 3))
+    assert_equal([[2, "bb"]], tree.bound(2...3))
+    assert_equal([], tree.bound(3, 2))
+    assert_equal([4, 3, 2, 1], tree.reverse_each.map {|k, v| k })
+
+    assert_equal("bb", tree.delete(2))
+    assert_equal(nil, tree.delete(2))
+    assert_equal([1, "a"], tree.shift)
+    assert_equal([4, "d"], tree.pop)
+    assert_equal([3, "c"], tree.first)
+    assert_equal([3, "c"], tree.last)
+    copy = tree.dup
+    tree.clear
+    assert(tree.empty?)
+    assert_equal([[3, "c"]], copy.to_a)
+    assert_equal(:none, LongRBTree.new(:none).shift)
+
+    tree = LongRBTree[2**40, 1, -2**40, 2]
+    assert_equal([-2**40, 2**40], tree.keys)
+    copy = Marshal.load(Marshal.dump(tree))
+    assert_equal(LongRBTree, copy.class)
+    assert_equal([[-2**40, 2], [2**40, 1]], copy.to_a)
+    assert_raises(ArgumentError) { Marshal.dump(LongRBTree.new { 0 }) }
+    assert_raises(TypeError) { tree["a"] = 1 }
+    assert_raises(TypeError) { tree[1.5] }
+    tree.each {|k, v| tree.delete(k) }
+    assert(tree.empty?)
+  end
+
+  def test_long_long_rbtree
+    tree = LongLongRBTree[3, 30, 1, 10, 2, 20]
+    assert_kind_of(LongRBTree, tree)
+    assert_equal([[1, 10], [2, 20], [3, 30]], tree.to_a)
+    assert_equal(20, tree[2])
+    assert_equal([2, 20], tree.lower_bound(2))
+    assert_equal([[2, 20], [3, 30]], tree.bound(2..5))
+    tree[2] = -2**50
+    assert_equal(-2**50, tree[2])
+    assert_raises(TypeError) { tree[4] = "d" }
+    assert_raises(TypeError) { tree[4] = 1.5 }
+    assert_equal(3, tree.size)
+    assert_equal([1, 10], tree.shift)
+    assert_equal([3, 30], tree.pop)
+    assert_equal(LongLongRBTree, tree.dup.class)
+    copy = Marshal.load(Marshal.dump(tree))
+    assert_equal(LongLongRBTree, copy.class)
+    assert_equal([[2, -2**50]], copy.to_a)
+    assert_equal(:none, Marshal.load(Marshal.dump(LongLongRBTree.new(:none))).default)
+  end
+
+  def test_skip_list_map_threads
+    map = SkipListMap.new
+    threads = (0...4).map {|t|
+      Thread.new { 1000.times {|i| map[i * 4 + t] = t } }
+    }
+    threads.each {|t| t.join }
+    assert_equal(4000, map.size)
+    assert_equal((0...4000).to_a, map.keys)
+  end
+
+  def test_snapshot
+    snapshot = @rbtree.snapshot
+    assert(snapshot.frozen?)
+    assert_equal(RBTree, snapshot.class)
+    assert_equal(@rbtree, snapshot)
+
+    @rbtree["a"] = "AA"
+    @rbtree["e"] = "E"
+    @rbtree.delete("b")
+    assert_equal(%w(a A b B c C d D), snapshot.to_a.flatten)
+    assert_equal(%w(a AA c C d D e E), @rbtree.to_a.flatten)
+    assert_equal(%w(b B), snapshot.lower_bound("b"))
+    assert_equal(%w(b B), snapshot.at(1))
+    assert_equal(2, snapshot.rank("c"))
+    assert_raises(FrozenError) { snapshot["f"] = "F" }
+    assert_raises(FrozenError) { snapshot.delete("a") }
+
+    # the live tree may be written while a snapshot is iterated
+    snapshot.each {|k, v| @rbtree[k] = v.downcase }
+    assert_equal(%w(a a b b c c d d e E), @rbtree.to_a.flatten)
+    copy = snapshot.dup
+    assert(!copy.frozen?)
+    copy["f"] = "F"
+    assert_equal(5, copy.size)
+    assert_equal(4, snapshot.size)
+    assert(snapshot.clone.frozen?)
+    assert(!RBTree.new { "x" }.freeze.dup.frozen?)
+    assert_equal("x", RBTree.new { "x" }.freeze.dup["a"])
+  end
+
+  def test_cursor
+    cursor = @rbtree.cursor
+    assert_equal(nil, cursor.key)
+    assert_equal(%w(a A), cursor.peek)
+    assert_equal(%w(a A), cursor.next)
+    assert_equal(%w(b B), cursor.next)
+    assert_equal("b", cursor.key)
+    assert_equal("B", cursor.value)
+    assert_equal(%w(a A), cursor.prev)
+    assert_raises(StopIteration) { cursor.prev }
+    assert_equal(%w(a A), cursor.next)
+
+    assert_equal(%w(c C), cursor.seek("bb"))
+    assert_equal(%w(d D), cursor.next)
+    assert_raises(StopIteration) { cursor.next }
+    assert_raises(StopIteration) { cursor.peek }
+    assert_equal(%w(d D), cursor.prev)
+    assert_equal(nil, cursor.seek("e"))
+
+    cursor = @rbtree.cursor("b")
+    assert_equal("b", cursor.key)
+    assert_equal("B", cursor.delete_current)
+    assert_raises(IndexError) { cursor.delete_current }
+    assert_equal(%w(c C), cursor.next)
+    assert_equal(%w(a A), cursor.prev)
+    assert_equal(%w(a A c C d D), @rbtree.to_a.flatten)
+
+    @rbtree["e"] = "E"
+    assert_raises(RuntimeError) { cursor.next }
+    assert_equal(%w(a A), cursor.rewind.next)
+
+    [RBTree.new(:storage => :compact), BTreeMap.new, ConcurrentRBTree.new].each do |tree|
+      tree.update(@rbtree)
+      cursor = tree.cursor
+      assert_equal(@rbtree.to_a, (0...tree.size).map { cursor.next })
+      assert_equal("E", cursor.delete_current)
+      assert_equal(%w(d D), cursor.prev)
+      assert_equal(%w(a A c C d D), tree.to_a.flatten)
+    end
+  end
+
+  def test_snapshot_storages
+    [RBTree.new(:storage => :compact), BTreeMap.new, ConcurrentRBTree.new].each do |tree|
+      tree.update(@rbtree)
+      snapshot = tree.snapshot
+      tree.clear
+      assert(snapshot.frozen?)
+      assert_equal(@rbtree.to_a, snapshot.to_a)
+      assert_equal(%w(c C), snapshot.upper_bound("cc"))
+    end
+    assert_equal(RBTree, ConcurrentRBTree.new.snapshot.class)
+  end
+
+  def test_count
+    assert_equal(1, @rbtree.count("b"))
+    assert_equal(0, @rbtree.count("z"))
+    assert_equal(%w(B), @rbtree.values_for("b"))
+    assert_equal([], @rbtree.values_for("z"))
+    assert_equal(1, BTreeMap[@rbtree].count("c"))
+  end
+
+  def test_compact_memory_footprint
+    compact = RBTree.new(:storage => :compact)
+    compact.update(@rbtree)
+    footprint = compact.memory_footprint
+    assert_equal(4, footprint[:entries])
+    assert(footprint[:capacity] >= 4)
+    assert(footprint[:bytes_per_entry] < @rbtree.memory_footprint[:bytes_per_entry])
+  end
+
   def test_first
     assert_equal(["a", "A"], @rbtree.first)
     
@@ -673,6 +1421,68 @@ class RBTreeTest < Test::Unit::TestCase
     assert_raises(ArgumentError) { @rbtree.readjust(proc, proc) }
   end
   
+  def test_readjust_equal_keys
+    rbtree = RBTree[*%w(a 1 B 2 b 3 A 4)]
+    rbtree.readjust {|a, b| a.casecmp(b) }
+    assert_equal([%w(A 1), %w(B 3)], rbtree.to_a)
+
+    rbtree = RBTree[*%w(b B d D a A c C)]
+    calls = 0
+    assert_raises(ArgumentError) {
+      rbtree.readjust {|a, b| raise ArgumentError if (calls += 1) > 3; b <=> a }
+    }
+    assert_equal(%w(a b c d), rbtree.keys)
+    assert_equal(nil, rbtree.cmp_proc)
+    rbtree["e"] = "E"
+    assert_equal(%w(a b c d e), rbtree.keys)
+  end
+
+  def test_readjust_callables
+    @rbtree.readjust(lambda {|a, b| return b <=> a })
+    assert_equal(%w(d c b a), @rbtree.keys)
+
+    @rbtree.readjust(lambda {|a, b| a.casecmp(b) })
+    @rbtree["B"] = "b"
+    assert_equal(%w(a b c d), @rbtree.keys)
+    assert_equal("b", @rbtree["b"])
+
+    rbtree = RBTree.new
+    def rbtree.reverse(a, b)
+      b <=> a
+    end
+    cmp = rbtree.method(:reverse)
+    rbtree.readjust(cmp)
+    rbtree[1] = 1
+    rbtree[3] = 3
+    rbtree[2] = 2
+    assert_equal([3, 2, 1], rbtree.keys)
+    assert_equal(cmp, rbtree.cmp_proc)
+  end
+
+  def test_readjust_by
+    rbtree = RBTree[*%w(b 1 A 2 c 3)]
+    rbtree.readjust_by {|key| key.downcase }
+    assert_equal(%w(A b c), rbtree.keys)
+    assert_equal(nil, rbtree.cmp_proc)
+    assert_not_equal(nil, rbtree.sort_key_proc)
+
+    rbtree["B"] = "4"
+    assert_equal(%w(A b c), rbtree.keys)
+    assert_equal("4", rbtree["b"])
+    assert_equal(["c", "3"], rbtree.lower_bound("BB"))
+    assert_equal(%w(A 2 b 4), rbtree.bound("a", "b").flatten)
+
+    copy = rbtree.dup
+    copy["C"] = "5"
+    assert_equal("5", copy["c"])
+    assert_raises(ArgumentError) { Marshal.dump(rbtree) }
+
+    rbtree.readjust
+    assert_equal(nil, rbtree.sort_key_proc)
+    assert_equal(%w(A b c), rbtree.keys)
+    assert_raises(ArgumentError) { rbtree.readjust_by }
+  end
+
   def test_replace
     rbtree = RBTree.new { "e" }
     rbtree.readjust {|a, b| a <=> b}
@@ -714,6 +1524,126 @@ class RBTreeTest < Test::Unit::TestCase
     }
   end
   
+  def test_dump_to
+    io = StringIO.new
+    assert_same(io, @rbtree.dump_to(io))
+    io.rewind
+    rbtree = RBTree.load_from(io)
+    assert_equal(RBTree, rbtree.class)
+    assert_equal(@rbtree, rbtree)
+    assert(rbtree.keys.all? {|key| key.frozen? })
+
+    values = [1, -2**40, 1.5, nil, true, false, :sym, "str", [1, 2], 2**70]
+    rbtree = RBTree.new
+    values.each_with_index {|value, i| rbtree[i] = value }
+    io = StringIO.new
+    rbtree.dump_to(io)
+    io.rewind
+    assert_equal(values, RBTree.load_from(io).values)
+
+    io = StringIO.new
+    RBTree.new("e").dump_to(io)
+    io.write("rest")
+    io.rewind
+    rbtree = RBTree.load_from(io)
+    assert_equal(0, rbtree.size)
+    assert_equal("e", rbtree.default)
+    assert_equal("rest", io.read)
+
+    assert_raises(TypeError) { RBTree.new { "e" }.dump_to(StringIO.new) }
+    assert_raises(ArgumentError) { RBTree.load_from(StringIO.new("junk")) }
+    io = StringIO.new
+    @rbtree.dump_to(io)
+    assert_raises(ArgumentError) { RBTree.load_from(StringIO.new(io.string[0, 20])) }
+  end
+
+  def test_dump_to_comparator
+    @rbtree.readjust {|a, b| b <=> a }
+    io = StringIO.new
+    @rbtree.dump_to(io)
+    io.rewind
+    assert_raises(ArgumentError) { RBTree.load_from(io) }
+    io.rewind
+    rbtree = RBTree.load_from(io) {|a, b| b <=> a }
+    assert_equal(%w(d c b a), rbtree.keys)
+    rbtree["e"] = "E"
+    assert_equal(%w(e d c b a), rbtree.keys)
+
+    @rbtree.readjust(DumpOrder.method(:reverse))
+    io = StringIO.new
+    @rbtree.dump_to(io)
+    io.rewind
+    rbtree = RBTree.load_from(io)
+    assert_equal(%w(d c b a), rbtree.keys)
+    assert_equal(DumpOrder.method(:reverse), rbtree.cmp_proc)
+    io.rewind
+    assert_raises(ArgumentError) { RBTree.load_from(io) {|a, b| a <=> b } }
+  end
+
+  def test_write_sorted_file
+    Dir.mktmpdir do |dir|
+      path = File.join(dir, "tree")
+      @rbtree.default = "e"
+      assert_same(@rbtree, @rbtree.write_sorted_file(path))
+      map = MappedRBTree.open(path)
+      assert_equal(4, map.size)
+      assert_equal("C", map["c"])
+      assert_equal("e", map["z"])
+      assert(map.has_key?("a"))
+      assert(!map.has_key?("bb"))
+      assert_equal(%w(a A), map.first)
+      assert_equal(%w(d D), map.last)
+      assert_equal(%w(c C), map.lower_bound("bb"))
+      assert_equal(%w(b B), map.upper_bound("bb"))
+      assert_equal([%w(b B), %w(c C)], map.bound("b", "c"))
+      assert_equal([%w(b B)], map.bound("b"..."c"))
+      assert_equal(@rbtree.to_a, map.to_a)
+      assert_equal(@rbtree.to_a.reverse, map.reverse_each.to_a)
+      assert(map.keys.all? {|key| key.frozen? })
+      assert_raises(ArgumentError) { map[1] }
+
+      rbtree = RBTree.new
+      (-1000..1000).step(2) {|i| rbtree[i] = [i] }
+      rbtree.write_sorted_file(path)
+      map = MappedRBTree.open(path)
+      assert_equal([4], map[4])
+      assert_equal(nil, map[5])
+      assert_equal([-998, [-998]], map.lower_bound(-999))
+      assert_equal((-10..10).step(2).map {|i| [i, [i]] }, map.bound(-10, 10))
+      assert_equal(rbtree.to_a, map.to_a)
+      map.close
+      assert_raises(IOError) { map.first }
+
+      RBTree.new.write_sorted_file(path)
+      map = MappedRBTree.open(path)
+      assert(map.empty?)
+      assert_equal(nil, map.lower_bound(1))
+
+      assert_raises(TypeError) { RBTree[1.5, 1].write_sorted_file(path) }
+      assert_raises(TypeError) { RBTree.new { "e" }.write_sorted_file(path) }
+      @rbtree.readjust {|a, b| b <=> a }
+      assert_raises(ArgumentError) { @rbtree.write_sorted_file(path) }
+      File.open(path, "w") {|f| f.write("junk" * 10) }
+      assert_raises(ArgumentError) { MappedRBTree.open(path) }
+    end
+  end
+
+  def test_bulk_load
+    rbtree = RBTree.new
+    (1..1000).each {|i| rbtree[i] = i.to_s }
+    [rbtree.dup, Marshal.load(Marshal.dump(rbtree)), rbtree.select {|k, v| true }].each do |copy|
+      assert_equal(rbtree, copy)
+      copy[0] = "0"
+      copy.delete(500)
+      assert_equal([0, 1, 2], copy.keys.first(3))
+      assert_equal(1000, copy.size)
+      assert_equal(copy.keys.sort, copy.keys)
+    end
+
+    rbtree = RBTree[*%w(a C b B c A d A)]
+    assert_equal(%w(A d B b C a), rbtree.invert.to_a.flatten)
+  end
+
   begin
     require "pp"
     
@@ -846,6 +1776,30 @@ class MultiRBTreeTest < Test::Unit::TestCase
     }
   end
 
+  def test_update_block
+    rbtree = MultiRBTree[*%w(a A b B)]
+    rbtree.update(MultiRBTree[*%w(b X b Y c C)]) {|key, val1, val2| val1 + val2 }
+    assert_equal(MultiRBTree[*%w(a A b B b BX b BY c C)], rbtree)
+  end
+
+  def test_set_operations
+    other = MultiRBTree[*%w(b X c Y c Z e E)]
+    assert_equal(MultiRBTree[*%w(a A b B b C b D b X c C c Y c Z e E)], @rbtree.union(other))
+    assert_equal(MultiRBTree[*%w(b B b C b D c C)], @rbtree.intersection(other))
+    assert_equal(MultiRBTree[*%w(a A)], @rbtree.difference(other))
+    assert_equal(MultiRBTree[*%w(a A b B b C b D c C e E)], @rbtree.merge({"e" => "E"}))
+  end
+
+  def test_split_join
+    upper = @rbtree.take_from("b")
+    assert_equal(MultiRBTree[*%w(b B b C b D c C)], upper)
+    assert_equal(MultiRBTree[*%w(a A)], @rbtree)
+    assert_equal(MultiRBTree[*%w(b B b C b D)], upper.delete_range("b", "b"))
+    assert_raises(ArgumentError) { @rbtree.join(MultiRBTree[*%w(a X)]) }
+    @rbtree.join(upper)
+    assert_equal(MultiRBTree[*%w(a A c C)], @rbtree)
+  end
+
   def test_clone
     assert_equal(@rbtree, @rbtree.clone)
   end
@@ -877,6 +1831,13 @@ class MultiRBTreeTest < Test::Unit::TestCase
     assert_equal(%w(a A c C), @rbtree.to_a.flatten)
   end
 
+  def test_keep_if
+    @rbtree.keep_if {|k, v| k == "b" && v != "C" }
+    assert_equal(%w(b B b D), @rbtree.to_a.flatten)
+    assert_equal(nil, @rbtree.select! { true })
+    assert_equal(%w(b D), @rbtree.reject {|k, v| v == "B" }.to_a.flatten)
+  end
+
   def test_inspect
     assert_equal(%(#<MultiRBTree: {"a"=>"A", "b"=>"B", "b"=>"C", "b"=>"D", "c"=>"C"}, default=nil, cmp_proc=nil>),
                  @rbtree.inspect)
@@ -886,11 +1847,40 @@ class MultiRBTreeTest < Test::Unit::TestCase
     @rbtree.readjust {|a, b| b <=> a }
     assert_equal(%w(c C b B b C b D a A), @rbtree.to_a.flatten)
   end
+
+  def test_readjust_equal_keys
+    rbtree = MultiRBTree[*%w(a 1 B 2 b 3 A 4)]
+    rbtree.readjust {|a, b| a.casecmp(b) }
+    assert_equal(%w(A 4 a 1 B 2 b 3), rbtree.to_a.flatten)
+    assert_equal(%w(4 1), rbtree.values_for("a"))
+  end
   
   def test_marshal
     assert_equal(@rbtree, Marshal.load(Marshal.dump(@rbtree)))
   end
 
+  def test_dump_to
+    io = StringIO.new
+    @rbtree.dump_to(io)
+    io.rewind
+    assert_equal(@rbtree, MultiRBTree.load_from(io))
+    io.rewind
+    assert_raises(TypeError) { RBTree.load_from(io) }
+  end
+
+  def test_write_sorted_file
+    Dir.mktmpdir do |dir|
+      path = File.join(dir, "tree")
+      @rbtree.write_sorted_file(path)
+      map = MappedRBTree.open(path)
+      assert_equal(@rbtree.to_a, map.to_a)
+      assert_equal("B", map["b"])
+      assert_equal(%w(b B), map.lower_bound("b"))
+      assert_equal(%w(b D), map.upper_bound("b"))
+      assert_equal(%w(b B b C b D), map.bound("b").flatten)
+    end
+  end
+
   def test_lower_bound
     assert_equal(%w(b B), @rbtree.lower_bound("b"))
   end
@@ -901,16 +1891,131 @@ class MultiRBTreeTest < Test::Unit::TestCase
 
   def test_bound
     assert_equal(%w(b B b C b D), @rbtree.bound("b").flatten)
+    assert_equal(%w(a A b B b C b D), @rbtree.bound("a"..."c").flatten)
+    assert_equal(%w(b D b C b B), @rbtree.reverse_bound("b").flatten)
+  end
+
+  def test_count
+    assert_equal(3, @rbtree.count("b"))
+    assert_equal(1, @rbtree.count("a"))
+    assert_equal(0, @rbtree.count("z"))
+    assert_equal(5, @rbtree.count)
+    assert_equal(2, @rbtree.count {|k, v| v == "C" })
+  end
+
+  def test_values_for
+    assert_equal(%w(B C D), @rbtree.values_for("b"))
+    assert_equal([], @rbtree.values_for("z"))
+    @rbtree["b"] = "A"
+    @rbtree.delete("b")
+    assert_equal(%w(C D A), @rbtree.values_for("b"))
+    assert_equal(%w(b A), @rbtree.upper_bound("b"))
+    assert_equal(%w(b C), @rbtree.at(1))
+
+    rbtree = MultiRBTree.new
+    1000.times {|i| rbtree[i % 10] = i }
+    assert_equal(100, rbtree.count(3))
+    assert_equal((0...100).map {|i| i * 10 + 3 }, rbtree.values_for(3))
+    assert_equal(rbtree.to_a, MultiRBTree[rbtree].to_a)
+    assert_equal([3, 993], rbtree.upper_bound(3))
+    assert_equal(300, rbtree.rank(3))
+
+    rbtree = MultiRBTree[1, :a, 1.0, :b]
+    assert_equal([1.class, Float], rbtree.keys.map {|k| k.class })
+    assert_equal([:a, :b], rbtree.values_for(1))
   end
   
   def test_first
     assert_equal(%w(a A), @rbtree.first)
   end
 
+  def test_order_statistics
+    assert_equal(1, @rbtree.rank("b"))
+    assert_equal(%w(b C), @rbtree.at(2))
+    assert_equal(3, @rbtree.count_between("b"))
+    assert_equal(%w(b D c C), @rbtree.slice(3, 2).flatten)
+  end
+
   def test_last
     assert_equal(%w(c C), @rbtree.last)
   end
 
+  def test_multi_btree_map
+    btree = MultiBTreeMap[*%w(a A b B b C b D c C)]
+    assert_equal(@rbtree, btree)
+    assert_equal(%w(b B), btree.lower_bound("b"))
+    assert_equal(%w(b D), btree.upper_bound("b"))
+    assert_equal(%w(b B b C b D), btree.bound("b").flatten)
+    assert_equal(%w(b C), btree.at(2))
+
+    100.times {|i| btree["b"] = i }
+    assert_equal(103, btree.count_between("b"))
+    assert_equal(["b", 99], btree.upper_bound("b"))
+    btree.delete_if {|k, v| k == "b" && v.is_a?(Integer) }
+    assert_equal(@rbtree, btree)
+    assert_equal(btree, Marshal.load(Marshal.dump(btree)))
+  end
+
+  def test_compact_storage
+    rbtree = MultiRBTree.new(:storage => :compact)
+    rbtree.update(@rbtree)
+    assert_equal(@rbtree, rbtree)
+    assert_equal(%w(b B b C b D), rbtree.bound("b").flatten)
+    assert_equal(%w(b C), rbtree.at(2))
+    rbtree.delete_if {|k, v| v == "C" }
+    assert_equal(%w(a A b B b D), rbtree.to_a.flatten)
+  end
+
+  def test_concurrent_multi_rbtree
+    rbtree = ConcurrentMultiRBTree[*%w(a A b B b C b D c C)]
+    assert_equal(@rbtree, rbtree)
+    assert_equal(%w(b B), rbtree.lower_bound("b"))
+    assert_equal(%w(b D), rbtree.upper_bound("b"))
+    assert_equal(%w(b B b C b D), rbtree.bound("b").flatten)
+    assert_raises(TypeError) { ConcurrentRBTree.new.replace(rbtree) }
+  end
+
+  def test_snapshot
+    snapshot = @rbtree.snapshot
+    assert_equal(MultiRBTree, snapshot.class)
+    @rbtree.delete_if {|k, v| k == "b" }
+    @rbtree["b"] = "E"
+    assert_equal(%w(a A b B b C b D c C), snapshot.to_a.flatten)
+    assert_equal(%w(a A b E c C), @rbtree.to_a.flatten)
+    assert_equal(%w(b B b C b D), snapshot.bound("b").flatten)
+    assert_equal(%w(b D), snapshot.upper_bound("b"))
+  end
+
+  def test_cursor
+    cursor = @rbtree.cursor("b")
+    assert_equal(%w(b B), [cursor.key, cursor.value])
+    assert_equal(%w(b C), cursor.next)
+    assert_equal("C", cursor.delete_current)
+    assert_equal(%w(b D), cursor.next)
+    assert_equal(%w(b B), cursor.prev)
+    assert_equal(%w(a A b B b D c C), @rbtree.to_a.flatten)
+  end
+
+  def test_multi_skip_list_map
+    map = MultiSkipListMap[*%w(a A b B b C b D c C)]
+    assert_equal(@rbtree.to_a, map.to_a)
+    assert_equal("B", map["b"])
+    assert_equal(%w(b B), map.lower_bound("b"))
+    assert_equal(%w(b D), map.upper_bound("b"))
+    assert_equal(%w(b B b C b D), map.bound("b").flatten)
+
+    map["b"] = "E"
+    assert_equal(6, map.size)
+    assert_equal(%w(b E), map.upper_bound("b"))
+    assert_equal("B", map.delete("b"))
+    assert_equal(%w(a A b C b D b E c C), map.to_a.flatten)
+    assert_equal(map.to_a, map.dup.to_a)
+    copy = Marshal.load(Marshal.dump(map))
+    assert_equal(map, copy)
+    copy["b"] = "F"
+    assert_equal(%w(b F), copy.upper_bound("b"))
+  end
+
   def test_shift
     assert_equal(%w(a A), @rbtree.shift)
     assert_equal(4, @rbtree.size)
@@ -923,6 +2028,18 @@ class MultiRBTreeTest < Test::Unit::TestCase
     assert_equal(nil, @rbtree["c"])
   end
 
+  def test_shift_pop_many
+    assert_equal([%w(a A), %w(b B)], @rbtree.shift(2))
+    assert_equal([%w(b D), %w(c C)], @rbtree.pop(2))
+    assert_equal(MultiRBTree[*%w(b C)], @rbtree)
+  end
+
+  def test_drain_while
+    ret = @rbtree.drain_while {|key, val| key < "c" }
+    assert_equal([%w(a A), %w(b B), %w(b C), %w(b D)], ret)
+    assert_equal(MultiRBTree[*%w(c C)], @rbtree)
+  end
+
   def test_has_key
     assert_equal(true,  @rbtree.has_key?("b"))
   end
@@ -933,6 +2050,31 @@ class MultiRBTreeTest < Test::Unit::TestCase
     assert_equal(true, @rbtree.has_value?("D"))
   end
 
+  def test_upsert
+    assert_equal("BB", @rbtree.upsert("b") {|v| v * 2 })
+    assert_equal(%w(a A b BB b C b D c C), @rbtree.to_a.flatten)
+    assert_equal("BB", @rbtree.fetch_or_store("b", "X"))
+    assert_equal(1, @rbtree.increment("d"))
+    assert_equal(6, @rbtree.size)
+
+    rbtree = MultiRBTree.new(:storage => :compact)
+    rbtree.update(@rbtree)
+    assert_equal("BBB", rbtree.upsert("b") {|v| v + "B" })
+    assert_equal(%w(BBB C D), rbtree.values_for("b"))
+  end
+
+  def test_index_values
+    rbtree = MultiRBTree.new(:index_values => true)
+    rbtree.update(@rbtree)
+    rbtree["a"] = "C"
+    assert_equal(%w(a b c), rbtree.keys_for_value("C"))
+    assert_equal("a", rbtree.index("C"))
+    rbtree.delete_if {|k, v| k == "a" }
+    assert_equal(%w(b c), rbtree.keys_for_value("C"))
+    assert_equal(false, rbtree.value?("A"))
+    assert_equal(%w(b b), MultiRBTree[*%w(b X b X)].keys_for_value("X"))
+  end
+
   def test_select
     assert_equal(%w(b B b C b D), @rbtree.select {|k, v| k == "b"}.flatten)
     assert_equal(%w(b C c C),     @rbtree.select {|k, v| v == "C"}.flatten)
@@ -942,6 +2084,17 @@ class MultiRBTreeTest < Test::Unit::TestCase
     assert_equal(%w(A B), @rbtree.values_at("a", "b"))
   end
 
+  def test_put_many
+    @rbtree.put_many([%w(b E), %w(a F), %w(b G)])
+    assert_equal(%w(a A a F b B b C b D b E b G c C), @rbtree.to_a.flatten)
+    assert_equal(%w(B C D E G), @rbtree.values_for("b"))
+  end
+
+  def test_delete_many
+    assert_equal(%w(B C), @rbtree.delete_many(%w(b b)))
+    assert_equal(%w(a A b D c C), @rbtree.to_a.flatten)
+  end
+
   def test_invert
     assert_equal(MultiRBTree[*%w(A a B b C b C c D b)], @rbtree.invert)
   end
@@ -976,4 +2129,13 @@ class RegressionTest < Test::Unit::TestCase
     assert_nil(@number_key_tree.delete(7))
     assert_equal(3, @number_key_tree.size)
   end
+
+  def test_delete_node_with_two_children
+    rbtree = RBTree.new
+    (1..15).each {|i| rbtree[i] = i.to_s }
+    (1..15).to_a.reverse.each do |i|
+      assert_equal(i.to_s, rbtree.delete(i))
+    end
+    assert_equal(0, rbtree.size)
+  end
 end